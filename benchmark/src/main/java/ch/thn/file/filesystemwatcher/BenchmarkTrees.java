@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the directory trees the benchmarks run on
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+final class BenchmarkTrees {
+
+  private BenchmarkTrees() {
+
+  }
+
+  /**
+   * Creates a flat tree with the given number of empty files, spread over directories with at
+   * most the given number of files each
+   * 
+   * @param root
+   * @param files
+   * @param filesPerDirectory
+   * @return All created directories
+   * @throws IOException
+   */
+  static List<Path> createWideTree(Path root, int files, int filesPerDirectory)
+      throws IOException {
+    List<Path> directories = new ArrayList<Path>();
+
+    Path directory = null;
+    for (int i = 0; i < files; i++) {
+      if (i % filesPerDirectory == 0) {
+        directory = Files.createDirectories(root.resolve("dir" + (i / filesPerDirectory)));
+        directories.add(directory);
+      }
+
+      Files.createFile(directory.resolve("file" + i + ".txt"));
+    }
+
+    return directories;
+  }
+
+  /**
+   * Creates a tree of directories where each directory has the given number of sub directories,
+   * down to the given depth
+   * 
+   * @param root
+   * @param depth
+   * @param fanOut
+   * @return The number of created directories
+   * @throws IOException
+   */
+  static int createDeepTree(Path root, int depth, int fanOut) throws IOException {
+    if (depth == 0) {
+      return 0;
+    }
+
+    int count = 0;
+    for (int i = 0; i < fanOut; i++) {
+      Path child = Files.createDirectories(root.resolve("d" + i));
+      count += 1 + createDeepTree(child, depth - 1, fanOut);
+    }
+
+    return count;
+  }
+
+  /**
+   * Deletes the given tree
+   * 
+   * @param root
+   * @throws IOException
+   */
+  static void delete(Path root) throws IOException {
+    if (root == null || !Files.exists(root)) {
+      return;
+    }
+
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link FileSystemWatcher#firePathWatcherListener} with a number of
+ * listeners which do nothing
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DispatchBenchmark {
+
+  @Param({"1", "4", "16"})
+  public int listeners;
+
+  private FileSystemWatcher watcher = null;
+
+  private final Path path = Paths.get("watched");
+  private final Path context = path.resolve("file.txt");
+
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    watcher = new FileSystemWatcher();
+
+    for (int i = 0; i < listeners; i++) {
+      watcher.addPathWatcherListener(new BlackholeListener(blackhole));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    watcher.stop();
+  }
+
+  @Benchmark
+  public void fireModified() {
+    watcher.firePathWatcherListener(StandardWatchEventKinds.ENTRY_MODIFY, path, context, false);
+  }
+
+
+  /********************************************************************************
+   * 
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private static class BlackholeListener implements PathWatcherListener {
+
+    private final Blackhole blackhole;
+
+    public BlackholeListener(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void newPathWatched(Path path) {
+      blackhole.consume(path);
+    }
+
+    @Override
+    public void pathChanged(Path path, Path context, boolean overflow) {
+      blackhole.consume(context);
+    }
+
+    @Override
+    public void directoryCreated(Path path, Path created) {
+      blackhole.consume(created);
+    }
+
+    @Override
+    public void directoryDeleted(Path path, Path deleted) {
+      blackhole.consume(deleted);
+    }
+
+    @Override
+    public void directoryModified(Path path, Path modified) {
+      blackhole.consume(modified);
+    }
+
+  }
+
+}
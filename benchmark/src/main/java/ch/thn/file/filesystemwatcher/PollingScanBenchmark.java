@@ -0,0 +1,90 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one {@link PollingWatchService#lookForChanges()} cycle over a tree in which nothing
+ * changed, which is what the polling thread does most of the time
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PollingScanBenchmark {
+
+  @Param({"1000", "100000", "1000000"})
+  public int files;
+
+  @Param({"1", "4"})
+  public int parallelism;
+
+  private Path root = null;
+
+  private PollingWatchService service = null;
+
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    root = Files.createTempDirectory("pollingscan");
+
+    // The watch service is not started, the benchmark drives the scans itself
+    service = new PollingWatchService(1000);
+    service.setParallelism(parallelism);
+
+    for (Path directory : BenchmarkTrees.createWideTree(root, files, 1000)) {
+      service.register(directory);
+    }
+
+    // The first scan records the snapshots, all further scans compare against them
+    service.lookForChanges();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    service.setParallelism(1);
+    BenchmarkTrees.delete(root);
+  }
+
+  @Benchmark
+  public void scanUnchangedTree() {
+    service.lookForChanges();
+  }
+
+}
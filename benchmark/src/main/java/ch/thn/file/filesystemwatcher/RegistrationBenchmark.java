@@ -0,0 +1,97 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the recursive registration of a deep directory tree with
+ * {@link FileSystemWatcher#registerPath(Path, boolean, boolean)}
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RegistrationBenchmark {
+
+  /**
+   * The depth of the tree, with 4 sub directories per directory (4: 340 directories, 6: 5460
+   * directories)
+   */
+  @Param({"4", "6"})
+  public int depth;
+
+  /**
+   * 0 for the java file system watch service, or the polling time for the polling watch service
+   */
+  @Param({"0", "1000"})
+  public long pollingTime;
+
+  private Path root = null;
+
+  private FileSystemWatcher watcher = null;
+
+
+  @Setup(Level.Trial)
+  public void setUpTree() throws IOException {
+    root = Files.createTempDirectory("registration");
+    BenchmarkTrees.createDeepTree(root, depth, 4);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTree() throws IOException {
+    BenchmarkTrees.delete(root);
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpWatcher() {
+    watcher = new FileSystemWatcher(pollingTime);
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDownWatcher() {
+    watcher.clearAllRegisteredPaths();
+    watcher.stop();
+  }
+
+  @Benchmark
+  public boolean registerDeepTree() {
+    return watcher.registerPath(root, true, false);
+  }
+
+}
@@ -0,0 +1,368 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Notifies one {@link PathWatcherListener} on its own thread. The events are queued in a bounded
+ * queue, and the {@link QueueFullPolicy} defines what happens if the listener can not keep up. Like
+ * this, a slow listener neither delays the detection of changes nor the other listeners.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+class AsyncListenerDispatcher implements Runnable {
+
+  private static final Logger logger = LoggerFactory.getLogger(AsyncListenerDispatcher.class);
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private final PathWatcherListener listener;
+
+  private final int capacity;
+
+  private final QueueFullPolicy policy;
+
+  private final ArrayDeque<Item> queue;
+
+  /**
+   * Where the listener execution times are recorded, or <code>null</code>
+   */
+  private final WatcherMetrics metrics;
+
+  private final ReentrantLock lock;
+  private final Condition notEmpty;
+  private final Condition notFull;
+
+  private final AtomicLong dropped;
+
+  private final Thread thread;
+
+  private boolean shutdown = false;
+
+
+  /**
+   * Creates the dispatcher and starts its thread
+   * 
+   * @param listener
+   * @param capacity The maximum number of queued events
+   * @param policy
+   */
+  public AsyncListenerDispatcher(PathWatcherListener listener, int capacity,
+      QueueFullPolicy policy) {
+    this(listener, capacity, policy, null);
+  }
+
+  /**
+   * Creates the dispatcher and starts its thread
+   * 
+   * @param listener
+   * @param capacity The maximum number of queued events
+   * @param policy
+   * @param metrics Where the listener execution times are recorded, or <code>null</code>
+   */
+  public AsyncListenerDispatcher(PathWatcherListener listener, int capacity,
+      QueueFullPolicy policy, WatcherMetrics metrics) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Queue capacity has to be at least 1");
+    }
+
+    this.listener = listener;
+    this.capacity = capacity;
+    this.policy = policy;
+    this.metrics = metrics;
+
+    queue = new ArrayDeque<Item>();
+    lock = new ReentrantLock();
+    notEmpty = lock.newCondition();
+    notFull = lock.newCondition();
+    dropped = new AtomicLong();
+
+    thread = new Thread(this);
+    thread.setDaemon(true);
+    thread.setName(PathWatcherListener.class.getSimpleName() + "-"
+        + threadCount.incrementAndGet());
+    thread.start();
+  }
+
+  /**
+   * 
+   * 
+   * @return The listener which is notified by this dispatcher
+   */
+  public PathWatcherListener getListener() {
+    return listener;
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of events which have been discarded because the queue was full
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of currently queued events
+   */
+  public int getQueueSize() {
+    lock.lock();
+    try {
+      return queue.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queues an event for the listener
+   * 
+   * @param event
+   */
+  public void dispatch(PathWatcherEvent event) {
+    enqueue(new Item(event, null));
+  }
+
+  /**
+   * Queues the notification about a new watched path for the listener
+   * 
+   * @param path
+   */
+  public void newPathWatched(Path path) {
+    enqueue(new Item(null, path));
+  }
+
+  /**
+   * Stops the dispatcher thread after all queued events have been delivered
+   * 
+   */
+  public void shutdown() {
+    lock.lock();
+    try {
+      shutdown = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @param item
+   */
+  private void enqueue(Item item) {
+    lock.lock();
+    try {
+      if (shutdown) {
+        return;
+      }
+
+      if (queue.size() >= capacity) {
+        switch (policy) {
+          case BLOCK:
+            while (queue.size() >= capacity && !shutdown) {
+              notFull.awaitUninterruptibly();
+            }
+            break;
+          case DROP_OLDEST:
+            queue.poll();
+            dropped.incrementAndGet();
+            break;
+          case OVERFLOW:
+            collapse(item);
+            notEmpty.signal();
+            return;
+          default:
+            break;
+        }
+      }
+
+      queue.add(item);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Replaces all queued events and the new one with one overflow event per path. Notifications
+   * about new watched paths are kept.
+   * 
+   * @param item The new item which did not fit into the queue any more
+   */
+  private void collapse(Item item) {
+    Set<Path> paths = new LinkedHashSet<Path>();
+    ArrayDeque<Item> kept = new ArrayDeque<Item>();
+
+    queue.add(item);
+
+    Iterator<Item> iterator = queue.iterator();
+    while (iterator.hasNext()) {
+      Item i = iterator.next();
+
+      if (i.event == null) {
+        kept.add(i);
+      } else {
+        paths.add(i.event.getPath());
+        dropped.incrementAndGet();
+      }
+    }
+
+    queue.clear();
+    queue.addAll(kept);
+
+    for (Path path : paths) {
+      queue.add(new Item(
+          new PathWatcherEvent(StandardWatchEventKinds.OVERFLOW, path, null, true), null));
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      Item item = null;
+
+      lock.lock();
+      try {
+        while (queue.isEmpty() && !shutdown) {
+          notEmpty.awaitUninterruptibly();
+        }
+
+        if (queue.isEmpty()) {
+          // Shut down and everything delivered
+          return;
+        }
+
+        item = queue.poll();
+        notFull.signal();
+      } finally {
+        lock.unlock();
+      }
+
+      long start = System.nanoTime();
+
+      try {
+        if (item.event == null) {
+          listener.newPathWatched(item.watched);
+        } else {
+          notify(listener, item.event);
+        }
+      } catch (RuntimeException e) {
+        logger.warn("Listener " + listener + " failed to process " + item, e);
+      }
+
+      if (metrics != null && item.event != null) {
+        metrics.recordListenerTime(System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * Calls the listener methods which match the event
+   * 
+   * @param listener
+   * @param event
+   */
+  static void notify(PathWatcherListener listener, PathWatcherEvent event) {
+    if (event.getKind() == PathWatcherEvent.ENTRY_RENAMED) {
+      notifyRenamed(listener, event);
+      return;
+    }
+
+    listener.pathChanged(event.getPath(), event.getContext(), event.isOverflow());
+
+    if (event.getKind() == StandardWatchEventKinds.ENTRY_CREATE) {
+      listener.directoryCreated(event.getPath(), event.getContext());
+    } else if (event.getKind() == StandardWatchEventKinds.ENTRY_DELETE) {
+      listener.directoryDeleted(event.getPath(), event.getContext());
+    } else if (event.getKind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+      listener.directoryModified(event.getPath(), event.getContext());
+    }
+  }
+
+  /**
+   * Notifies the listener about a renamed entry. Listeners which do not handle renames get a
+   * deletion of the old path and a creation of the new path.
+   * 
+   * @param listener
+   * @param event An {@link PathWatcherEvent#ENTRY_RENAMED} event
+   */
+  static void notifyRenamed(PathWatcherListener listener, PathWatcherEvent event) {
+    if (listener instanceof PathWatcherRenameListener) {
+      listener.pathChanged(event.getPath(), event.getContext(), false);
+      ((PathWatcherRenameListener) listener).directoryRenamed(event.getPath(),
+          event.getPrevious(), event.getContext());
+      return;
+    }
+
+    Path previousPath = event.getPrevious().getParent();
+
+    listener.pathChanged(previousPath, event.getPrevious(), false);
+    listener.directoryDeleted(previousPath, event.getPrevious());
+    listener.pathChanged(event.getPath(), event.getContext(), false);
+    listener.directoryCreated(event.getPath(), event.getContext());
+  }
+
+
+  /*************************************************************************
+   * A queued notification, either an event or a new watched path
+   * 
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private static class Item {
+
+    private final PathWatcherEvent event;
+    private final Path watched;
+
+    /**
+     * 
+     * 
+     * @param event
+     * @param watched
+     */
+    public Item(PathWatcherEvent event, Path watched) {
+      this.event = event;
+      this.watched = watched;
+    }
+
+    @Override
+    public String toString() {
+      return event == null ? "new watched path " + watched : event.toString();
+    }
+
+  }
+
+}
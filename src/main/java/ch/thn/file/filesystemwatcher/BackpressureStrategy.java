@@ -0,0 +1,43 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+/**
+ * Defines what a {@link PathWatcherPublisher} does when a subscriber has not requested enough
+ * events and its buffer is full
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public enum BackpressureStrategy {
+
+  /**
+   * Merge the buffered events of each path into one, like the event coalescing of the watcher
+   * does. If there are still too many, they are replaced with one overflow event for each watched
+   * path they belonged to, or with one single overflow event if even that does not fit. Nothing
+   * slows down, but the subscriber gets less detail.
+   */
+  COALESCE,
+
+  /**
+   * Pause the polling watch service until the subscribers have caught up to half of their buffers.
+   * The changes in between are found by the next scan after the pause, merged by the snapshot
+   * comparison. Only available in polling mode. If the scan which was running when the buffer got
+   * full finds more than fits, the buffer is coalesced like with {@link #COALESCE}.
+   */
+  PAUSE_POLLING;
+
+}
@@ -0,0 +1,367 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Decides if a file whose last modified timestamp changed has really been modified, by comparing
+ * a hash of its contents with the hash of the previous contents.<br>
+ * <br>
+ * The hashes are cached per file, together with the size and the last modified timestamp of the
+ * contents they have been computed for. A file whose size changed is modified for sure and is not
+ * hashed at all. Only a file with the same size but a new timestamp is hashed, and it is only
+ * reported if the hash differs. A file without a cached hash can not be compared and is always
+ * reported, but it gets hashed afterwards so that the next touch can be verified.<br>
+ * <br>
+ * The hashing runs on a small pool of its own with a bounded queue, so that it never holds up a
+ * scan. If the queue is full, the file is reported without verification.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+class ContentVerifier {
+
+  private static final Logger logger = LoggerFactory.getLogger(ContentVerifier.class);
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  /**
+   * The number of hash requests which can wait for a hashing thread
+   */
+  private static final int QUEUE_CAPACITY = 1024;
+
+  /**
+   * Files are read and hashed in chunks of this size
+   */
+  private static final int CHUNK_SIZE = 1024 * 1024;
+
+  private final ThreadPoolExecutor pool;
+
+  /**
+   * The last computed fingerprint of each file, least recently used first
+   */
+  private final Map<Path, Fingerprint> cache;
+
+
+  /**
+   * 
+   * 
+   * @param threads The number of hashing threads
+   * @param cacheSize The maximum number of cached hashes. The least recently used hashes are
+   *        dropped first.
+   */
+  public ContentVerifier(int threads, final int cacheSize) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one hashing thread is needed");
+    }
+
+    cache = new LinkedHashMap<Path, Fingerprint>(16, 0.75f, true) {
+      private static final long serialVersionUID = -2851315407717233870L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Path, Fingerprint> eldest) {
+        return size() > cacheSize;
+      }
+    };
+
+    pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setName(ContentVerifier.class.getSimpleName() + "-"
+                + threadCount.incrementAndGet());
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Verifies a file whose last modified timestamp changed
+   * 
+   * @param path
+   * @param lastModified The previously recorded last modified timestamp of the file. A cached hash
+   *        is only used if it has been computed for the contents with this timestamp.
+   * @param modified Called if the contents of the file changed, either right away or from a
+   *        hashing thread
+   */
+  public void verify(final Path path, long lastModified, final Runnable modified) {
+    final Fingerprint previous = getCached(path);
+
+    if (previous == null || previous.lastModified != lastModified) {
+      // Nothing to compare with. Hash it for the next time.
+      modified.run();
+      prime(path);
+      return;
+    }
+
+    try {
+      pool.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          boolean changed = true;
+
+          try {
+            changed = isModified(path, previous);
+          } catch (RuntimeException e) {
+            // Never lose a modification because the file could not be compared
+            logger.debug("Failed to verify " + path, e);
+            forget(path);
+          }
+
+          if (changed) {
+            modified.run();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Too busy to verify
+      modified.run();
+    }
+  }
+
+  /**
+   * Hashes the current contents of a file in the background, so that its next modification can
+   * be verified. Nothing happens if the hashing threads are busy.
+   * 
+   * @param path
+   */
+  public void prime(final Path path) {
+    try {
+      pool.execute(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            fingerprint(path);
+          } catch (IOException | RuntimeException e) {
+            logger.debug("Failed to hash " + path, e);
+            forget(path);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Not cached then
+    }
+  }
+
+  /**
+   * Drops the cached hash of a file, for example because it has been deleted
+   * 
+   * @param path
+   */
+  public void forget(Path path) {
+    synchronized (cache) {
+      cache.remove(path);
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of cached hashes
+   */
+  public int getCacheSize() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /**
+   * Stops the hashing threads. Queued requests are discarded.
+   * 
+   */
+  public void shutdown() {
+    pool.shutdownNow();
+  }
+
+  /**
+   * 
+   * 
+   * @param path
+   * @return The cached fingerprint, or <code>null</code>
+   */
+  private Fingerprint getCached(Path path) {
+    synchronized (cache) {
+      return cache.get(path);
+    }
+  }
+
+  /**
+   * Compares the current contents of a file with a previous fingerprint
+   * 
+   * @param path
+   * @param previous
+   * @return <code>true</code> if the contents differ or can not be compared
+   */
+  private boolean isModified(Path path, Fingerprint previous) {
+    BasicFileAttributes attributes = null;
+
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      // The deletion is reported with the next scan
+      forget(path);
+      return false;
+    } catch (IOException e) {
+      return true;
+    }
+
+    if (!attributes.isRegularFile() || attributes.size() != previous.size) {
+      // No need to hash, and the next modification can not be verified either
+      forget(path);
+      return true;
+    }
+
+    try {
+      Fingerprint current = fingerprint(path);
+      return current == null || current.hash != previous.hash;
+    } catch (IOException | RuntimeException e) {
+      // For example if the file is truncated while it is hashed. Errors of the VM are not
+      // caught.
+      logger.debug("Failed to hash " + path, e);
+      forget(path);
+      return true;
+    }
+  }
+
+  /**
+   * Hashes the contents of a file and caches the result
+   * 
+   * @param path
+   * @return The fingerprint of the current contents, or <code>null</code> if the file is not a
+   *         regular file or changed while it has been hashed
+   * @throws IOException
+   */
+  private Fingerprint fingerprint(Path path) throws IOException {
+    BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class);
+
+    if (!before.isRegularFile()) {
+      return null;
+    }
+
+    long hash = hash(path, before.size());
+
+    BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+
+    if (after.size() != before.size()
+        || after.lastModifiedTime().toMillis() != before.lastModifiedTime().toMillis()) {
+      // Written to while hashing. Nothing reliable to cache.
+      forget(path);
+      return null;
+    }
+
+    Fingerprint fingerprint =
+        new Fingerprint(before.size(), before.lastModifiedTime().toMillis(), hash);
+
+    synchronized (cache) {
+      cache.put(path, fingerprint);
+    }
+
+    return fingerprint;
+  }
+
+  /**
+   * Computes a 64 bit hash of the contents of a file: the CRC32 in the upper and the Adler32 in
+   * the lower half. Both are computed by the JVM with native speed.<br>
+   * The file is read instead of memory mapped. A mapped file which is truncated while it is
+   * hashed makes the native checksum code fail with a SIGBUS, which brings down the whole JVM.
+   * 
+   * @param path
+   * @param size
+   * @return The hash
+   * @throws IOException If the file can not be read or has less than <code>size</code> bytes
+   */
+  long hash(Path path, long size) throws IOException {
+    CRC32 crc = new CRC32();
+    Adler32 adler = new Adler32();
+    ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(CHUNK_SIZE, Math.max(size, 1)));
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long position = 0;
+
+      while (position < size) {
+        buffer.clear();
+        buffer.limit((int)Math.min(buffer.capacity(), size - position));
+
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          throw new IOException("Truncated while hashing " + path);
+        }
+
+        crc.update(buffer.array(), 0, read);
+        adler.update(buffer.array(), 0, read);
+        position += read;
+      }
+    }
+
+    return (crc.getValue() << 32) | adler.getValue();
+  }
+
+
+  /*************************************************************************
+   * The hash of the contents of a file, with the size and timestamp it has been computed for
+   * 
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private static class Fingerprint {
+
+    private final long size;
+    private final long lastModified;
+    private final long hash;
+
+    /**
+     * 
+     * 
+     * @param size
+     * @param lastModified
+     * @param hash
+     */
+    public Fingerprint(long size, long lastModified, long hash) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+
+  }
+
+}
@@ -0,0 +1,546 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A snapshot of the entries of one directory and their last modified timestamps.<br>
+ * A snapshot is taken with one pass over the directory and one attribute read per entry. Two
+ * snapshots of the same directory can then be compared to find the created, modified and deleted
+ * entries, without touching the file system again.<br>
+ * <br>
+ * To keep the heap usage low with millions of files, the entries are not stored as objects but in
+ * columns: a sorted array of (interned) names and a primitive array with the timestamps at the same
+ * index.
+ * 
+ * 
+ * @author Thomas Naeff (github.com/thnaeff)
+ * 
+ */
+class DirectorySnapshot {
+
+  private static final String[] NO_NAMES = new String[0];
+  private static final long[] NO_TIMESTAMPS = new long[0];
+
+  /**
+   * The coarsest last modified timestamp resolution of the common file systems (FAT: 2 seconds).
+   * A directory which has been changed within this time before it has been listed might be changed
+   * again without getting a new timestamp.
+   */
+  static final long TIMESTAMP_GRANULARITY = 2000;
+
+  private final Path directory;
+
+  /**
+   * The entry names, sorted
+   */
+  private String[] names;
+
+  /**
+   * The last modified timestamp of the entry with the same index in {@link #names}
+   */
+  private long[] lastModified;
+
+  /**
+   * The number of used slots in the columns
+   */
+  private int size;
+
+  /**
+   * The last modified timestamp of the directory itself when it has been listed
+   */
+  private long directoryLastModified = -1;
+
+  /**
+   * The size of the directory itself when it has been listed. Most file systems change it when
+   * entries are added or removed.
+   */
+  private long directorySize = -1;
+
+  /**
+   * When the directory has been listed
+   */
+  private long listedAt = 0;
+
+
+  /**
+   * An empty snapshot of the given directory
+   * 
+   * @param directory
+   */
+  public DirectorySnapshot(Path directory) {
+    this.directory = directory;
+
+    names = NO_NAMES;
+    lastModified = NO_TIMESTAMPS;
+    size = 0;
+  }
+
+  /**
+   * Lists the given directory and reads the attributes of each of its entries
+   * 
+   * @param directory
+   * @param fileNameFilter An optional filter. Filtered out entries are not even read.
+   * @param nameTable The table to intern the entry names with, or <code>null</code>
+   * @return The current snapshot of the directory
+   * @throws IOException If the directory could not be listed, for example because it does not
+   *         exist any more
+   */
+  public static DirectorySnapshot read(Path directory, FilenameFilter fileNameFilter,
+      NameTable nameTable) throws IOException {
+    return read(directory, fileNameFilter, nameTable, null);
+  }
+
+  /**
+   * Lists the given directory and reads the attributes of each of its entries
+   * 
+   * @param directory
+   * @param fileNameFilter An optional filter. Filtered out entries are not even read.
+   * @param nameTable The table to intern the entry names with, or <code>null</code>
+   * @param directoryAttributes The attributes of the directory if they have just been read, or
+   *        <code>null</code> to read them
+   * @return The current snapshot of the directory
+   * @throws IOException If the directory could not be listed, for example because it does not
+   *         exist any more
+   */
+  public static DirectorySnapshot read(Path directory, FilenameFilter fileNameFilter,
+      NameTable nameTable, BasicFileAttributes directoryAttributes) throws IOException {
+    return read(directory, fileNameFilter, null, nameTable, directoryAttributes);
+  }
+
+  /**
+   * Lists the given directory and reads the attributes of each of its entries
+   * 
+   * @param directory
+   * @param fileNameFilter An optional filter. Filtered out entries are not even read.
+   * @param pathFilter An optional filter. Excluded entries are not even read, files which are not
+   *        included are left out once their attributes show that they are no directories.
+   * @param nameTable The table to intern the entry names with, or <code>null</code>
+   * @param directoryAttributes The attributes of the directory if they have just been read, or
+   *        <code>null</code> to read them
+   * @return The current snapshot of the directory
+   * @throws IOException If the directory could not be listed, for example because it does not
+   *         exist any more
+   */
+  public static DirectorySnapshot read(Path directory, FilenameFilter fileNameFilter,
+      PathFilter pathFilter, NameTable nameTable, BasicFileAttributes directoryAttributes)
+      throws IOException {
+    // The attributes of the directory are read before listing it, so that changes during the
+    // listing show up with the next check
+    long listedAt = System.currentTimeMillis();
+    if (directoryAttributes == null) {
+      directoryAttributes = Files.readAttributes(directory, BasicFileAttributes.class);
+    }
+
+    if (!directoryAttributes.isDirectory()) {
+      throw new NotDirectoryException(directory.toString());
+    }
+
+    File directoryFile = fileNameFilter == null ? null : directory.toFile();
+    List<String> listed = new ArrayList<String>();
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      for (Path entry : stream) {
+        String name = entry.getFileName().toString();
+
+        if (fileNameFilter != null && !fileNameFilter.accept(directoryFile, name)) {
+          continue;
+        }
+
+        if (pathFilter != null && pathFilter.isExcluded(entry)) {
+          continue;
+        }
+
+        listed.add(name);
+      }
+    }
+
+    String[] names = listed.toArray(new String[listed.size()]);
+    Arrays.sort(names);
+
+    DirectorySnapshot snapshot = new DirectorySnapshot(directory);
+    snapshot.directoryLastModified = directoryAttributes.lastModifiedTime().toMillis();
+    snapshot.directorySize = directoryAttributes.size();
+    snapshot.listedAt = listedAt;
+    snapshot.names = names;
+    snapshot.lastModified = new long[names.length];
+
+    // Read the attributes in sorted order, leaving out the entries which have been deleted since
+    // they have been listed
+    int size = 0;
+    for (String name : names) {
+      Path entry = directory.resolve(name);
+      BasicFileAttributes attributes = readAttributes(entry);
+      if (attributes == null) {
+        continue;
+      }
+
+      if (pathFilter != null && !pathFilter.isIncluded(entry, attributes.isDirectory())) {
+        continue;
+      }
+
+      snapshot.names[size] = nameTable == null ? name : nameTable.intern(name);
+      snapshot.lastModified[size] = attributes.lastModifiedTime().toMillis();
+      size++;
+    }
+
+    snapshot.size = size;
+    snapshot.trim();
+
+    return snapshot;
+  }
+
+  /**
+   * Creates a snapshot from the columns which have been stored by a {@link SnapshotFile}
+   * 
+   * @param directory
+   * @param names The entry names, sorted
+   * @param lastModified The last modified timestamps of the entries
+   * @param directoryLastModified
+   * @param directorySize
+   * @param listedAt
+   * @return The restored snapshot
+   */
+  static DirectorySnapshot restore(Path directory, String[] names, long[] lastModified,
+      long directoryLastModified, long directorySize, long listedAt) {
+    DirectorySnapshot snapshot = new DirectorySnapshot(directory);
+    snapshot.names = names;
+    snapshot.lastModified = lastModified;
+    snapshot.size = names.length;
+    snapshot.directoryLastModified = directoryLastModified;
+    snapshot.directorySize = directorySize;
+    snapshot.listedAt = listedAt;
+
+    return snapshot;
+  }
+
+  /**
+   * Reads the attributes of the given entry. Symbolic links are followed, except for broken links
+   * which are reported with the attributes of the link itself.
+   * 
+   * @param entry
+   * @return The attributes, or <code>null</code> if the entry does not exist (any more)
+   * @throws IOException
+   */
+  static BasicFileAttributes readAttributes(Path entry) throws IOException {
+    try {
+      return Files.readAttributes(entry, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      try {
+        return Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      } catch (NoSuchFileException e2) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @return The directory of this snapshot
+   */
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of entries in this snapshot
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Checks if entries might have been added to or removed from the directory since this snapshot
+   * has been taken. Adding or removing entries changes the last modified timestamp of the
+   * directory, so if neither the timestamp nor the size of the directory changed, there is no need
+   * to list it again. Modified files do not change the timestamp of their directory though.
+   * 
+   * @param directoryAttributes The current attributes of the directory
+   * @return <code>true</code> if the directory is known to have the same entries as recorded
+   */
+  public synchronized boolean isUnchanged(BasicFileAttributes directoryAttributes) {
+    long timestamp = directoryAttributes.lastModifiedTime().toMillis();
+
+    if (timestamp != directoryLastModified || directoryAttributes.size() != directorySize) {
+      return false;
+    }
+
+    // If the directory has been changed right before it has been listed, a further change might
+    // still have the same timestamp. Only trust timestamps which are clearly older than the listing.
+    return timestamp + TIMESTAMP_GRANULARITY < listedAt;
+  }
+
+  /**
+   * 
+   * 
+   * @return A copy of the names of all entries, sorted
+   */
+  public synchronized String[] getNames() {
+    return Arrays.copyOf(names, size);
+  }
+
+  /**
+   * 
+   * 
+   * @param name
+   * @return <code>true</code> if the snapshot has an entry with the given name
+   */
+  public synchronized boolean contains(String name) {
+    return indexOf(name) >= 0;
+  }
+
+  /**
+   * 
+   * 
+   * @param name
+   * @return The recorded last modified timestamp of the entry, or -1 if there is no such entry
+   */
+  public synchronized long getLastModified(String name) {
+    int index = indexOf(name);
+    return index < 0 ? -1 : lastModified[index];
+  }
+
+  /**
+   * Records the last modified timestamp of an entry. The entry is added if it is not in the
+   * snapshot yet.
+   * 
+   * @param name
+   * @param timestamp
+   */
+  public synchronized void update(String name, long timestamp) {
+    int index = indexOf(name);
+
+    if (index >= 0) {
+      lastModified[index] = timestamp;
+      return;
+    }
+
+    // Insert at the sorted position
+    index = -index - 1;
+
+    if (size == names.length) {
+      int capacity = Math.max(4, size + (size >> 1));
+      names = Arrays.copyOf(names, capacity);
+      lastModified = Arrays.copyOf(lastModified, capacity);
+    }
+
+    System.arraycopy(names, index, names, index + 1, size - index);
+    System.arraycopy(lastModified, index, lastModified, index + 1, size - index);
+
+    names[index] = name;
+    lastModified[index] = timestamp;
+    size++;
+  }
+
+  /**
+   * Removes the entry with the given path from the snapshot
+   * 
+   * @param path
+   */
+  public void remove(Path path) {
+    remove(path.getFileName().toString());
+  }
+
+  /**
+   * Removes the entry with the given name from the snapshot
+   * 
+   * @param name
+   * @return <code>true</code> if there was such an entry
+   */
+  public synchronized boolean remove(String name) {
+    int index = indexOf(name);
+
+    if (index < 0) {
+      return false;
+    }
+
+    System.arraycopy(names, index + 1, names, index, size - index - 1);
+    System.arraycopy(lastModified, index + 1, lastModified, index, size - index - 1);
+
+    size--;
+    names[size] = null;
+
+    return true;
+  }
+
+  /**
+   * Compares this snapshot with a previous snapshot of the same directory. An entry counts as
+   * modified if its last modified timestamp is newer than before.
+   * 
+   * @param previous
+   * @return The differences, with the entries of each kind sorted by name
+   */
+  public Diff diff(DirectorySnapshot previous) {
+    Diff diff = new Diff();
+
+    // Both snapshots are sorted by name, so they can be compared in one merging pass
+    synchronized (previous) {
+      synchronized (this) {
+        int i = 0;
+        int j = 0;
+
+        while (i < size || j < previous.size) {
+          int compare = 0;
+          if (i == size) {
+            compare = 1;
+          } else if (j == previous.size) {
+            compare = -1;
+          } else {
+            compare = names[i].compareTo(previous.names[j]);
+          }
+
+          if (compare < 0) {
+            diff.created.add(directory.resolve(names[i]));
+            i++;
+          } else if (compare > 0) {
+            diff.deleted.add(directory.resolve(previous.names[j]));
+            j++;
+          } else {
+            if (previous.lastModified[j] < lastModified[i]) {
+              diff.modified.add(directory.resolve(names[i]));
+            }
+            i++;
+            j++;
+          }
+        }
+      }
+    }
+
+    return diff;
+  }
+
+  /**
+   * Writes this snapshot in the record format of the {@link SnapshotFile}
+   * 
+   * @param out
+   * @throws IOException
+   */
+  synchronized void write(DataOutput out) throws IOException {
+    SnapshotFile.writeString(out, directory.toString());
+    out.writeLong(directoryLastModified);
+    out.writeLong(directorySize);
+    out.writeLong(listedAt);
+    out.writeInt(size);
+
+    for (int i = 0; i < size; i++) {
+      SnapshotFile.writeString(out, names[i]);
+      out.writeLong(lastModified[i]);
+    }
+  }
+
+  /**
+   * A rough estimate of the heap used by this snapshot, without the names which are shared
+   * through the name table
+   * 
+   * @return The estimated number of bytes
+   */
+  public synchronized long estimateBytes() {
+    // Object header and fields, the name references and the timestamps
+    return 56 + NameTable.align(16 + 4L * names.length)
+        + NameTable.align(16 + 8L * lastModified.length);
+  }
+
+  /**
+   * Binary search for the given name
+   * 
+   * @param name
+   * @return The index of the name, or <code>(-(insertion point) - 1)</code> if it is not in the
+   *         snapshot
+   */
+  private int indexOf(String name) {
+    return Arrays.binarySearch(names, 0, size, name);
+  }
+
+  /**
+   * Shrinks the columns to the number of entries
+   * 
+   */
+  private void trim() {
+    if (size < names.length) {
+      names = Arrays.copyOf(names, size);
+      lastModified = Arrays.copyOf(lastModified, size);
+    }
+  }
+
+
+  /*************************************************************************
+   * The differences between two snapshots of a directory
+   * 
+   * 
+   * @author Thomas Naeff (github.com/thnaeff)
+   * 
+   */
+  public static class Diff {
+
+    private final List<Path> created = new ArrayList<Path>();
+    private final List<Path> modified = new ArrayList<Path>();
+    private final List<Path> deleted = new ArrayList<Path>();
+
+    /**
+     * 
+     * 
+     * @return The entries which are new
+     */
+    public List<Path> getCreated() {
+      return created;
+    }
+
+    /**
+     * 
+     * 
+     * @return The entries which have a newer last modified timestamp
+     */
+    public List<Path> getModified() {
+      return modified;
+    }
+
+    /**
+     * 
+     * 
+     * @return The entries which do not exist any more
+     */
+    public List<Path> getDeleted() {
+      return deleted;
+    }
+
+    /**
+     * 
+     * 
+     * @return <code>true</code> if nothing has changed
+     */
+    public boolean isEmpty() {
+      return created.isEmpty() && modified.isEmpty() && deleted.isEmpty();
+    }
+
+  }
+
+}
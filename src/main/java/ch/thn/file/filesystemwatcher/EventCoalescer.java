@@ -0,0 +1,267 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Holds back the events of each path until no new event for it arrived within a quiet window, and
+ * merges the events of a path in the meantime:
+ * <ul>
+ * <li>Repeated modifications are reported as one modification</li>
+ * <li>A creation followed by modifications is reported as one creation</li>
+ * <li>A creation followed by a deletion is not reported at all</li>
+ * <li>A modification followed by a deletion is reported as deletion</li>
+ * <li>A deletion followed by a creation is reported as modification</li>
+ * </ul>
+ * An overflow is never held back. All pending events are released right away in front of it.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+class EventCoalescer {
+
+  private final long quietWindowNanos;
+
+  /**
+   * The pending events by their context path, in the order in which they have been updated last.
+   * The first one is always the next one to be released.
+   */
+  private final LinkedHashMap<Path, Pending> pending;
+
+
+  /**
+   * 
+   * 
+   * @param quietWindow The time in milliseconds without new events for a path before its merged
+   *        event is released
+   */
+  public EventCoalescer(long quietWindow) {
+    this.quietWindowNanos = quietWindow * 1000000;
+
+    // Access ordered, so that looking up a pending event for an update moves it to the end
+    pending = new LinkedHashMap<Path, Pending>(16, 0.75f, true);
+  }
+
+  /**
+   * Adds new events. Overflows and all events pending before them are returned right away, all
+   * other events are held back.
+   * 
+   * @param events
+   * @param now The current {@link System#nanoTime()}
+   * @return The events which are ready to be reported now
+   */
+  public synchronized List<PathWatcherEvent> add(List<PathWatcherEvent> events, long now) {
+    List<PathWatcherEvent> ready = null;
+
+    for (PathWatcherEvent event : events) {
+      if (event.isOverflow() || event.getContext() == null) {
+        if (ready == null) {
+          ready = new ArrayList<PathWatcherEvent>();
+        }
+
+        drainAll(ready);
+        ready.add(event);
+        continue;
+      }
+
+      Pending p = pending.get(event.getContext());
+
+      if (p == null) {
+        pending.put(event.getContext(), new Pending(event, now));
+      } else {
+        Kind<?> merged = merge(p.kind, event.getKind());
+
+        if (merged == null) {
+          // Created and deleted again within the quiet window
+          pending.remove(event.getContext());
+        } else {
+          p.kind = merged;
+          p.lastUpdate = now;
+        }
+      }
+    }
+
+    if (ready == null) {
+      return Collections.emptyList();
+    }
+
+    return ready;
+  }
+
+  /**
+   * Releases all events which have been quiet for the whole window
+   * 
+   * @param now The current {@link System#nanoTime()}
+   * @return The released events, in the order in which they have been updated last
+   */
+  public synchronized List<PathWatcherEvent> flush(long now) {
+    if (pending.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    List<PathWatcherEvent> ready = new ArrayList<PathWatcherEvent>();
+    Iterator<Pending> iterator = pending.values().iterator();
+
+    while (iterator.hasNext()) {
+      Pending p = iterator.next();
+
+      if (now - p.lastUpdate < quietWindowNanos) {
+        // All others have been updated later
+        break;
+      }
+
+      ready.add(p.toEvent());
+      iterator.remove();
+    }
+
+    return ready;
+  }
+
+  /**
+   * Releases all pending events, regardless of the quiet window
+   * 
+   * @return
+   */
+  public synchronized List<PathWatcherEvent> flushAll() {
+    List<PathWatcherEvent> ready = new ArrayList<PathWatcherEvent>();
+    drainAll(ready);
+    return ready;
+  }
+
+  /**
+   * 
+   * 
+   * @return <code>true</code> if there are no pending events
+   */
+  public synchronized boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  /**
+   * 
+   * 
+   * @param now The current {@link System#nanoTime()}
+   * @return The time in milliseconds until the next pending event is released, or -1 if there are
+   *         no pending events
+   */
+  public synchronized long getDelay(long now) {
+    if (pending.isEmpty()) {
+      return -1;
+    }
+
+    // The first one has been updated the longest time ago
+    long oldest = pending.values().iterator().next().lastUpdate;
+
+    long remaining = quietWindowNanos - (now - oldest);
+
+    // Round up, to not wake up right before the event is due
+    return Math.max(0, (remaining + 999999) / 1000000);
+  }
+
+  /**
+   * 
+   * 
+   * @param ready
+   */
+  private void drainAll(List<PathWatcherEvent> ready) {
+    for (Pending p : pending.values()) {
+      ready.add(p.toEvent());
+    }
+
+    pending.clear();
+  }
+
+  /**
+   * Merges the pending kind of a path with the kind of a new event
+   * 
+   * @param before
+   * @param after
+   * @return The merged kind, or <code>null</code> if both events cancel each other out
+   */
+  static Kind<?> merge(Kind<?> before, Kind<?> after) {
+    if (before == StandardWatchEventKinds.ENTRY_CREATE) {
+      if (after == StandardWatchEventKinds.ENTRY_DELETE) {
+        return null;
+      }
+      return StandardWatchEventKinds.ENTRY_CREATE;
+    }
+
+    if (before == StandardWatchEventKinds.ENTRY_DELETE) {
+      if (after == StandardWatchEventKinds.ENTRY_DELETE) {
+        return StandardWatchEventKinds.ENTRY_DELETE;
+      }
+      // Deleted and created again -> it has been replaced
+      return StandardWatchEventKinds.ENTRY_MODIFY;
+    }
+
+    // Modified before
+    return after;
+  }
+
+
+  /*************************************************************************
+   * The merged state of the events of one path
+   * 
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private static class Pending {
+
+    private final Path path;
+    private final Path context;
+    private Kind<?> kind;
+    private long lastUpdate;
+
+    /**
+     * When the first of the merged changes has been detected
+     */
+    private final long detected;
+
+    /**
+     * 
+     * 
+     * @param event
+     * @param now
+     */
+    public Pending(PathWatcherEvent event, long now) {
+      this.path = event.getPath();
+      this.context = event.getContext();
+      this.kind = event.getKind();
+      this.lastUpdate = now;
+      this.detected = event.getDetected();
+    }
+
+    /**
+     * 
+     * 
+     * @return
+     */
+    public PathWatcherEvent toEvent() {
+      return new PathWatcherEvent(kind, path, context, false, detected);
+    }
+
+  }
+
+}
@@ -22,23 +22,36 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
 
 /**
  * The file system watcher watches one or multiple directories for changes. This can be file or
@@ -54,22 +67,146 @@ public class FileSystemWatcher extends ControlledRunnable {
 
   private static final Logger logger = LoggerFactory.getLogger(FileSystemWatcher.class);
 
+  /**
+   * The maximum number of keys which are collected into one batch of events
+   */
+  private static final int MAX_KEYS_PER_BATCH = 1024;
+
+  /**
+   * Every how many registered directories a {@link PathRegistrationListener} is notified about the
+   * progress
+   */
+  public static final int REGISTRATION_PROGRESS_INTERVAL = 1000;
+
+  /**
+   * The time in milliseconds for which the entries reported while directories are registered are
+   * remembered to drop duplicate creations. Twice the polling time if that is longer.
+   */
+  private static final long LISTED_ENTRY_WINDOW = 1000;
+
+  /**
+   * The longest time in milliseconds the watcher waits for a key while directories are registered,
+   * before it reports the entries they found
+   */
+  private static final long LISTED_ENTRY_INTERVAL = 20;
+
   private WatchService watcher = null;
 
+  /**
+   * The watch services of the sharded mode, the first one being {@link #watcher}. Each one has
+   * its own thread which collects the events of its keys.
+   */
+  private volatile Shard[] shards = null;
+
+  /**
+   * The events collected by the shards, in the order in which they have been collected
+   */
+  private LinkedBlockingDeque<ShardBatch> shardBatches = null;
+
   private boolean usePolling = false;
 
   /**
-   * Currently watched paths and their watch keys to identify them
+   * Currently watched paths with their watch keys and the flag which defines if all their
+   * children should be added to the watch list or not
+   */
+  private PathRegistry<WatchedPath> watchedPaths = null;
+
+  /**
+   * Listeners can be added and removed by any thread while events are reported. Each notification
+   * goes to the listeners which are there when it starts.
+   */
+  private CopyOnWriteArrayList<PathWatcherListener> listeners = null;
+
+  private CopyOnWriteArrayList<PathWatcherBatchListener> batchListeners = null;
+
+  /**
+   * The listeners which are notified asynchronously, each with its own dispatcher
+   */
+  private ConcurrentHashMap<PathWatcherListener, AsyncListenerDispatcher> asyncListeners = null;
+
+  /**
+   * The optional stage which merges the events of a path before they are reported
+   */
+  private volatile EventCoalescer coalescer = null;
+
+  /**
+   * The optional stage which pairs deletions and creations into renames
+   */
+  private volatile RenameCorrelator renameCorrelator = null;
+
+  private WatcherMetrics metrics = null;
+
+  /**
+   * If set, each directory watched by the java watch service has a snapshot of its entries, to
+   * find out what has changed when events have been lost
+   */
+  private volatile boolean overflowRecovery = false;
+
+  /**
+   * The snapshots of the watched directories if overflow recovery is enabled
+   */
+  private SnapshotStore snapshots = null;
+
+  /**
+   * The number of threads which register directory trees
+   */
+  private int registrationParallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The pool which walks and registers directory trees, created when it is needed
+   */
+  private ForkJoinPool registrationPool = null;
+
+  /**
+   * If set, the entries of new directories are reported as created once the new directory is
+   * being watched
+   */
+  private volatile boolean reportNewDirectoryContents = false;
+
+  private FilenameFilter fileNameFilter = null;
+
+  /**
+   * Excluded directories are not registered, excluded and not included entries not reported
+   */
+  private volatile PathFilter pathFilter = null;
+
+  /**
+   * The notifications of the listeners, in the order in which they have been requested. They are
+   * requested by the watcher thread and the registration threads. The thread which finds no other
+   * notification pending delivers them until there are none left, so the listeners are only
+   * notified by one thread at a time without any thread waiting for a lock.
+   */
+  private final ConcurrentLinkedQueue<Runnable> notifications =
+      new ConcurrentLinkedQueue<Runnable>();
+
+  /**
+   * The number of notifications which have been requested and not delivered yet
+   */
+  private final AtomicInteger pendingNotifications = new AtomicInteger();
+
+  /**
+   * The entries found by the registrations which have to be reported as created. They are
+   * reported by the watcher thread, so that they pass the same stages as the events of the watch
+   * service.
    */
-  private HashMap<WatchKey, Path> keys = null;
+  private final ConcurrentLinkedQueue<List<PathWatcherEvent>> listedEntries =
+      new ConcurrentLinkedQueue<List<PathWatcherEvent>>();
 
   /**
-   * For each path there is a flag which defines if all its children should be added to the watch
-   * list or not
+   * The number of running registrations which report the entries they find
    */
-  private HashMap<WatchKey, Boolean> allChildren = null;
+  private final AtomicInteger listingRegistrations = new AtomicInteger();
 
-  private ArrayList<PathWatcherListener> listeners = null;
+  /**
+   * Drops the creations which are reported both by a registration and the watch service. Only
+   * used by the watcher thread.
+   */
+  private ListedEntryFilter listedEntryFilter = null;
+
+  /**
+   * If set, each listener is notified on its own virtual thread
+   */
+  private volatile VirtualThreadExecutor virtualDispatcher = null;
 
 
   /**
@@ -103,6 +240,7 @@ public class FileSystemWatcher extends ControlledRunnable {
 
     // Use polling if polling time is set
     usePolling = pollingTime != 0;
+    this.fileNameFilter = fileNameFilter;
 
     if (usePolling) {
       PollingWatchService w = new PollingWatchService(pollingTime, fileNameFilter);
@@ -113,6 +251,7 @@ public class FileSystemWatcher extends ControlledRunnable {
       t.setName(PollingWatchService.class.getSimpleName());
 
       watcher = w;
+      metrics = w.getMetrics();
     } else {
       try {
         watcher = FileSystems.getDefault().newWatchService();
@@ -121,331 +260,1462 @@ public class FileSystemWatcher extends ControlledRunnable {
       } catch (UnsupportedOperationException e) {
         throw new PathWatcherError("File system seems not to support file system watching", e);
       }
+
+      metrics = new WatcherMetrics();
     }
 
-    keys = new HashMap<WatchKey, Path>();
-    allChildren = new HashMap<WatchKey, Boolean>();
-    listeners = new ArrayList<PathWatcherListener>();
+    watchedPaths = new PathRegistry<WatchedPath>();
+    listeners = new CopyOnWriteArrayList<PathWatcherListener>();
+    batchListeners = new CopyOnWriteArrayList<PathWatcherBatchListener>();
+    asyncListeners = new ConcurrentHashMap<PathWatcherListener, AsyncListenerDispatcher>();
+    snapshots = new SnapshotStore();
+    listedEntryFilter = new ListedEntryFilter(Math.max(LISTED_ENTRY_WINDOW, 2 * pollingTime));
 
   }
 
   /**
-   * Returns an unmodifiable collection of all paths which are currently being watched
+   * Returns the polling watch service if this watcher has been constructed with a polling time,
+   * for example to configure its parallelism.
    * 
-   * @return
+   * @return The polling watch service, or <code>null</code> if the java file system watch service
+   *         is used
    */
-  public Collection<Path> getWatchedPaths() {
-    return Collections.unmodifiableCollection(keys.values());
+  public PollingWatchService getPollingWatchService() {
+    return usePolling ? (PollingWatchService) watcher : null;
   }
 
   /**
-   * Adds a {@link PathWatcherListener} which is notified when an event occurs
+   * Returns the metrics of this watcher, with the polling cycles of the polling watch service if
+   * it is used. See {@link WatcherMetrics#registerMBean(String)} to publish them to JMX.
    * 
-   * @param l
+   * @return The metrics
    */
-  public void addPathWatcherListener(PathWatcherListener l) {
-    listeners.add(l);
+  public WatcherMetrics getMetrics() {
+    return metrics;
   }
 
   /**
-   * Removes a {@link PathWatcherListener}
+   * Enables or disables event coalescing. With coalescing, the events of a path are held back
+   * until no new event for that path arrived within the quiet window. Meanwhile repeated
+   * modifications are merged into one, a creation followed by modifications is reported as one
+   * creation and a creation followed by a deletion is not reported at all. One file being written
+   * like this results in one event instead of dozens.<br>
+   * Coalescing should be configured before the watcher is started.
    * 
-   * @param l
+   * @param quietWindow The time in milliseconds without new events for a path before its events
+   *        are reported. 0 disables coalescing.
    */
-  public void removePathWatcherListener(PathWatcherListener l) {
-    listeners.remove(l);
+  public void setCoalescing(long quietWindow) {
+    if (quietWindow < 0) {
+      throw new IllegalArgumentException("Quiet window can not be negative");
+    }
+
+    coalescer = quietWindow > 0 ? new EventCoalescer(quietWindow) : null;
   }
 
   /**
-   * Fires the listener method which matches the current event
+   * Enables or disables rename detection. Both the java watch service and the polling watch
+   * service report a renamed or moved entry as a deletion and an unrelated creation. With rename
+   * detection, the deletion of an entry is held back for the rename window, and if an entry with
+   * the same file key (the inode on unix file systems) and size is created within the window,
+   * both are reported as one {@link PathWatcherEvent#ENTRY_RENAMED} event. This works for renames
+   * within a directory and moves between watched directories. See
+   * {@link PathWatcherRenameListener} for how the listeners are notified.<br>
+   * <br>
+   * A deleted entry can not be read any more, so the file keys of the entries have to be known
+   * before. They are read when a directory is registered and when an entry is created or
+   * modified, which costs one attribute read per entry. Deletions are reported up to one window
+   * later. File systems without file keys do not report renames.<br>
+   * Rename detection should be configured before the paths are registered.
    * 
-   * @param eventKind
-   * @param path
-   * @param context
-   * @param overflow
+   * @param window The time in milliseconds a deletion waits for the matching creation. 0 disables
+   *        rename detection.
+   * @param capacity The maximum number of entries whose file keys are remembered. Renames of
+   *        entries which have been forgotten are reported as deletion and creation.
    */
-  public void firePathWatcherListener(Kind<?> eventKind, Path path, Path context,
-      boolean overflow) {
-
-    for (PathWatcherListener l : listeners) {
-      l.pathChanged(path, context, overflow);
-    }
-
-    if (eventKind == StandardWatchEventKinds.ENTRY_CREATE) {
-      for (PathWatcherListener l : listeners) {
-        l.directoryCreated(path, context);
-      }
-    } else if (eventKind == StandardWatchEventKinds.ENTRY_DELETE) {
-      for (PathWatcherListener l : listeners) {
-        l.directoryDeleted(path, context);
-      }
-    } else if (eventKind == StandardWatchEventKinds.ENTRY_MODIFY) {
-      for (PathWatcherListener l : listeners) {
-        l.directoryModified(path, context);
-      }
+  public void setRenameDetection(long window, int capacity) {
+    if (window < 0) {
+      throw new IllegalArgumentException("Rename window can not be negative");
     }
 
+    renameCorrelator = window > 0 ? new RenameCorrelator(window, capacity) : null;
   }
 
   /**
    * 
    * 
-   * @param path
+   * @return <code>true</code> if renamed entries are reported as such
    */
-  public void fireNewPathWatched(Path path) {
-
-    for (PathWatcherListener l : listeners) {
-      l.newPathWatched(path);
-    }
-
+  public boolean isRenameDetection() {
+    return renameCorrelator != null;
   }
 
   /**
+   * Sets the include and exclude rules for the watched paths. An excluded directory, like
+   * <code>.git</code> or <code>node_modules</code>, is not registered when its parent is
+   * registered with all its children, so neither it nor anything below it is watched. Events of
+   * excluded entries and of files which do not match the includes are dropped before they reach
+   * the coalescing, the rename detection and the listeners. In polling mode, excluded entries are
+   * not even read while scanning. See {@link PathFilter} for the rules.<br>
+   * The filter should be set before the paths are registered. Directories which are watched
+   * already stay watched.
    * 
+   * @param pathFilter The filter, or <code>null</code> to watch and report everything
    */
-  public void clearAllRegisteredPaths() {
-    // Cancel all old keys
-    for (WatchKey k : keys.keySet()) {
-      k.cancel();
-    }
-
-    keys.clear();
+  public void setPathFilter(PathFilter pathFilter) {
+    this.pathFilter = pathFilter;
 
+    if (usePolling) {
+      ((PollingWatchService) watcher).setPathFilter(pathFilter);
+    }
   }
 
   /**
-   * Adds a new path to the list of watched paths. If a path to a file is given, its parent
-   * directory is registered instead because only directories can be watched.
    * 
    * 
-   * @param path
-   * @param allChildren If set to <code>true</code>, all child directories are registered too
-   * @param allParents If set to <code>true</code>, all parent directories are registered too
-   * @return
+   * @return The include and exclude rules for the watched paths, or <code>null</code>
    */
-  public boolean registerPath(Path path, boolean allChildren, boolean allParents) {
-    File f = path.toFile();
+  public PathFilter getPathFilter() {
+    return pathFilter;
+  }
 
-    if (f.isFile()) {
-      // The path exists and it is a file -> get its parent directory
-      path = path.getParent();
-    } else if (!f.exists()) {
-      // The path is not a file and does not exist
-      // logger.warn("Failed to register " + path + ". Path does not exist.");
-      return false;
+  /**
+   * Sets the number of threads which walk and register directory trees, when paths are registered
+   * with all their children and when new directories have been created in such a path.
+   * 
+   * @param parallelism The number of registration threads, at least 1
+   */
+  public synchronized void setRegistrationParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism has to be at least 1");
     }
 
-    if (!allChildren && !allParents) {
-      return register(path, false);
-    } else {
-      if (allChildren) {
-        registerAllChildren(path);
-      }
+    registrationParallelism = parallelism;
 
-      if (allParents) {
-        registerAllParents(path);
-      }
+    if (registrationPool != null) {
+      // Running registrations finish in the old pool
+      registrationPool.shutdown();
+      registrationPool = null;
     }
-
-    return true;
   }
 
   /**
-   * Adds a new path to the list of watched paths. If a path to a file is given, its parent
-   * directory is registered instead because only directories can be watched.
    * 
    * 
-   * @param path
-   * @param allChildren If set to <code>true</code>, all child directories are registered too
-   * @param allParents If set to <code>true</code>, all parent directories are registered too
-   * @return
+   * @return The number of threads which walk and register directory trees
    */
-  public boolean registerPath(String path, boolean allChildren, boolean allParents) {
-    return registerPath(Paths.get(path), allChildren, allParents);
+  public synchronized int getRegistrationParallelism() {
+    return registrationParallelism;
   }
 
   /**
-   * Adds a new path to the list of watched paths.
+   * Enables or disables the virtual thread mode (Java 21 or later). The events of a batch are
+   * delivered to each listener and batch listener on its own virtual thread, so that a slow
+   * listener does not hold up the others. Each listener still gets the events in order, and the
+   * next batch is only delivered once all listeners are done with the current one. In polling
+   * mode, the directories are also scanned on virtual threads, see
+   * {@link PollingWatchService#setVirtualThreads(int)}. Asynchronous listeners keep their own
+   * threads.<br>
+   * <br>
+   * A listener which blocks, for example on I/O, while it holds a monitor pins the platform thread
+   * of its virtual thread (up to Java 23). Such listeners should use the locks of
+   * <code>java.util.concurrent.locks</code> instead.
    * 
-   * @param path
-   * @return
+   * @param maxConcurrency The maximum number of listeners which are notified at the same time,
+   *        and of directories which are scanned at the same time. 0 disables virtual threads.
+   * @throws UnsupportedOperationException If the java version has no virtual threads
    */
-  public boolean registerPath(String path) {
-    return registerPath(path, false, false);
+  public void setVirtualThreads(int maxConcurrency) {
+    if (maxConcurrency < 0) {
+      throw new IllegalArgumentException("Concurrency can not be negative");
+    }
+
+    if (usePolling) {
+      ((PollingWatchService) watcher).setVirtualThreads(maxConcurrency);
+    }
+
+    virtualDispatcher = maxConcurrency > 0
+        ? new VirtualThreadExecutor(FileSystemWatcher.class.getSimpleName(), maxConcurrency)
+        : null;
   }
 
   /**
-   * Adds a new path to the list of watched paths.
    * 
-   * @param path
-   * @return
+   * 
+   * @return <code>true</code> if the listeners are notified on virtual threads
    */
-  public boolean registerPath(Path path) {
-    return registerPath(path, false, false);
+  public boolean isVirtualThreads() {
+    return virtualDispatcher != null;
   }
 
   /**
-   * Registers the given path for all the events
+   * Spreads the watched directories across multiple java watch services. Each directory is
+   * assigned to one of them by the hash of its path. Each watch service has its own thread which
+   * takes its keys and collects their events, including the filtering, the overflow recovery and
+   * finding the new directories. The watcher thread only merges what the shards collected and
+   * reports it, so the intake of events scales across cores when many files change at once. The
+   * events of a directory are always collected by the same thread and reported in the order in
+   * which they occurred. There is no defined order between the events of directories in
+   * different shards.<br>
+   * Sharding has to be configured before any path is registered. It is not available in polling
+   * mode.
    * 
-   * @param dir
-   * @param allChildren
-   * @return
-   * @throws IOException
+   * @param count The number of watch services. 1 (the default) uses one watch service which is
+   *        drained by the watcher thread itself.
+   * @throws IllegalStateException If polling is used or paths have been registered already
    */
-  private boolean register(Path dir, boolean allChildren) {
+  public synchronized void setWatchServiceShards(int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("At least one watch service is needed");
+    }
 
-    WatchKey key = null;
+    if (usePolling) {
+      throw new IllegalStateException("Sharding is not available in polling mode");
+    }
 
-    try {
-      if (usePolling) {
-        key = ((PollingWatchService) watcher).register(dir);
-      } else {
-        key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
-            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    if (!watchedPaths.isEmpty()) {
+      throw new IllegalStateException("Sharding has to be configured before paths are registered");
+    }
+
+    Shard[] old = shards;
+    shards = null;
+
+    if (old != null) {
+      // Nothing is registered in them. The first one is the watcher, which is kept.
+      for (int i = 1; i < old.length; i++) {
+        old[i].close();
       }
-    } catch (Exception e) {
-      throw new PathWatcherError("Failed to register path "
-          + dir, e);
     }
 
-    // If its the same one it will just be updated
-    keys.put(key, dir);
-    this.allChildren.put(key, allChildren);
+    if (count == 1) {
+      return;
+    }
 
-    fireNewPathWatched(dir);
+    Shard[] s = new Shard[count];
+    s[0] = new Shard(watcher);
 
-    return true;
+    for (int i = 1; i < count; i++) {
+      try {
+        s[i] = new Shard(FileSystems.getDefault().newWatchService());
+      } catch (IOException e) {
+        for (int j = 1; j < i; j++) {
+          s[j].close();
+        }
+        throw new PathWatcherError("Failed to construct new watch service", e);
+      }
+    }
+
+    shardBatches = new LinkedBlockingDeque<ShardBatch>();
+
+    // The shards collect events as soon as paths are registered, whether the watcher runs or not
+    for (int i = 0; i < count; i++) {
+      Thread t = new Thread(s[i]);
+      t.setDaemon(true);
+      t.setName(FileSystemWatcher.class.getSimpleName() + "-shard-" + i);
+      t.start();
+    }
+
+    shards = s;
   }
 
   /**
-   * Walks through the file tree and registers all child paths
    * 
-   * @param path
-   * @throws IOException
+   * 
+   * @return The number of java watch services the watched directories are spread across
    */
-  private void registerAllChildren(Path path) {
+  public int getWatchServiceShards() {
+    Shard[] s = shards;
+    return s == null ? 1 : s.length;
+  }
 
-    try {
-      Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
-        @Override
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-          try {
-            register(dir, true);
-          } catch (Exception e) {
-            logger.warn("Failed to recursively register child path "
-                + dir, e);
-          }
-          return FileVisitResult.CONTINUE;
-        }
-      });
-    } catch (IOException e) {
-      logger.warn("Failed to recursively register path and children of "
-          + path, e);
-    }
+  /**
+   * Enables or disables the reporting of the contents of new directories. A directory which is
+   * created in a path watched with all its children is registered only after its creation has
+   * been reported. Entries which are created in it before that, for example when a whole directory
+   * tree is copied or unpacked, would never be reported. With this option enabled, every
+   * directory of the new tree is listed after it is being watched, and its entries are reported
+   * as created. Entries which are created right while the directory is registered may be reported
+   * twice, but none is missed.
+   * 
+   * @param reportNewDirectoryContents
+   */
+  public void setReportNewDirectoryContents(boolean reportNewDirectoryContents) {
+    this.reportNewDirectoryContents = reportNewDirectoryContents;
+  }
 
+  /**
+   * 
+   * 
+   * @return <code>true</code> if the entries of new directories are reported as created
+   */
+  public boolean isReportNewDirectoryContents() {
+    return reportNewDirectoryContents;
   }
 
   /**
-   * Walks upwards through the file tree and registers all parent paths
+   * Enables or disables the overflow recovery of the java watch service. If the watch service
+   * can not keep up, it discards the events of a directory and reports an overflow instead. With
+   * overflow recovery, the watcher keeps a snapshot of the entries and their last modified
+   * timestamps of each watched directory. The snapshot is kept up to date with the reported
+   * events, and if an overflow is reported, only the affected directory is listed again and the
+   * exact creations, modifications and deletions since the snapshot are reported instead of the
+   * overflow.<br>
+   * This costs one listing per directory when it is registered and reading the attributes of
+   * each created or modified entry. The polling watch service does not lose events, so it is not
+   * affected by this setting.<br>
+   * Overflow recovery should be enabled before the paths are registered. Directories registered
+   * before have no snapshot and still report overflows.
    * 
-   * @param path
-   * @throws IOException
+   * @param overflowRecovery
    */
-  private void registerAllParents(Path path) {
-    Path p = path;
+  public void setOverflowRecovery(boolean overflowRecovery) {
+    this.overflowRecovery = overflowRecovery;
 
-    while (p != null) {
-      try {
-        register(p, false);
-      } catch (Exception e) {
-        logger.warn("Failed to recursively register parent path "
-            + path, e);
-      }
-      p = p.getParent();
+    if (!overflowRecovery) {
+      snapshots.clear();
     }
+  }
 
+  /**
+   * 
+   * 
+   * @return <code>true</code> if overflows of the java watch service are resolved into the exact
+   *         events
+   */
+  public boolean isOverflowRecovery() {
+    return overflowRecovery;
   }
 
+  /**
+   * Returns an unmodifiable collection of all paths which are currently being watched
+   * 
+   * @return
+   */
+  public Collection<Path> getWatchedPaths() {
+    return Collections.unmodifiableCollection(watchedPaths.getPaths());
+  }
 
-  @SuppressWarnings("unchecked")
-  static <T> WatchEvent<T> cast(WatchEvent<?> event) {
-    return (WatchEvent<T>) event;
+  /**
+   * Adds a {@link PathWatcherListener} which is notified when an event occurs
+   * 
+   * @param l
+   */
+  public void addPathWatcherListener(PathWatcherListener l) {
+    listeners.add(l);
   }
 
+  /**
+   * Adds a {@link PathWatcherListener} which is notified asynchronously on its own thread. The
+   * events for the listener are queued, so that a slow listener neither holds up the detection of
+   * changes nor the other listeners. The listener still gets the events in the order in which they
+   * occurred.
+   * 
+   * @param l
+   * @param queueCapacity The maximum number of events which are queued for the listener
+   * @param policy What to do if the queue is full
+   */
+  public void addPathWatcherListener(PathWatcherListener l, int queueCapacity,
+      QueueFullPolicy policy) {
+    AsyncListenerDispatcher old =
+        asyncListeners.put(l, new AsyncListenerDispatcher(l, queueCapacity, policy, metrics));
+
+    if (old != null) {
+      old.shutdown();
+    }
+  }
+
+  /**
+   * Removes a {@link PathWatcherListener}. If it is notified asynchronously, the events which are
+   * already queued are still delivered.
+   * 
+   * @param l
+   */
+  public void removePathWatcherListener(PathWatcherListener l) {
+    listeners.remove(l);
+
+    AsyncListenerDispatcher dispatcher = asyncListeners.remove(l);
+    if (dispatcher != null) {
+      dispatcher.shutdown();
+    }
+  }
+
+  /**
+   * Adds a {@link PathWatcherBatchListener} which is notified with all events which have been
+   * detected together
+   * 
+   * @param l
+   */
+  public void addPathWatcherBatchListener(PathWatcherBatchListener l) {
+    batchListeners.add(l);
+  }
+
+  /**
+   * Removes a {@link PathWatcherBatchListener}
+   * 
+   * @param l
+   */
+  public void removePathWatcherBatchListener(PathWatcherBatchListener l) {
+    batchListeners.remove(l);
+  }
+
+  /**
+   * Fires the listener method which matches the current event. Like all notifications, it is
+   * delivered by one thread at a time and after the ones which have been requested before.
+   * 
+   * @param eventKind
+   * @param path
+   * @param context
+   * @param overflow
+   */
+  public void firePathWatcherListener(final Kind<?> eventKind, final Path path,
+      final Path context, final boolean overflow) {
+
+    notifyListeners(new Runnable() {
+
+      @Override
+      public void run() {
+        notifyPathWatcherListeners(eventKind, path, context, overflow);
+      }
+    });
+
+  }
+
+  /**
+   * Calls the listener method which matches the event. Only called while delivering a
+   * notification, see {@link #notifyListeners(Runnable)}.
+   * 
+   * @param eventKind
+   * @param path
+   * @param context
+   * @param overflow
+   */
+  private void notifyPathWatcherListeners(Kind<?> eventKind, Path path, Path context,
+      boolean overflow) {
+
+    long start = System.nanoTime();
+
+    for (PathWatcherListener l : listeners) {
+      l.pathChanged(path, context, overflow);
+    }
+
+    if (eventKind == StandardWatchEventKinds.ENTRY_CREATE) {
+      for (PathWatcherListener l : listeners) {
+        l.directoryCreated(path, context);
+      }
+    } else if (eventKind == StandardWatchEventKinds.ENTRY_DELETE) {
+      for (PathWatcherListener l : listeners) {
+        l.directoryDeleted(path, context);
+      }
+    } else if (eventKind == StandardWatchEventKinds.ENTRY_MODIFY) {
+      for (PathWatcherListener l : listeners) {
+        l.directoryModified(path, context);
+      }
+    }
+
+    if (!listeners.isEmpty()) {
+      metrics.recordListenerTime(System.nanoTime() - start);
+    }
+
+    if (!asyncListeners.isEmpty()) {
+      PathWatcherEvent event = new PathWatcherEvent(eventKind, path, context, overflow);
+
+      for (AsyncListenerDispatcher d : asyncListeners.values()) {
+        d.dispatch(event);
+      }
+    }
+
+  }
+
+  /**
+   * Fires the listener methods for a renamed entry. Listeners which do not handle renames are
+   * notified about a deletion and a creation.
+   * 
+   * @param event An {@link PathWatcherEvent#ENTRY_RENAMED} event
+   */
+  private void fireRenamed(PathWatcherEvent event) {
+
+    long start = System.nanoTime();
+
+    for (PathWatcherListener l : listeners) {
+      AsyncListenerDispatcher.notifyRenamed(l, event);
+    }
+
+    if (!listeners.isEmpty()) {
+      metrics.recordListenerTime(System.nanoTime() - start);
+    }
+
+    for (AsyncListenerDispatcher d : asyncListeners.values()) {
+      d.dispatch(event);
+    }
+
+  }
+
+  /**
+   * Fires the listener method for a new watched path. Directories are registered by several
+   * threads, but the listeners are only notified by one at a time.
+   * 
+   * @param path
+   */
+  public void fireNewPathWatched(final Path path) {
+
+    notifyListeners(new Runnable() {
+
+      @Override
+      public void run() {
+        for (PathWatcherListener l : listeners) {
+          l.newPathWatched(path);
+        }
+
+        for (AsyncListenerDispatcher d : asyncListeners.values()) {
+          d.newPathWatched(path);
+        }
+      }
+    });
+
+  }
+
+  /**
+   * Delivers a notification of the listeners after the ones which have been requested before. If
+   * another thread is delivering already, that thread delivers this one too and this method
+   * returns right away.
+   * 
+   * @param notification
+   */
+  private void notifyListeners(Runnable notification) {
+    notifications.add(notification);
+
+    if (pendingNotifications.getAndIncrement() != 0) {
+      return;
+    }
+
+    do {
+      Runnable next = notifications.poll();
+
+      try {
+        next.run();
+      } catch (RuntimeException e) {
+        // The notifications after it are still delivered
+        logger.warn("A listener failed to process its notification", e);
+      }
+    } while (pendingNotifications.decrementAndGet() != 0);
+  }
+
+  /**
+   * 
+   */
+  public void clearAllRegisteredPaths() {
+    // Cancel all old keys
+    for (WatchedPath w : watchedPaths.getValues()) {
+      cancel(w.key);
+    }
+
+    watchedPaths.clear();
+    snapshots.clear();
+    metrics.setRegisteredPaths(0);
+
+  }
+
+  /**
+   * Cancels a key. The key of a watch service which is being closed, like the one of a shard
+   * while the watcher stops, is cancelled by the closing already.
+   * 
+   * @param key
+   */
+  private void cancel(WatchKey key) {
+    try {
+      key.cancel();
+    } catch (ClosedWatchServiceException e) {
+      // Cancelled by closing the watch service
+    }
+  }
+
+  /**
+   * Removes a path from the list of watched paths. Its watch key is cancelled and the events
+   * which have not been reported yet are discarded. Only the given path and the paths below it
+   * are touched, so this takes time in proportion to the size of the sub tree, not to the number
+   * of all watched paths.<br>
+   * A directory of the sub tree which is still being registered in the background might be
+   * registered again after this method returned.
+   * 
+   * @param path
+   * @param recursive If set to <code>true</code>, all watched paths below the path are removed too
+   * @return <code>true</code> if at least one path has been removed
+   */
+  public boolean unregisterPath(Path path, boolean recursive) {
+    Collection<WatchedPath> removed = null;
+
+    if (recursive) {
+      removed = watchedPaths.removeSubtree(path).values();
+      snapshots.removeSubtree(path);
+    } else {
+      WatchedPath watched = watchedPaths.remove(path);
+      removed = watched == null ? Collections.<WatchedPath>emptyList()
+          : Collections.singletonList(watched);
+      snapshots.remove(path);
+    }
+
+    if (usePolling) {
+      ((PollingWatchService) watcher).unregister(path, recursive);
+    }
+
+    for (WatchedPath w : removed) {
+      cancel(w.key);
+    }
+
+    metrics.setRegisteredPaths(watchedPaths.size());
+
+    return !removed.isEmpty();
+  }
+
+  /**
+   * Adds a new path to the list of watched paths. If a path to a file is given, its parent
+   * directory is registered instead because only directories can be watched.
+   * 
+   * 
+   * @param path
+   * @param allChildren If set to <code>true</code>, all child directories are registered too
+   * @param allParents If set to <code>true</code>, all parent directories are registered too
+   * @return
+   */
+  public boolean registerPath(Path path, boolean allChildren, boolean allParents) {
+    File f = path.toFile();
+
+    if (f.isFile()) {
+      // The path exists and it is a file -> get its parent directory
+      path = path.getParent();
+    } else if (!f.exists()) {
+      // The path is not a file and does not exist
+      // logger.warn("Failed to register " + path + ". Path does not exist.");
+      return false;
+    }
+
+    if (!allChildren && !allParents) {
+      return register(path, false);
+    } else {
+      if (allChildren) {
+        registerAllChildren(path);
+      }
+
+      if (allParents) {
+        registerAllParents(path);
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Adds a new path to the list of watched paths. If a path to a file is given, its parent
+   * directory is registered instead because only directories can be watched.
+   * 
+   * 
+   * @param path
+   * @param allChildren If set to <code>true</code>, all child directories are registered too
+   * @param allParents If set to <code>true</code>, all parent directories are registered too
+   * @return
+   */
+  public boolean registerPath(String path, boolean allChildren, boolean allParents) {
+    return registerPath(Paths.get(path), allChildren, allParents);
+  }
+
+  /**
+   * Adds a new path to the list of watched paths.
+   * 
+   * @param path
+   * @return
+   */
+  public boolean registerPath(String path) {
+    return registerPath(path, false, false);
+  }
+
+  /**
+   * Adds a new path to the list of watched paths.
+   * 
+   * @param path
+   * @return
+   */
+  public boolean registerPath(Path path) {
+    return registerPath(path, false, false);
+  }
+
+  /**
+   * Registers a path and all its child directories in the background. The directory tree is walked
+   * by several threads, see {@link #setRegistrationParallelism(int)}, and changes are reported for
+   * each directory as soon as it is registered. If a path to a file is given, its parent directory
+   * is registered instead.
+   * 
+   * @param path
+   * @param listener An optional listener which is notified about the progress
+   * @return The number of registered directories, once all of them are registered. 0 if the path
+   *         does not exist.
+   */
+  public Future<Integer> registerPathInBackground(Path path, PathRegistrationListener listener) {
+    return registerPathInBackground(path, false, listener);
+  }
+
+  /**
+   * Registers a path and all its child directories in the background. The directory tree is walked
+   * by several threads, see {@link #setRegistrationParallelism(int)}, and changes are reported for
+   * each directory as soon as it is registered. If a path to a file is given, its parent directory
+   * is registered instead.<br>
+   * <br>
+   * A directory is listed only after it is being watched. If the existing entries are reported,
+   * every entry found like this is reported as created. The watcher thread reports them together
+   * with the changes of the watched directories, so the listeners get every entry of the tree,
+   * even the ones which are created while the tree is being registered. An entry which is created
+   * right while its directory is registered is found by the listing and by the watch service, but
+   * it is only reported once.
+   * 
+   * @param path
+   * @param reportExisting If set, the existing entries of the tree are reported as created
+   * @param listener An optional listener which is notified about the progress
+   * @return The number of registered directories, once all of them are registered. 0 if the path
+   *         does not exist.
+   */
+  public Future<Integer> registerPathInBackground(Path path, boolean reportExisting,
+      PathRegistrationListener listener) {
+    if (Files.isRegularFile(path)) {
+      path = path.getParent();
+    }
+
+    return registrationPool().submit(
+        new RegistrationTask(path, new Registration(path, reportExisting, listener)));
+  }
+
+  /**
+   * 
+   * 
+   * @return The pool which registers directory trees
+   */
+  private synchronized ForkJoinPool registrationPool() {
+    if (registrationPool == null) {
+      registrationPool = new ForkJoinPool(registrationParallelism);
+    }
+
+    return registrationPool;
+  }
+
+  /**
+   * 
+   * 
+   */
+  private synchronized void shutdownRegistrationPool() {
+    if (registrationPool != null) {
+      registrationPool.shutdownNow();
+      registrationPool = null;
+    }
+  }
+
+  /**
+   * Registers the given path for all the events
+   * 
+   * @param dir
+   * @param allChildren
+   * @return
+   * @throws IOException
+   */
+  private boolean register(Path dir, boolean allChildren) {
+
+    WatchKey key = null;
+
+    try {
+      if (usePolling) {
+        key = ((PollingWatchService) watcher).register(dir);
+      } else {
+        key = dir.register(watchServiceOf(dir), StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+      }
+    } catch (Exception e) {
+      throw new PathWatcherError("Failed to register path "
+          + dir, e);
+    }
+
+    // If its the same one it will just be updated. Events which the key gets before, are reported
+    // for the directory of the key without registering new child directories.
+    watchedPaths.put(dir, new WatchedPath(key, allChildren));
+    metrics.recordRegistration(watchedPaths.size());
+
+    if (overflowRecovery && !usePolling) {
+      // Taken after the key has been registered, so that no change gets lost in between. Changes
+      // which are in the snapshot already and get reported anyway are applied again.
+      try {
+        snapshots.put(snapshots.read(dir, null, pathFilter, null));
+      } catch (IOException e) {
+        logger.warn("Failed to take the snapshot of " + dir
+            + ". Overflows of this path are reported as such.", e);
+      }
+    }
+
+    RenameCorrelator r = renameCorrelator;
+    if (r != null) {
+      // The entries of the snapshot which has just been taken, without listing the directory again
+      DirectorySnapshot snapshot = usePolling ? ((PollingWatchService) watcher).getSnapshot(dir)
+          : snapshots.get(dir);
+
+      if (snapshot != null) {
+        r.learn(snapshot);
+      } else {
+        r.learn(dir);
+      }
+    }
+
+    fireNewPathWatched(dir);
+
+    return true;
+  }
+
+  /**
+   * 
+   * 
+   * @param dir
+   * @return The java watch service the given directory is registered with
+   */
+  private WatchService watchServiceOf(Path dir) {
+    Shard[] s = shards;
+
+    if (s == null) {
+      return watcher;
+    }
+
+    return s[(dir.hashCode() & Integer.MAX_VALUE) % s.length].service;
+  }
+
+  /**
+   * Walks through the file tree and registers all child paths. The sub trees are registered
+   * concurrently by the registration pool, and this method returns when all of them are
+   * registered.
+   * 
+   * @param path
+   */
+  private void registerAllChildren(Path path) {
+    try {
+      registrationPool().invoke(new RegistrationTask(path, new Registration(path, false, null)));
+    } catch (CancellationException e) {
+      // The watcher has been stopped in the meantime
+    }
+  }
+
+  /**
+   * Walks upwards through the file tree and registers all parent paths
+   * 
+   * @param path
+   * @throws IOException
+   */
+  private void registerAllParents(Path path) {
+    Path p = path;
+
+    while (p != null) {
+      try {
+        register(p, false);
+      } catch (Exception e) {
+        logger.warn("Failed to recursively register parent path "
+            + path, e);
+      }
+      p = p.getParent();
+    }
+
+  }
+
+
+  @SuppressWarnings("unchecked")
+  static <T> WatchEvent<T> cast(WatchEvent<?> event) {
+    return (WatchEvent<T>) event;
+  }
+
+
+  @Override
+  public void run() {
+    runStart();
+
+    while (!isStopRequested()) {
+      runPause(false);
+
+      // Check if just stop requested or pausing exited because stop has been requested
+      if (isStopRequested()) {
+        break;
+      }
+
+      WatchKey key = null;
+      ShardBatch batch = null;
+
+      try {
+        if (shards == null) {
+          key = nextKey();
+        } else {
+          batch = nextBatch();
+        }
+      } catch (InterruptedException e) {
+        continue;
+      } catch (ClosedWatchServiceException e) {
+        break;
+      }
+
+      // Check if stop has been requested while waiting for a change
+      if (isStopRequested()) {
+        if (key != null) {
+          key.reset();
+        }
+        break;
+      }
+
+      // Check if pause has been requested while waiting for a change
+      // If paused, just don't process the keys and go to the beginning for pausing
+      if (isPauseRequested()) {
+        if (key != null) {
+          key.reset();
+        }
+        if (batch != null) {
+          // Reported after the pause, before what has been collected meanwhile
+          shardBatches.offerFirst(batch);
+        }
+        continue;
+      }
+
+      if (key != null) {
+        processKeys(key);
+      } else if (batch != null) {
+        processBatches(batch);
+      }
+
+      reportListedEntries();
+
+      releaseHeldBackEvents();
+
+    }
+
+    // Do not keep back any events which have already been detected
+    reportListedEntries();
+
+    EventCoalescer c = coalescer;
+    RenameCorrelator r = renameCorrelator;
+    if (c != null) {
+      fire(r == null ? c.flushAll() : r.add(c.flushAll(), System.nanoTime()));
+    }
+    if (r != null) {
+      fire(r.flushAll());
+    }
+
+    // Stop the registrations which are still running before the registered paths are cleared
+    shutdownRegistrationPool();
+
+    clearAllRegisteredPaths();
+
+    // Let the asynchronous listeners finish what is queued and end their threads
+    for (AsyncListenerDispatcher d : asyncListeners.values()) {
+      d.shutdown();
+    }
+
+    try {
+      metrics.unregisterMBean();
+    } catch (JMException e) {
+      logger.warn("Failed to unregister the watcher metrics", e);
+    }
+
+    runEnd();
+  }
+
+  /**
+   * Waits for the next key with events. If coalesced events or deletions which might be renames
+   * are held back, the waiting ends when the next of them is due, even if there is no new key.
+   * 
+   * @return The next key, or <code>null</code> if held back events are due
+   * @throws InterruptedException
+   */
+  private WatchKey nextKey() throws InterruptedException {
+    long delay = nextDelay();
+
+    if (delay >= 0) {
+      return watcher.poll(delay, TimeUnit.MILLISECONDS);
+    }
+
+    return watcher.take();
+  }
+
+  /**
+   * Like {@link #nextKey()}, but waits for the next events collected by the shards
+   * 
+   * @return The next collected events, or <code>null</code> if held back events are due
+   * @throws InterruptedException
+   * @throws ClosedWatchServiceException If the watch services have been closed
+   */
+  private ShardBatch nextBatch() throws InterruptedException {
+    long delay = nextDelay();
+
+    ShardBatch batch = null;
+    if (delay >= 0) {
+      batch = shardBatches.poll(delay, TimeUnit.MILLISECONDS);
+    } else {
+      batch = shardBatches.take();
+    }
+
+    if (batch != null && batch.closed) {
+      throw new ClosedWatchServiceException();
+    }
+
+    return batch;
+  }
+
+  /**
+   * 
+   * 
+   * @return The time in milliseconds until the next held back event is due, or -1 if there are
+   *         none
+   */
+  private long nextDelay() {
+    EventCoalescer c = coalescer;
+    RenameCorrelator r = renameCorrelator;
+    long now = System.nanoTime();
+
+    long delay = c == null ? -1 : c.getDelay(now);
+
+    if (r != null) {
+      long renameDelay = r.getDelay(now);
+      if (delay < 0 || (renameDelay >= 0 && renameDelay < delay)) {
+        delay = renameDelay;
+      }
+    }
+
+    if (isListing() && (delay < 0 || delay > LISTED_ENTRY_INTERVAL)) {
+      delay = listedEntries.isEmpty() ? LISTED_ENTRY_INTERVAL : 0;
+    }
+
+    return delay;
+  }
+
+  /**
+   * Reports the events of the given key together with the events of all other keys which are ready
+   * right now
+   * 
+   * @param first The key which has been taken from the watch service
+   */
+  private void processKeys(WatchKey first) {
+    List<PathWatcherEvent> events = new ArrayList<PathWatcherEvent>();
+    List<Path> newDirectories = new ArrayList<Path>();
+
+    collectKeys(watcher, first, events, newDirectories);
+
+    report(events, newDirectories);
+  }
+
+  /**
+   * Reports the events collected by the shards, together with all other events which have been
+   * collected by then
+   * 
+   * @param first The events which have been taken from the shards
+   */
+  private void processBatches(ShardBatch first) {
+    List<PathWatcherEvent> events = new ArrayList<PathWatcherEvent>(first.events);
+    List<Path> newDirectories = new ArrayList<Path>(first.newDirectories);
+
+    for (int i = 1; i < MAX_KEYS_PER_BATCH; i++) {
+      ShardBatch batch = shardBatches.poll();
+
+      if (batch == null) {
+        break;
+      }
+
+      if (batch.closed) {
+        // Ends the loop after these events have been reported
+        shardBatches.offerFirst(batch);
+        break;
+      }
+
+      events.addAll(batch.events);
+      newDirectories.addAll(batch.newDirectories);
+    }
+
+    report(events, newDirectories);
+  }
+
+  /**
+   * Collects the events of the given key together with the events of all other keys of the
+   * watch service which are ready right now
+   * 
+   * @param service
+   * @param first The key which has been taken from the watch service
+   * @param events The list to add the events to
+   * @param newDirectories The list to add new directories to which have to be registered
+   */
+  private void collectKeys(WatchService service, WatchKey first, List<PathWatcherEvent> events,
+      List<Path> newDirectories) {
+    Set<WatchKey> processed = new HashSet<WatchKey>();
+
+    WatchKey key = first;
+    while (key != null) {
+      pollKey(key, events, newDirectories);
+
+      // A key which shows up again has new events since it has been processed. Stop there, to not
+      // keep on collecting while changes keep coming in.
+      if (!processed.add(key) || processed.size() >= MAX_KEYS_PER_BATCH) {
+        break;
+      }
+
+      try {
+        key = service.poll();
+      } catch (ClosedWatchServiceException e) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Reports collected events and registers the new directories
+   * 
+   * @param events
+   * @param newDirectories
+   */
+  private void report(List<PathWatcherEvent> events, List<Path> newDirectories) {
+    dispatch(listedEntryFilter.addWatched(events, isListing(), System.nanoTime()));
+
+    // Registered after the creation has been reported, so that the listeners are notified about
+    // the new directory before it is being watched. The registration runs in the background, so
+    // that a big new tree does not hold up the events of the other directories.
+    for (Path child : newDirectories) {
+      registrationPool().submit(new RegistrationTask(child,
+          new Registration(child, reportNewDirectoryContents, null)));
+    }
+  }
+
+  /**
+   * Collects all pending events of the given key and resets it
+   * 
+   * @param key
+   * @param events The list to add the events to
+   * @param newDirectories The list to add new directories to which have to be registered
+   */
+  private void pollKey(WatchKey key, List<PathWatcherEvent> events, List<Path> newDirectories) {
+    Path dir = (Path) key.watchable();
+    WatchedPath watched = watchedPaths.get(dir);
+    boolean allChildren = watched != null && watched.key == key && watched.allChildren;
+    PathFilter filter = usePolling ? null : pathFilter;
+    long now = System.nanoTime();
+
+    if (watched == null && !key.isValid()) {
+      // Unregistered, drop what is left
+      key.pollEvents();
+      return;
+    }
+
+    for (WatchEvent<?> event : key.pollEvents()) {
+      Kind<?> kind = event.kind();
+
+      metrics.recordEvent(kind);
+
+      // The polling watch service knows when it detected the change, the java watch service
+      // only tells when the key has been handed out
+      long detected = now;
+      if (event instanceof PollingWatchService.PollingWatchEvent) {
+        detected = ((PollingWatchService.PollingWatchEvent) event).getDetected();
+      }
+
+      // Events of this key have been lost. Either find out what they were, or pass the overflow
+      // on to the listeners.
+      if (kind == StandardWatchEventKinds.OVERFLOW) {
+        if (!recoverOverflow(dir, allChildren, detected, events, newDirectories)) {
+          events.add(new PathWatcherEvent(kind, dir, null, true, detected));
+        }
+        continue;
+      }
+
+      WatchEvent<Path> ev = cast(event);
+      Path name = ev.context();
+      Path child = dir.resolve(name);
+
+      // The polling watch service has filtered already
+      if (filter != null && !filter.accept(child)) {
+        continue;
+      }
+
+      events.add(new PathWatcherEvent(kind, dir, child, false, detected));
+
+      if (overflowRecovery && !usePolling) {
+        updateSnapshot(kind, child);
+      }
+
+      // Add new directories and their child directories to the watch
+      if (allChildren && kind == StandardWatchEventKinds.ENTRY_CREATE) {
+        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+          newDirectories.add(child);
+        }
+      }
+
+    }
+
+
+    boolean valid = key.reset();
+    if (!valid) {
+      // Directory not accessible any more -> remove it, unless it has been registered again
+      if (watched != null && watched.key == key) {
+        watchedPaths.remove(dir);
+      }
+      snapshots.remove(dir);
+      metrics.setRegisteredPaths(watchedPaths.size());
+    }
+  }
+
+  /**
+   * Applies a reported event to the snapshot of its directory
+   * 
+   * @param kind
+   * @param child The created, deleted or modified path
+   */
+  private void updateSnapshot(Kind<?> kind, Path child) {
+    if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+      snapshots.removeEntry(child);
+      // A deleted directory does not need its own snapshot any more
+      snapshots.remove(child);
+      return;
+    }
+
+    try {
+      snapshots.refreshEntry(child);
+    } catch (IOException e) {
+      // Keep the old state. An overflow rescan would report it as modified.
+    }
+  }
+
+  /**
+   * Lists a directory for which the java watch service reported an overflow again and compares it
+   * with its snapshot. The differences are added as regular events.
+   * 
+   * @param dir
+   * @param allChildren If new child directories have to be registered
+   * @param detected
+   * @param events The list to add the events to
+   * @param newDirectories The list to add new directories to which have to be registered
+   * @return <code>false</code> if there is no snapshot to compare with and the overflow has to be
+   *         reported as such
+   */
+  private boolean recoverOverflow(Path dir, boolean allChildren, long detected,
+      List<PathWatcherEvent> events, List<Path> newDirectories) {
+    if (!overflowRecovery || usePolling || dir == null || !snapshots.contains(dir)) {
+      return false;
+    }
+
+    DirectorySnapshot.Diff diff = null;
+    try {
+      diff = snapshots.rescan(dir, null, pathFilter);
+    } catch (IOException e) {
+      logger.warn("Failed to list " + dir + " after an overflow", e);
+      return false;
+    }
+
+    if (diff == null) {
+      return false;
+    }
+
+    for (Path created : diff.getCreated()) {
+      events.add(new PathWatcherEvent(StandardWatchEventKinds.ENTRY_CREATE, dir, created, false,
+          detected));
+      metrics.recordEvent(StandardWatchEventKinds.ENTRY_CREATE);
+
+      if (allChildren && Files.isDirectory(created, LinkOption.NOFOLLOW_LINKS)) {
+        newDirectories.add(created);
+      }
+    }
+
+    for (Path modified : diff.getModified()) {
+      events.add(new PathWatcherEvent(StandardWatchEventKinds.ENTRY_MODIFY, dir, modified, false,
+          detected));
+      metrics.recordEvent(StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    for (Path deleted : diff.getDeleted()) {
+      events.add(new PathWatcherEvent(StandardWatchEventKinds.ENTRY_DELETE, dir, deleted, false,
+          detected));
+      metrics.recordEvent(StandardWatchEventKinds.ENTRY_DELETE);
+      snapshots.remove(deleted);
+    }
+
+    return true;
+  }
+
+  /**
+   * Reports the entries which the registrations found since the last time, without those which
+   * the watch service already reported
+   * 
+   */
+  private void reportListedEntries() {
+    List<PathWatcherEvent> events = null;
+    List<PathWatcherEvent> listed = null;
+
+    while ((listed = listedEntries.poll()) != null) {
+      if (events == null) {
+        events = new ArrayList<PathWatcherEvent>(listed);
+      } else {
+        events.addAll(listed);
+      }
+    }
 
-  @Override
-  public void run() {
-    runStart();
+    if (events == null) {
+      return;
+    }
 
-    while (!isStopRequested()) {
-      runPause(false);
+    events = listedEntryFilter.addListed(events, System.nanoTime());
 
-      // Check if just stop requested or pausing exited because stop has been requested
-      if (isStopRequested()) {
-        break;
-      }
+    for (PathWatcherEvent event : events) {
+      metrics.recordEvent(event.getKind());
+    }
 
-      WatchKey key = null;
+    dispatch(events);
+  }
 
-      try {
-        key = watcher.take();
-      } catch (InterruptedException e) {
-        continue;
-      } catch (ClosedWatchServiceException e) {
-        break;
-      }
+  /**
+   * 
+   * 
+   * @return <code>true</code> if registrations are listing directories or their entries have not
+   *         been reported yet
+   */
+  private boolean isListing() {
+    return listingRegistrations.get() > 0 || !listedEntries.isEmpty();
+  }
 
-      // Check if stop has been requested while waiting for a change
-      if (isStopRequested()) {
-        key.reset();
-        break;
-      }
+  /**
+   * Hands the events over to the coalescing and rename detection stages if there are any, or
+   * reports them right away
+   * 
+   * @param events
+   */
+  private void dispatch(List<PathWatcherEvent> events) {
+    EventCoalescer c = coalescer;
+    RenameCorrelator r = renameCorrelator;
+    long now = System.nanoTime();
 
-      // Check if pause has been requested while waiting for a change
-      // If paused, just don't process the keys and go to the beginning for pausing
-      if (isPauseRequested()) {
-        key.reset();
-        continue;
-      }
+    if (c != null) {
+      events = c.add(events, now);
+    }
+
+    if (r != null) {
+      events = r.add(events, now);
+    }
 
-      Path dir = keys.get(key);
+    fire(events);
+  }
 
-      for (WatchEvent<?> event : key.pollEvents()) {
-        Kind<?> kind = event.kind();
+  /**
+   * Reports the coalesced events which have been quiet long enough and the held back deletions
+   * for which no matching creation showed up
+   * 
+   */
+  private void releaseHeldBackEvents() {
+    EventCoalescer c = coalescer;
+    RenameCorrelator r = renameCorrelator;
+    long now = System.nanoTime();
+
+    if (c != null) {
+      List<PathWatcherEvent> released = c.flush(now);
+      fire(r == null ? released : r.add(released, now));
+    }
 
-        // TODO is overflow handled correctly?
-        if (event == StandardWatchEventKinds.OVERFLOW) {
-          firePathWatcherListener(kind, dir, null, true);
-          continue;
-        }
+    if (r != null) {
+      fire(r.flush(now));
+    }
+  }
 
-        WatchEvent<Path> ev = cast(event);
-        Path name = ev.context();
-        Path child = dir.resolve(name);
+  /**
+   * 
+   * 
+   * @param events
+   */
+  private void fire(List<PathWatcherEvent> events) {
+    if (events.isEmpty()) {
+      return;
+    }
 
-        firePathWatcherListener(kind, dir, child, false);
+    // Copied, since it might be delivered by another thread after this method returned
+    final List<PathWatcherEvent> batch =
+        Collections.unmodifiableList(new ArrayList<PathWatcherEvent>(events));
 
-        // Add new directories and their child directories to the watch
-        if (allChildren.get(key) && kind == StandardWatchEventKinds.ENTRY_CREATE) {
-          if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
-            registerAllChildren(child);
-          }
-        }
+    notifyListeners(new Runnable() {
 
+      @Override
+      public void run() {
+        deliver(batch);
       }
+    });
+  }
 
+  /**
+   * 
+   * 
+   * @param batch
+   */
+  private void deliver(List<PathWatcherEvent> batch) {
+    long now = System.nanoTime();
 
-      boolean valid = key.reset();
-      if (!valid) {
-        // Directory not accessible any more -> remove it
-        keys.remove(key);
+    VirtualThreadExecutor virtual = virtualDispatcher;
+    if (virtual != null && listeners.size() + batchListeners.size() > 1) {
+      for (PathWatcherEvent event : batch) {
+        metrics.recordDispatchLatency(now - event.getDetected());
       }
 
+      fireConcurrently(virtual, batch);
+      return;
     }
 
-    clearAllRegisteredPaths();
+    for (PathWatcherEvent event : batch) {
+      metrics.recordDispatchLatency(now - event.getDetected());
 
-    runEnd();
+      if (event.getKind() == PathWatcherEvent.ENTRY_RENAMED) {
+        fireRenamed(event);
+      } else {
+        notifyPathWatcherListeners(event.getKind(), event.getPath(), event.getContext(),
+            event.isOverflow());
+      }
+    }
+
+    for (PathWatcherBatchListener l : batchListeners) {
+      long start = System.nanoTime();
+      l.pathsChanged(batch);
+      metrics.recordListenerTime(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Notifies each listener on its own virtual thread and returns when all of them are done
+   * 
+   * @param virtual
+   * @param batch
+   */
+  private void fireConcurrently(VirtualThreadExecutor virtual,
+      final List<PathWatcherEvent> batch) {
+    List<Runnable> deliveries = new ArrayList<Runnable>();
+
+    for (final PathWatcherListener l : listeners) {
+      deliveries.add(new Runnable() {
+
+        @Override
+        public void run() {
+          long start = System.nanoTime();
+
+          for (PathWatcherEvent event : batch) {
+            AsyncListenerDispatcher.notify(l, event);
+          }
+
+          metrics.recordListenerTime(System.nanoTime() - start);
+        }
+      });
+    }
+
+    for (final PathWatcherBatchListener l : batchListeners) {
+      deliveries.add(new Runnable() {
+
+        @Override
+        public void run() {
+          long start = System.nanoTime();
+          l.pathsChanged(batch);
+          metrics.recordListenerTime(System.nanoTime() - start);
+        }
+      });
+    }
+
+    virtual.invokeAll(deliveries);
+
+    for (AsyncListenerDispatcher d : asyncListeners.values()) {
+      for (PathWatcherEvent event : batch) {
+        d.dispatch(event);
+      }
+    }
   }
 
   /**
@@ -457,6 +1727,13 @@ public class FileSystemWatcher extends ControlledRunnable {
       watcher.close();
     } catch (IOException e) {
     }
+
+    Shard[] s = shards;
+    if (s != null) {
+      for (Shard shard : s) {
+        shard.close();
+      }
+    }
   }
 
   @Override
@@ -475,6 +1752,309 @@ public class FileSystemWatcher extends ControlledRunnable {
 
 
 
+  /**************************************************************************
+   * One of the java watch services in sharded mode, with the thread which collects the events of
+   * its keys
+   * 
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private class Shard implements Runnable {
+
+    private final WatchService service;
+
+    /**
+     * 
+     * 
+     * @param service
+     */
+    public Shard(WatchService service) {
+      this.service = service;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        WatchKey key = null;
+
+        try {
+          key = service.take();
+        } catch (InterruptedException e) {
+          continue;
+        } catch (ClosedWatchServiceException e) {
+          break;
+        }
+
+        ShardBatch batch = new ShardBatch(false);
+        collectKeys(service, key, batch.events, batch.newDirectories);
+
+        if (!batch.events.isEmpty() || !batch.newDirectories.isEmpty()) {
+          shardBatches.offer(batch);
+        }
+      }
+
+      // Ends the waiting of the watcher thread
+      shardBatches.offer(new ShardBatch(true));
+    }
+
+    /**
+     * 
+     * 
+     */
+    public void close() {
+      try {
+        service.close();
+      } catch (IOException e) {
+      }
+    }
+
+  }
+
+
+  /**************************************************************************
+   * The events which a shard collected from its keys in one go
+   * 
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private static class ShardBatch {
+
+    private final List<PathWatcherEvent> events;
+    private final List<Path> newDirectories;
+
+    /**
+     * If set, the watch service of the shard has been closed
+     */
+    private final boolean closed;
+
+    /**
+     * 
+     * 
+     * @param closed
+     */
+    public ShardBatch(boolean closed) {
+      this.closed = closed;
+      this.events = new ArrayList<PathWatcherEvent>();
+      this.newDirectories = new ArrayList<Path>();
+    }
+
+  }
+
+
+  /**************************************************************************
+   * A watched directory
+   * 
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private static class WatchedPath {
+
+    private final WatchKey key;
+    private final boolean allChildren;
+
+    /**
+     * 
+     * 
+     * @param key
+     * @param allChildren If new child directories are added to the watch list
+     */
+    public WatchedPath(WatchKey key, boolean allChildren) {
+      this.key = key;
+      this.allChildren = allChildren;
+    }
+
+  }
+
+
+  /**************************************************************************
+   * The state of one recursive registration, shared by all its tasks
+   * 
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private class Registration {
+
+    private final Path root;
+    private final boolean reportExisting;
+    private final PathRegistrationListener listener;
+    private final AtomicInteger registered;
+
+    /**
+     * 
+     * 
+     * @param root
+     * @param reportExisting If the entries found in the registered directories are reported as
+     *        created
+     * @param listener
+     */
+    public Registration(Path root, boolean reportExisting, PathRegistrationListener listener) {
+      this.root = root;
+      this.reportExisting = reportExisting;
+      this.listener = listener;
+      this.registered = new AtomicInteger();
+
+      if (reportExisting) {
+        listingRegistrations.incrementAndGet();
+      }
+    }
+
+    /**
+     * Registers one directory of the tree
+     * 
+     * @param dir
+     * @return <code>true</code> if the directory has been registered
+     */
+    public boolean register(Path dir) {
+      try {
+        FileSystemWatcher.this.register(dir, true);
+      } catch (Exception e) {
+        logger.warn("Failed to recursively register child path "
+            + dir, e);
+        return false;
+      }
+
+      int count = registered.incrementAndGet();
+      if (listener != null && count % REGISTRATION_PROGRESS_INTERVAL == 0) {
+        listener.registrationProgress(root, count);
+      }
+
+      return true;
+    }
+
+    /**
+     * Reports the entries which have been found in a registered directory as created. They are
+     * handed over to the watcher thread, which reports them like the events of the watch service
+     * and drops those which the watch service reported as well.
+     * 
+     * @param dir
+     * @param entries
+     */
+    public void reportEntries(Path dir, List<Path> entries) {
+      if (entries.isEmpty()) {
+        return;
+      }
+
+      List<PathWatcherEvent> events = new ArrayList<PathWatcherEvent>(entries.size());
+      for (Path entry : entries) {
+        events.add(new PathWatcherEvent(StandardWatchEventKinds.ENTRY_CREATE, dir, entry, false));
+      }
+
+      listedEntries.offer(events);
+    }
+
+    /**
+     * 
+     * 
+     * @param count
+     */
+    public void done(int count) {
+      if (reportExisting) {
+        listingRegistrations.decrementAndGet();
+      }
+
+      if (listener != null) {
+        listener.registrationDone(root, count);
+      }
+    }
+
+  }
+
+
+  /**************************************************************************
+   * Registers a directory and then forks one task for each of its child directories
+   * 
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private class RegistrationTask extends RecursiveTask<Integer> {
+    private static final long serialVersionUID = -3209383453476153470L;
+
+    private final Path dir;
+    private final Registration registration;
+
+    /**
+     * 
+     * 
+     * @param dir
+     * @param registration
+     */
+    public RegistrationTask(Path dir, Registration registration) {
+      this.dir = dir;
+      this.registration = registration;
+    }
+
+    @Override
+    protected Integer compute() {
+      int count = 0;
+
+      try {
+        count = registerTree();
+      } finally {
+        if (dir == registration.root) {
+          registration.done(count);
+        }
+      }
+
+      return count;
+    }
+
+    /**
+     * 
+     * 
+     * @return The number of directories registered in the sub tree of this task
+     */
+    private int registerTree() {
+      if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS) || !registration.register(dir)) {
+        return 0;
+      }
+
+      // The directory is listed after its key exists, so that no new child directory is missed.
+      // Everything created after the key exists is reported by the watch service.
+      List<RegistrationTask> children = new ArrayList<RegistrationTask>();
+      List<Path> existing = new ArrayList<Path>();
+
+      File directoryFile = usePolling && fileNameFilter != null ? dir.toFile() : null;
+      PathFilter filter = pathFilter;
+
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+        for (Path entry : stream) {
+          if (filter != null && filter.isExcluded(entry)) {
+            // Skips the whole sub tree without reading anything of it
+            continue;
+          }
+
+          boolean directory = Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS);
+          if (directory) {
+            children.add(new RegistrationTask(entry, registration));
+          }
+
+          if (registration.reportExisting
+              && (filter == null || filter.isIncluded(entry, directory))
+              && (directoryFile == null
+                  || fileNameFilter.accept(directoryFile, entry.getFileName().toString()))) {
+            existing.add(entry);
+          }
+        }
+      } catch (IOException | DirectoryIteratorException e) {
+        logger.warn("Failed to recursively register path and children of "
+            + dir, e);
+      }
+
+      registration.reportEntries(dir, existing);
+
+      invokeAll(children);
+
+      int count = 1;
+      for (RegistrationTask child : children) {
+        count += child.join();
+      }
+
+      return count;
+    }
+
+  }
+
+
   /**************************************************************************
    * 
    * 
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands items over from any number of producer threads to the threads which wait for them,
+ * without locks. The items are kept in a lock free queue, and a waiting thread parks until a
+ * producer unparks it. Adding items only costs an unpark if a thread is actually waiting.<br>
+ * <br>
+ * Closing the queue wakes up all waiting threads. They do not wait again, and they get
+ * <code>null</code> if there is no item left.
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ * @param <T> The type of the items
+ */
+class HandoffQueue<T> {
+
+  private final ConcurrentLinkedQueue<T> items;
+
+  /**
+   * The threads which are waiting for an item
+   */
+  private final ConcurrentLinkedQueue<Thread> waiters;
+
+  /**
+   * The number of items, since the size of the queue itself takes linear time
+   */
+  private final AtomicInteger size;
+
+  private volatile boolean closed = false;
+
+
+  /**
+   *
+   */
+  public HandoffQueue() {
+    items = new ConcurrentLinkedQueue<T>();
+    waiters = new ConcurrentLinkedQueue<Thread>();
+    size = new AtomicInteger();
+  }
+
+  /**
+   * Adds an item and wakes up the waiting threads
+   *
+   * @param item
+   */
+  public void offer(T item) {
+    items.offer(item);
+    size.incrementAndGet();
+
+    wakeUp();
+  }
+
+  /**
+   *
+   *
+   * @return The next item, or <code>null</code> if there is none
+   */
+  public T poll() {
+    T item = items.poll();
+
+    if (item != null) {
+      size.decrementAndGet();
+    }
+
+    return item;
+  }
+
+  /**
+   * Waits until there is an item or the queue is closed
+   *
+   * @return The next item, or <code>null</code> if the queue has been closed
+   * @throws InterruptedException
+   */
+  public T take() throws InterruptedException {
+    return await(false, 0);
+  }
+
+  /**
+   * Waits until there is an item, the queue is closed or the timeout is over
+   *
+   * @param timeout
+   * @param unit
+   * @return The next item, or <code>null</code> if the queue has been closed or the timeout is
+   *         over
+   * @throws InterruptedException
+   */
+  public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return await(true, unit.toNanos(timeout));
+  }
+
+  /**
+   * Removes all items
+   *
+   */
+  public void clear() {
+    while (poll() != null) {
+      // Counted down by poll
+    }
+  }
+
+  /**
+   *
+   *
+   * @return The number of items
+   */
+  public int size() {
+    return Math.max(0, size.get());
+  }
+
+  /**
+   * Closes the queue and wakes up all waiting threads. The items which are still queued are kept
+   * and returned by {@link #poll()} and {@link #take()}, which do not wait any more. It is up to
+   * the owner whether to hand them out after closing.
+   *
+   */
+  public void close() {
+    closed = true;
+    wakeUp();
+  }
+
+  /**
+   *
+   *
+   * @return <code>true</code> if the queue has been closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   *
+   *
+   * @param timed
+   * @param nanos
+   * @return
+   * @throws InterruptedException
+   */
+  private T await(boolean timed, long nanos) throws InterruptedException {
+    T item = poll();
+    if (item != null || closed) {
+      return item;
+    }
+
+    long deadline = timed ? System.nanoTime() + nanos : 0;
+    Thread current = Thread.currentThread();
+
+    // Registered before checking again, so that an item which is added meanwhile either shows up
+    // with the check or its producer sees this thread and unparks it
+    waiters.add(current);
+
+    try {
+      while (true) {
+        item = poll();
+        if (item != null || closed) {
+          return item;
+        }
+
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+
+        if (timed) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return null;
+          }
+          LockSupport.parkNanos(this, remaining);
+        } else {
+          LockSupport.park(this);
+        }
+      }
+    } finally {
+      waiters.remove(current);
+    }
+  }
+
+  /**
+   *
+   *
+   */
+  private void wakeUp() {
+    for (Thread waiter : waiters) {
+      LockSupport.unpark(waiter);
+    }
+  }
+
+}
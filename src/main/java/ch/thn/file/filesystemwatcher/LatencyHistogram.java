@@ -0,0 +1,172 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds with power of two buckets. Recording a value is a few
+ * atomic increments without any locking, so it can be done on the hot paths of the watcher.
+ * Percentiles are therefore only accurate to a factor of two, which is enough to tell apart
+ * microseconds, milliseconds and seconds.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class LatencyHistogram {
+
+  /**
+   * Bucket i holds the values which need i bits, which are the values from 2^(i-1) to 2^i - 1.
+   * Bucket 0 only holds 0.
+   */
+  private static final int BUCKETS = 64;
+
+  private final AtomicLongArray buckets;
+
+  private final LongAdder count;
+
+  private final LongAdder total;
+
+  private final AtomicLong max;
+
+
+  /**
+   * 
+   */
+  public LatencyHistogram() {
+    buckets = new AtomicLongArray(BUCKETS);
+    count = new LongAdder();
+    total = new LongAdder();
+    max = new AtomicLong();
+  }
+
+  /**
+   * Records one duration
+   * 
+   * @param nanos The duration in nanoseconds. Negative values are recorded as 0.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+
+    buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+    count.increment();
+    total.add(nanos);
+
+    long current = max.get();
+    while (nanos > current && !max.compareAndSet(current, nanos)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of recorded durations
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * 
+   * 
+   * @return The sum of all recorded durations in nanoseconds
+   */
+  public long getTotal() {
+    return total.sum();
+  }
+
+  /**
+   * 
+   * 
+   * @return The average duration in nanoseconds, or 0 if nothing has been recorded
+   */
+  public double getMean() {
+    long c = count.sum();
+    return c == 0 ? 0 : (double) total.sum() / c;
+  }
+
+  /**
+   * 
+   * 
+   * @return The longest recorded duration in nanoseconds
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns the duration below which the given fraction of the recorded durations lie. The result
+   * is the upper bound of the bucket the percentile falls into, but never more than the longest
+   * recorded duration.
+   * 
+   * @param percentile The percentile from 0 to 1, for example 0.99
+   * @return The percentile in nanoseconds, or 0 if nothing has been recorded
+   */
+  public long getPercentile(double percentile) {
+    if (percentile < 0 || percentile > 1) {
+      throw new IllegalArgumentException("Percentile has to be between 0 and 1");
+    }
+
+    long[] counts = new long[BUCKETS];
+    long c = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      c += counts[i];
+    }
+
+    if (c == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(percentile * c));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        long upperBound = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+        return Math.min(upperBound, max.get());
+      }
+    }
+
+    return max.get();
+  }
+
+  /**
+   * Clears all recorded durations
+   * 
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0);
+    }
+
+    count.reset();
+    total.reset();
+    max.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + getCount() + ", mean=" + (long) getMean() + "ns, p99="
+        + getPercentile(0.99) + "ns, max=" + getMax() + "ns";
+  }
+
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Drops the creations which are reported twice while directories are registered. A directory is
+ * listed after its key exists, so an entry which is created in between is found by the listing
+ * and reported by the watch service as well. Depending on which of them is handled first:
+ * <ul>
+ * <li>A creation by the watch service is dropped if the listing already reported the entry</li>
+ * <li>A listed entry is dropped if the watch service already reported its creation or deletion.
+ * The listing has been taken before the deletion then, or the entry would have been created
+ * again.</li>
+ * </ul>
+ * The entries are only remembered for a limited time, which has to be longer than it takes the
+ * watch service to report a change.<br>
+ * <br>
+ * Not thread safe, it is only used by the watcher thread.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+class ListedEntryFilter {
+
+  private final long windowNanos;
+
+  /**
+   * The recently reported entries by their path, the oldest first
+   */
+  private final LinkedHashMap<Path, Reported> reported;
+
+
+  /**
+   * 
+   * 
+   * @param window The time in milliseconds for which the reported entries are remembered
+   */
+  public ListedEntryFilter(long window) {
+    this.windowNanos = window * 1000000;
+
+    reported = new LinkedHashMap<Path, Reported>();
+  }
+
+  /**
+   * Filters the events found by listing registered directories. They all have to be creations.
+   * 
+   * @param events
+   * @param now The current {@link System#nanoTime()}
+   * @return The events which have not been reported yet
+   */
+  public List<PathWatcherEvent> addListed(List<PathWatcherEvent> events, long now) {
+    expire(now);
+
+    List<PathWatcherEvent> result = new ArrayList<PathWatcherEvent>(events.size());
+
+    for (PathWatcherEvent event : events) {
+      if (!reported.containsKey(event.getContext())) {
+        remember(event.getContext(), true, now);
+        result.add(event);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Filters the events reported by the watch service
+   * 
+   * @param events
+   * @param registering If directories are being listed right now. The creations and deletions
+   *        are only remembered while this is set.
+   * @param now The current {@link System#nanoTime()}
+   * @return The events without the creations which have already been reported by a listing
+   */
+  public List<PathWatcherEvent> addWatched(List<PathWatcherEvent> events, boolean registering,
+      long now) {
+    expire(now);
+
+    if (!registering && reported.isEmpty()) {
+      return events;
+    }
+
+    List<PathWatcherEvent> result = new ArrayList<PathWatcherEvent>(events.size());
+
+    for (PathWatcherEvent event : events) {
+      Path context = event.getContext();
+
+      if (event.getKind() == StandardWatchEventKinds.ENTRY_CREATE) {
+        Reported r = reported.get(context);
+        if (r != null && r.listed) {
+          // The same creation. A later one has to be reported again.
+          remember(context, false, now);
+          continue;
+        }
+      }
+
+      if (context != null && (registering || reported.containsKey(context))
+          && (event.getKind() == StandardWatchEventKinds.ENTRY_CREATE
+              || event.getKind() == StandardWatchEventKinds.ENTRY_DELETE)) {
+        remember(context, false, now);
+      }
+
+      result.add(event);
+    }
+
+    return result;
+  }
+
+  /**
+   * 
+   * 
+   * @return <code>true</code> if no entries are remembered
+   */
+  public boolean isEmpty() {
+    return reported.isEmpty();
+  }
+
+  /**
+   * 
+   * 
+   * @param context
+   * @param listed
+   * @param now
+   */
+  private void remember(Path context, boolean listed, long now) {
+    // Removed first, so that the entry moves to the end
+    reported.remove(context);
+    reported.put(context, new Reported(listed, now));
+  }
+
+  /**
+   * Forgets the entries which have been reported longer than the window ago
+   * 
+   * @param now
+   */
+  private void expire(long now) {
+    Iterator<Reported> iterator = reported.values().iterator();
+
+    while (iterator.hasNext()) {
+      if (now - iterator.next().time < windowNanos) {
+        // All others are younger
+        break;
+      }
+
+      iterator.remove();
+    }
+  }
+
+
+  /*************************************************************************
+   * How and when an entry has been reported
+   * 
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private static class Reported {
+
+    /**
+     * If the entry has been reported by a listing, or by the watch service otherwise
+     */
+    private final boolean listed;
+    private final long time;
+
+    /**
+     * 
+     * 
+     * @param listed
+     * @param time
+     */
+    public Reported(boolean listed, long time) {
+      this.listed = listed;
+      this.time = time;
+    }
+
+  }
+
+}
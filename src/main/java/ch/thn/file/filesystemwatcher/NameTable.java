@@ -0,0 +1,157 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * A table of interned file names. Names like "index.html" or ".DS_Store" show up in many
+ * directories, and every scan reads all names again. Interning them keeps only one instance of
+ * each name on the heap.<br>
+ * The names are only weakly referenced, so names which are not used by any snapshot any more are
+ * garbage collected.
+ * 
+ * 
+ * @author Thomas Naeff (github.com/thnaeff)
+ * 
+ */
+class NameTable {
+
+  /**
+   * The number of separately locked parts of the table, so that parallel scans do not block each
+   * other all the time
+   */
+  private static final int STRIPES = 16;
+
+  private final WeakHashMap<String, WeakReference<String>>[] stripes;
+
+
+  /**
+   * 
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public NameTable() {
+    stripes = new WeakHashMap[STRIPES];
+
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new WeakHashMap<String, WeakReference<String>>();
+    }
+  }
+
+  /**
+   * Returns the one instance of the given name
+   * 
+   * @param name
+   * @return The interned name, which is equal to the given name
+   */
+  public String intern(String name) {
+    WeakHashMap<String, WeakReference<String>> stripe = stripeOf(name);
+
+    synchronized (stripe) {
+      WeakReference<String> reference = stripe.get(name);
+      String interned = reference == null ? null : reference.get();
+
+      if (interned == null) {
+        stripe.put(name, new WeakReference<String>(name));
+        interned = name;
+      }
+
+      return interned;
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of distinct names currently in the table
+   */
+  public int size() {
+    int size = 0;
+
+    for (WeakHashMap<String, WeakReference<String>> stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+
+    return size;
+  }
+
+  /**
+   * 
+   * 
+   * @return The estimated number of bytes used by the names in the table
+   */
+  public long estimateNameBytes() {
+    long bytes = 0;
+
+    for (WeakHashMap<String, WeakReference<String>> stripe : stripes) {
+      synchronized (stripe) {
+        for (String name : stripe.keySet()) {
+          if (name != null) {
+            bytes += estimateStringBytes(name);
+          }
+        }
+      }
+    }
+
+    return bytes;
+  }
+
+  /**
+   * 
+   */
+  public void clear() {
+    for (WeakHashMap<String, WeakReference<String>> stripe : stripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @param name
+   * @return
+   */
+  private WeakHashMap<String, WeakReference<String>> stripeOf(String name) {
+    int hash = name.hashCode();
+    return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+  }
+
+  /**
+   * A rough estimate of the heap size of a string: the string object and its character array,
+   * assuming compressed object pointers and up to two bytes per character
+   * 
+   * @param name
+   * @return
+   */
+  static long estimateStringBytes(String name) {
+    return 24 + align(16 + 2L * name.length());
+  }
+
+  /**
+   * 
+   * 
+   * @param bytes
+   * @return The size aligned to the 8 byte object alignment
+   */
+  static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+}
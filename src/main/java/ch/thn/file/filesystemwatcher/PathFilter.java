@@ -0,0 +1,194 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A set of include and exclude rules which decide which entries are watched and reported.<br>
+ * <br>
+ * The rules are patterns in the syntax of {@link FileSystem#getPathMatcher(String)}, like
+ * <code>glob:*.java</code> or <code>regex:.*\.tmp</code>. Patterns without syntax are globs. Each
+ * pattern is compiled once when it is added. A rule matches an entry if it matches either the name
+ * of the entry or its whole path, so <code>node_modules</code> excludes every entry with that name
+ * and <code>glob:**&#47;build&#47;**</code> everything below a build directory.<br>
+ * <br>
+ * An excluded entry is never reported, and an excluded directory is neither registered nor
+ * listed, so its whole sub tree is skipped. Excludes only need the path, so they are applied
+ * before anything is read from the file system. If there are include rules, only files which match
+ * one of them are reported. Includes do not apply to directories, otherwise no sub tree could be
+ * reached. Deleted entries can not be checked for being a directory any more and are handled like
+ * files.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class PathFilter {
+
+  private final FileSystem fileSystem;
+
+  private final List<PathMatcher> includes;
+
+  private final List<PathMatcher> excludes;
+
+
+  /**
+   * A filter without rules for the default file system, which accepts everything
+   * 
+   */
+  public PathFilter() {
+    this(FileSystems.getDefault());
+  }
+
+  /**
+   * A filter without rules, which accepts everything
+   * 
+   * @param fileSystem The file system of the watched paths
+   */
+  public PathFilter(FileSystem fileSystem) {
+    this.fileSystem = fileSystem;
+
+    includes = new CopyOnWriteArrayList<PathMatcher>();
+    excludes = new CopyOnWriteArrayList<PathMatcher>();
+  }
+
+  /**
+   * Adds a rule for the files which are reported
+   * 
+   * @param pattern A pattern like <code>glob:*.java</code> or <code>regex:.*\.java</code>
+   * @throws IllegalArgumentException If the pattern is invalid
+   */
+  public void addInclude(String pattern) {
+    includes.add(compile(pattern));
+  }
+
+  /**
+   * Adds a rule for the entries and sub trees which are neither watched nor reported
+   * 
+   * @param pattern A pattern like <code>glob:.git</code> or <code>regex:.*\.tmp</code>
+   * @throws IllegalArgumentException If the pattern is invalid
+   */
+  public void addExclude(String pattern) {
+    excludes.add(compile(pattern));
+  }
+
+  /**
+   * 
+   * 
+   * @param path
+   * @return <code>true</code> if the entry matches an exclude rule. Works without reading anything
+   *         from the file system.
+   */
+  public boolean isExcluded(Path path) {
+    return matches(excludes, path);
+  }
+
+  /**
+   * 
+   * 
+   * @param path
+   * @param directory If the entry is a directory
+   * @return <code>true</code> if the entry is not excluded and, if it is a file, matches the
+   *         include rules
+   */
+  public boolean accept(Path path, boolean directory) {
+    return !isExcluded(path) && isIncluded(path, directory);
+  }
+
+  /**
+   * Like {@link #accept(Path, boolean)}, but finds out whether the entry is a directory itself if
+   * it has to. An entry which does not exist (any more) is handled like a file.
+   * 
+   * @param path
+   * @return <code>true</code> if the entry is not excluded and, if it is a file, matches the
+   *         include rules
+   */
+  public boolean accept(Path path) {
+    if (isExcluded(path)) {
+      return false;
+    }
+
+    // Only read from the file system if an entry which does not match might be a directory
+    return isIncluded(path, false) || Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+  }
+
+  /**
+   * 
+   * 
+   * @param path
+   * @param directory If the entry is a directory
+   * @return <code>true</code> if the entry is a directory, there are no include rules or it
+   *         matches one of them. Excludes are not checked.
+   */
+  public boolean isIncluded(Path path, boolean directory) {
+    return directory || includes.isEmpty() || matches(includes, path);
+  }
+
+  /**
+   * 
+   * 
+   * @return <code>true</code> if there are no rules
+   */
+  public boolean isEmpty() {
+    return includes.isEmpty() && excludes.isEmpty();
+  }
+
+  /**
+   * 
+   * 
+   * @param pattern
+   * @return The compiled pattern
+   */
+  private PathMatcher compile(String pattern) {
+    if (pattern.indexOf(':') < 2) {
+      // No syntax. A single letter before the colon is most likely a windows drive.
+      pattern = "glob:" + pattern;
+    }
+
+    return fileSystem.getPathMatcher(pattern);
+  }
+
+  /**
+   * 
+   * 
+   * @param matchers
+   * @param path
+   * @return <code>true</code> if one of the matchers matches the name or the whole path
+   */
+  private static boolean matches(List<PathMatcher> matchers, Path path) {
+    if (matchers.isEmpty()) {
+      return false;
+    }
+
+    Path name = path.getFileName();
+
+    for (PathMatcher matcher : matchers) {
+      if ((name != null && matcher.matches(name)) || matcher.matches(path)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+}
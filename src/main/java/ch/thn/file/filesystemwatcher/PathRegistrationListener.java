@@ -0,0 +1,32 @@
+package ch.thn.file.filesystemwatcher;
+
+import java.nio.file.Path;
+
+/**
+ * A listener which follows a recursive registration which runs in the background, see
+ * {@link FileSystemWatcher#registerPathInBackground(Path, PathRegistrationListener)}. The methods
+ * are called from the registration threads.
+ * 
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public interface PathRegistrationListener {
+
+
+  /**
+   * Fired every {@link FileSystemWatcher#REGISTRATION_PROGRESS_INTERVAL} registered directories
+   * 
+   * @param path The path which is being registered with its children
+   * @param registered The number of directories registered so far
+   */
+  public void registrationProgress(Path path, int registered);
+
+  /**
+   * Fired when all directories have been registered
+   * 
+   * @param path The path which has been registered with its children
+   * @param registered The number of registered directories
+   */
+  public void registrationDone(Path path, int registered);
+
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores a value for each registered path in a tree which follows the directory structure: each
+ * node is one name element of a path and has its children by their name. Looking up a path, or
+ * finding all registered paths below it to remove them, takes as many steps as the path has name
+ * elements, no matter how many paths are registered.<br>
+ * <br>
+ * Lookups do not lock and can run concurrently with modifications. Modifications are done one at
+ * a time. Nodes which neither have a value nor children are removed again, so the tree only
+ * contains the registered paths and their ancestors.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ * @param <T> The type of the value of a registered path
+ */
+class PathRegistry<T> {
+
+  /**
+   * The node above the roots of the file system
+   */
+  private final Node<T> top;
+
+  /**
+   * The number of registered paths
+   */
+  private volatile int size = 0;
+
+
+  /**
+   * 
+   */
+  public PathRegistry() {
+    top = new Node<T>(null, null);
+  }
+
+  /**
+   * 
+   * 
+   * @param path
+   * @return The value of the given path, or <code>null</code> if it is not registered
+   */
+  public T get(Path path) {
+    Node<T> node = find(path);
+    return node == null ? null : node.value;
+  }
+
+  /**
+   * 
+   * 
+   * @param path
+   * @return <code>true</code> if the given path is registered
+   */
+  public boolean contains(Path path) {
+    return get(path) != null;
+  }
+
+  /**
+   * Registers a path
+   * 
+   * @param path
+   * @param value The value of the path, not <code>null</code>
+   * @return The previous value of the path, or <code>null</code> if it has not been registered
+   */
+  public synchronized T put(Path path, T value) {
+    if (value == null) {
+      throw new NullPointerException("Value of " + path + " can not be null");
+    }
+
+    Node<T> node = top;
+
+    for (Path element : elements(path)) {
+      Node<T> child = node.children.get(element);
+
+      if (child == null) {
+        child = new Node<T>(node, element);
+        node.children.put(element, child);
+      }
+
+      node = child;
+    }
+
+    T previous = node.value;
+    node.path = path;
+    node.value = value;
+
+    if (previous == null) {
+      size++;
+    }
+
+    return previous;
+  }
+
+  /**
+   * Unregisters a path. The paths below it stay registered.
+   * 
+   * @param path
+   * @return The value of the path, or <code>null</code> if it has not been registered
+   */
+  public synchronized T remove(Path path) {
+    Node<T> node = find(path);
+
+    if (node == null || node.value == null) {
+      return null;
+    }
+
+    T previous = node.value;
+    node.value = null;
+    node.path = null;
+    size--;
+
+    prune(node);
+
+    return previous;
+  }
+
+  /**
+   * Unregisters a path and all paths below it
+   * 
+   * @param path
+   * @return The unregistered paths with their values, the given path first if it has been
+   *         registered
+   */
+  public synchronized Map<Path, T> removeSubtree(Path path) {
+    Node<T> node = find(path);
+
+    if (node == null || node == top) {
+      return new LinkedHashMap<Path, T>();
+    }
+
+    Map<Path, T> removed = collect(node);
+
+    node.parent.children.remove(node.name);
+    size -= removed.size();
+
+    prune(node.parent);
+
+    return removed;
+  }
+
+  /**
+   * 
+   * 
+   * @return All registered paths
+   */
+  public List<Path> getPaths() {
+    return new ArrayList<Path>(collect(top).keySet());
+  }
+
+  /**
+   * 
+   * 
+   * @return The values of all registered paths
+   */
+  public List<T> getValues() {
+    return new ArrayList<T>(collect(top).values());
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of registered paths
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * 
+   * 
+   * @return <code>true</code> if no path is registered
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Unregisters all paths
+   * 
+   */
+  public synchronized void clear() {
+    top.children.clear();
+    size = 0;
+  }
+
+  /**
+   * 
+   * 
+   * @param path
+   * @return The node of the given path, or <code>null</code> if there is none
+   */
+  private Node<T> find(Path path) {
+    Node<T> node = top;
+
+    for (Path element : elements(path)) {
+      node = node.children.get(element);
+
+      if (node == null) {
+        return null;
+      }
+    }
+
+    return node;
+  }
+
+  /**
+   * Removes the given node and its ancestors as long as they are not needed any more
+   * 
+   * @param node
+   */
+  private void prune(Node<T> node) {
+    while (node != top && node.value == null && node.children.isEmpty()) {
+      node.parent.children.remove(node.name);
+      node = node.parent;
+    }
+  }
+
+  /**
+   * Collects the registered paths of a sub tree, breadth first, so that parents come before
+   * their children
+   * 
+   * @param node
+   * @return
+   */
+  private Map<Path, T> collect(Node<T> node) {
+    Map<Path, T> collected = new LinkedHashMap<Path, T>();
+    ArrayDeque<Node<T>> queue = new ArrayDeque<Node<T>>();
+    queue.add(node);
+
+    while (!queue.isEmpty()) {
+      Node<T> n = queue.poll();
+
+      // Read once, the node might be changed concurrently
+      Path path = n.path;
+      T value = n.value;
+      if (value != null && path != null) {
+        collected.put(path, value);
+      }
+
+      queue.addAll(n.children.values());
+    }
+
+    return collected;
+  }
+
+  /**
+   * Splits a path into the elements of the tree: its root (if it is absolute) and its names
+   * 
+   * @param path
+   * @return
+   */
+  private static List<Path> elements(Path path) {
+    List<Path> elements = new ArrayList<Path>(path.getNameCount() + 1);
+
+    if (path.getRoot() != null) {
+      elements.add(path.getRoot());
+    }
+
+    for (Path name : path) {
+      elements.add(name);
+    }
+
+    return elements;
+  }
+
+
+  /*************************************************************************
+   * One name element of the registered paths
+   * 
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   * @param <T>
+   */
+  private static class Node<T> {
+
+    private final Node<T> parent;
+
+    /**
+     * The name of this node in its parent
+     */
+    private final Path name;
+
+    private final ConcurrentHashMap<Path, Node<T>> children;
+
+    /**
+     * The registered path, or <code>null</code> if this node is only an ancestor of registered
+     * paths
+     */
+    private volatile Path path = null;
+
+    private volatile T value = null;
+
+    /**
+     * 
+     * 
+     * @param parent
+     * @param name
+     */
+    public Node(Node<T> parent, Path name) {
+      this.parent = parent;
+      this.name = name;
+      this.children = new ConcurrentHashMap<Path, Node<T>>(4);
+    }
+
+  }
+
+}
@@ -0,0 +1,27 @@
+package ch.thn.file.filesystemwatcher;
+
+import java.util.List;
+
+/**
+ * A listener which gets all events which have been detected together in one call, instead of one
+ * call per event like the {@link PathWatcherListener}. This allows to process the changes in one
+ * go, for example in one database transaction.
+ * 
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public interface PathWatcherBatchListener {
+
+
+  /**
+   * Fired with the events of all watch keys which were ready at the same time. With the java
+   * file system watch service, these are the events which have been collected while the previous
+   * batch has been processed. With the {@link PollingWatchService}, these are typically the events
+   * found by one poll.
+   * 
+   * @param events The events in the order in which they occurred for each watched path. The list
+   *        is not modifiable and never empty.
+   */
+  public void pathsChanged(List<PathWatcherEvent> events);
+
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent.Kind;
+
+/**
+ * One change as it is reported to the {@link PathWatcherListener}s
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class PathWatcherEvent {
+
+  /**
+   * The kind of the events which report an entry that has been renamed or moved, see
+   * {@link FileSystemWatcher#setRenameDetection(long, int)}. The context is the new path of the
+   * entry and {@link #getPrevious()} the old one.
+   */
+  public static final Kind<Path> ENTRY_RENAMED = new Kind<Path>() {
+
+    @Override
+    public String name() {
+      return "ENTRY_RENAMED";
+    }
+
+    @Override
+    public Class<Path> type() {
+      return Path.class;
+    }
+
+    @Override
+    public String toString() {
+      return name();
+    }
+  };
+
+  private final Kind<?> kind;
+  private final Path path;
+  private final Path context;
+  private final Path previous;
+  private final boolean overflow;
+  private final long detected;
+
+
+  /**
+   * 
+   * 
+   * @param kind The kind of the event
+   * @param path The watched path in which the change happened
+   * @param context The created, deleted or modified path, or <code>null</code> if
+   *        overflow=<code>true</code>
+   * @param overflow An indicator by the watch service which indicates that events may have been
+   *        lost or discarded
+   */
+  public PathWatcherEvent(Kind<?> kind, Path path, Path context, boolean overflow) {
+    this(kind, path, context, overflow, System.nanoTime());
+  }
+
+  /**
+   * 
+   * 
+   * @param kind The kind of the event
+   * @param path The watched path in which the change happened
+   * @param context The created, deleted or modified path, or <code>null</code> if
+   *        overflow=<code>true</code>
+   * @param overflow An indicator by the watch service which indicates that events may have been
+   *        lost or discarded
+   * @param detected When the change has been detected, as {@link System#nanoTime()}
+   */
+  PathWatcherEvent(Kind<?> kind, Path path, Path context, boolean overflow, long detected) {
+    this(kind, path, context, null, overflow, detected);
+  }
+
+  /**
+   * 
+   * 
+   * @param kind The kind of the event
+   * @param path The watched path in which the change happened
+   * @param context The created, deleted, modified or renamed path, or <code>null</code> if
+   *        overflow=<code>true</code>
+   * @param previous The old path of a renamed entry, or <code>null</code>
+   * @param overflow An indicator by the watch service which indicates that events may have been
+   *        lost or discarded
+   * @param detected When the change has been detected, as {@link System#nanoTime()}
+   */
+  PathWatcherEvent(Kind<?> kind, Path path, Path context, Path previous, boolean overflow,
+      long detected) {
+    this.kind = kind;
+    this.path = path;
+    this.context = context;
+    this.previous = previous;
+    this.overflow = overflow;
+    this.detected = detected;
+  }
+
+  /**
+   * 
+   * 
+   * @return The kind of the event
+   */
+  public Kind<?> getKind() {
+    return kind;
+  }
+
+  /**
+   * 
+   * 
+   * @return The watched path in which the change happened
+   */
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * 
+   * 
+   * @return The created, deleted or modified path, or <code>null</code> for an overflow
+   */
+  public Path getContext() {
+    return context;
+  }
+
+  /**
+   * 
+   * 
+   * @return The old path of an entry which has been renamed or moved ({@link #ENTRY_RENAMED}), or
+   *         <code>null</code> for all other kinds
+   */
+  public Path getPrevious() {
+    return previous;
+  }
+
+  /**
+   * 
+   * 
+   * @return <code>true</code> if events may have been lost or discarded
+   */
+  public boolean isOverflow() {
+    return overflow;
+  }
+
+  /**
+   * 
+   * 
+   * @return When the change has been detected, as {@link System#nanoTime()}
+   */
+  long getDetected() {
+    return detected;
+  }
+
+  @Override
+  public String toString() {
+    if (previous != null) {
+      return kind.name() + " " + previous + " -> " + context;
+    }
+
+    return kind.name() + " " + (overflow ? path : context);
+  }
+
+}
@@ -0,0 +1,541 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the events of a {@link FileSystemWatcher} to reactive subscribers. Each subscriber
+ * gets the events in the order in which they have been detected, and only as many as it
+ * requested. Events which have not been requested yet are buffered for each subscriber, and the
+ * {@link BackpressureStrategy} defines what happens when a buffer is full, so that a slow
+ * subscriber never makes the buffers grow without limit.<br>
+ * <br>
+ * The subscribers are notified by the executor of the publisher, never by the watcher thread.
+ * Closing the publisher completes all subscriptions once their buffered events have been
+ * delivered.<br>
+ * <br>
+ * This class needs Java 9 or later, for {@link Flow}. The watcher itself does not depend on it,
+ * a publisher is created with {@link #publish(FileSystemWatcher, int, BackpressureStrategy)}.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class PathWatcherPublisher
+    implements Flow.Publisher<PathWatcherEvent>, PathWatcherBatchListener, AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(PathWatcherPublisher.class);
+
+  private final FileSystemWatcher watcher;
+
+  private final int capacity;
+
+  private final BackpressureStrategy strategy;
+
+  private final Executor executor;
+
+  private final CopyOnWriteArrayList<Subscription> subscriptions;
+
+  /**
+   * The number of events which have been merged into others or replaced by overflow events
+   */
+  private final AtomicLong coalesced;
+
+  /**
+   * If set, the polling watch service has been paused by this publisher
+   */
+  private boolean pollingPaused = false;
+
+  private volatile boolean closed = false;
+
+
+  /**
+   * Creates a publisher of the events of a watcher for reactive subscribers, which only get as
+   * many events as they requested. The subscribers are notified by the common fork join pool.
+   * 
+   * @param watcher
+   * @param capacity The maximum number of events which are buffered for each subscriber
+   * @param strategy What to do if a subscriber does not request events fast enough
+   * @return The publisher, which is notified by the watcher until it is closed
+   * @throws IllegalArgumentException If {@link BackpressureStrategy#PAUSE_POLLING} is used
+   *         without polling
+   */
+  public static PathWatcherPublisher publish(FileSystemWatcher watcher, int capacity,
+      BackpressureStrategy strategy) {
+    return publish(watcher, capacity, strategy, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates a publisher of the events of a watcher for reactive subscribers, which only get as
+   * many events as they requested
+   * 
+   * @param watcher
+   * @param capacity The maximum number of events which are buffered for each subscriber
+   * @param strategy What to do if a subscriber does not request events fast enough
+   * @param executor The executor which notifies the subscribers
+   * @return The publisher, which is notified by the watcher until it is closed
+   * @throws IllegalArgumentException If {@link BackpressureStrategy#PAUSE_POLLING} is used
+   *         without polling
+   */
+  public static PathWatcherPublisher publish(FileSystemWatcher watcher, int capacity,
+      BackpressureStrategy strategy, Executor executor) {
+    return new PathWatcherPublisher(watcher, capacity, strategy, executor);
+  }
+
+  /**
+   * Creates the publisher and adds it to the watcher as batch listener
+   * 
+   * @param watcher
+   * @param capacity The maximum number of buffered events of each subscriber
+   * @param strategy What to do if a buffer is full
+   * @param executor The executor which notifies the subscribers
+   */
+  PathWatcherPublisher(FileSystemWatcher watcher, int capacity, BackpressureStrategy strategy,
+      Executor executor) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Buffer capacity has to be at least 1");
+    }
+
+    if (strategy == BackpressureStrategy.PAUSE_POLLING
+        && watcher.getPollingWatchService() == null) {
+      throw new IllegalArgumentException(strategy + " is only available in polling mode");
+    }
+
+    this.watcher = watcher;
+    this.capacity = capacity;
+    this.strategy = strategy;
+    this.executor = executor;
+
+    subscriptions = new CopyOnWriteArrayList<Subscription>();
+    coalesced = new AtomicLong();
+
+    watcher.addPathWatcherBatchListener(this);
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super PathWatcherEvent> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("Subscriber can not be null");
+    }
+
+    for (Subscription s : subscriptions) {
+      if (s.subscriber == subscriber) {
+        // Subscribed already
+        return;
+      }
+    }
+
+    Subscription subscription = new Subscription(subscriber);
+    subscriber.onSubscribe(subscription);
+
+    // Added after onSubscribe, so that no event can be delivered before it
+    subscriptions.add(subscription);
+
+    if (closed) {
+      subscription.complete();
+    }
+  }
+
+  @Override
+  public void pathsChanged(List<PathWatcherEvent> events) {
+    for (Subscription s : subscriptions) {
+      s.offer(events);
+    }
+
+    updatePolling();
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of current subscribers
+   */
+  public int getSubscriberCount() {
+    return subscriptions.size();
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of events which have been merged into others or replaced by overflow
+   *         events because a buffer was full
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * Stops publishing new events. The subscriptions are completed once their buffered events have
+   * been delivered.
+   * 
+   */
+  @Override
+  public void close() {
+    closed = true;
+    watcher.removePathWatcherBatchListener(this);
+
+    for (Subscription s : subscriptions) {
+      s.complete();
+    }
+
+    updatePolling();
+  }
+
+  /**
+   * Pauses the polling watch service if a buffer is full, and lets it continue once all buffers
+   * are down to half of their capacity again
+   * 
+   */
+  private synchronized void updatePolling() {
+    if (strategy != BackpressureStrategy.PAUSE_POLLING) {
+      return;
+    }
+
+    boolean full = false;
+    boolean drained = true;
+
+    if (!closed) {
+      for (Subscription s : subscriptions) {
+        int size = s.size();
+        full |= size >= capacity;
+        drained &= size <= capacity / 2;
+      }
+    }
+
+    if (full && !pollingPaused) {
+      watcher.getPollingWatchService().pause(true);
+      pollingPaused = true;
+    } else if (drained && pollingPaused) {
+      watcher.getPollingWatchService().pause(false);
+      pollingPaused = false;
+    }
+  }
+
+
+  /*************************************************************************
+   * The buffer and the demand of one subscriber. The events are delivered by a drain task which
+   * runs on the executor, at most once at a time.
+   * 
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private class Subscription implements Flow.Subscription, Runnable {
+
+    private final Flow.Subscriber<? super PathWatcherEvent> subscriber;
+
+    private final ArrayDeque<PathWatcherEvent> buffer;
+
+    /**
+     * The number of requested and not yet delivered events
+     */
+    private long demand = 0;
+
+    /**
+     * If set, the subscription is completed once the buffer is empty
+     */
+    private boolean completing = false;
+
+    private boolean cancelled = false;
+
+    /**
+     * An error which has to be signalled to the subscriber
+     */
+    private Throwable error = null;
+
+    /**
+     * How many times the drain task has been asked to run. Only the first one schedules it.
+     */
+    private final AtomicInteger drainRequests;
+
+    /**
+     * 
+     * 
+     * @param subscriber
+     */
+    public Subscription(Flow.Subscriber<? super PathWatcherEvent> subscriber) {
+      this.subscriber = subscriber;
+
+      buffer = new ArrayDeque<PathWatcherEvent>();
+      drainRequests = new AtomicInteger();
+    }
+
+    @Override
+    public void request(long n) {
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+
+        if (n <= 0) {
+          error = new IllegalArgumentException("Requested " + n + " events, has to be positive");
+        } else {
+          // Unbounded once it overflows
+          demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        }
+      }
+
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (this) {
+        cancelled = true;
+        buffer.clear();
+      }
+
+      subscriptions.remove(this);
+      updatePolling();
+    }
+
+    /**
+     * 
+     * 
+     * @param events
+     */
+    public void offer(List<PathWatcherEvent> events) {
+      synchronized (this) {
+        if (cancelled || completing) {
+          return;
+        }
+
+        buffer.addAll(events);
+
+        // Once per batch, so that a burst does not merge the whole buffer with every event. With
+        // PAUSE_POLLING, this only happens if the scan which was running when the buffer got full
+        // found more than fits.
+        if (buffer.size() > capacity) {
+          coalesce();
+        }
+      }
+
+      drain();
+    }
+
+    /**
+     * Completes the subscription once the buffered events have been delivered
+     * 
+     */
+    public void complete() {
+      synchronized (this) {
+        completing = true;
+      }
+
+      drain();
+    }
+
+    /**
+     * 
+     * 
+     * @return The number of buffered events
+     */
+    public synchronized int size() {
+      return buffer.size();
+    }
+
+    /**
+     * Merges the buffered events of each path. If there are still too many, they are replaced
+     * with one overflow event for each watched path, or with one single overflow event for the
+     * closest common parent of the watched paths if there are more of them than fit.
+     * 
+     */
+    private void coalesce() {
+      int before = buffer.size();
+
+      // Plain events by their path, others by themselves, in the order in which they occurred
+      Map<Object, PathWatcherEvent> merged = new LinkedHashMap<Object, PathWatcherEvent>();
+
+      for (PathWatcherEvent event : buffer) {
+        if (event.isOverflow() || event.getContext() == null
+            || event.getKind() == PathWatcherEvent.ENTRY_RENAMED) {
+          merged.put(event, event);
+          continue;
+        }
+
+        PathWatcherEvent previous = merged.get(event.getContext());
+        if (previous == null) {
+          merged.put(event.getContext(), event);
+          continue;
+        }
+
+        Kind<?> kind = EventCoalescer.merge(previous.getKind(), event.getKind());
+        if (kind == null) {
+          // Created and deleted again
+          merged.remove(event.getContext());
+        } else {
+          merged.put(event.getContext(), new PathWatcherEvent(kind, previous.getPath(),
+              previous.getContext(), false, previous.getDetected()));
+        }
+      }
+
+      buffer.clear();
+      buffer.addAll(merged.values());
+
+      if (buffer.size() > capacity) {
+        Set<Path> paths = new LinkedHashSet<Path>();
+        for (PathWatcherEvent event : buffer) {
+          paths.add(event.getPath());
+        }
+
+        buffer.clear();
+        if (paths.size() <= capacity) {
+          for (Path path : paths) {
+            buffer.add(new PathWatcherEvent(StandardWatchEventKinds.OVERFLOW, path, null, true));
+          }
+        } else {
+          buffer.add(new PathWatcherEvent(StandardWatchEventKinds.OVERFLOW, commonParent(paths),
+              null, true));
+        }
+      }
+
+      coalesced.addAndGet(before - buffer.size());
+    }
+
+    /**
+     * 
+     * 
+     * @param paths
+     * @return The closest path which all paths are in, or <code>null</code> if they do not have
+     *         the same root
+     */
+    private Path commonParent(Collection<Path> paths) {
+      Path common = null;
+
+      for (Path path : paths) {
+        if (path == null) {
+          return null;
+        }
+
+        if (common == null) {
+          common = path;
+        }
+
+        while (common != null && !path.startsWith(common)) {
+          common = common.getParent();
+        }
+
+        if (common == null) {
+          return null;
+        }
+      }
+
+      return common;
+    }
+
+    /**
+     * Makes sure that the drain task runs after this call
+     * 
+     */
+    private void drain() {
+      if (drainRequests.getAndIncrement() == 0) {
+        executor.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      int requests = 1;
+
+      while (requests != 0) {
+        deliver();
+
+        // Runs again if it has been asked to while it was running
+        requests = drainRequests.addAndGet(-requests);
+      }
+
+      updatePolling();
+    }
+
+    /**
+     * Delivers buffered events as long as there is demand, and the completion or error once there
+     * is nothing left to deliver
+     * 
+     */
+    private void deliver() {
+      while (true) {
+        PathWatcherEvent event = null;
+        Throwable signalError = null;
+        boolean signalComplete = false;
+
+        synchronized (this) {
+          if (cancelled) {
+            return;
+          }
+
+          if (error != null) {
+            signalError = error;
+            cancelled = true;
+            buffer.clear();
+          } else if (buffer.isEmpty()) {
+            if (!completing) {
+              return;
+            }
+            signalComplete = true;
+            cancelled = true;
+          } else if (demand > 0) {
+            event = buffer.poll();
+            if (demand != Long.MAX_VALUE) {
+              demand--;
+            }
+          } else {
+            return;
+          }
+        }
+
+        if (signalError != null || signalComplete) {
+          subscriptions.remove(this);
+
+          if (signalError != null) {
+            subscriber.onError(signalError);
+          } else {
+            subscriber.onComplete();
+          }
+          return;
+        }
+
+        try {
+          subscriber.onNext(event);
+        } catch (RuntimeException e) {
+          logger.warn("Subscriber " + subscriber + " failed to process " + event
+              + ", cancelling its subscription", e);
+          cancel();
+          return;
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,27 @@
+package ch.thn.file.filesystemwatcher;
+
+import java.nio.file.Path;
+
+/**
+ * A {@link PathWatcherListener} which is notified about renamed and moved entries with one call,
+ * if rename detection is enabled (see {@link FileSystemWatcher#setRenameDetection(long, int)}).
+ * Plain {@link PathWatcherListener}s get a deletion of the old path followed by a creation of the
+ * new path instead.
+ * 
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public interface PathWatcherRenameListener extends PathWatcherListener {
+
+
+  /**
+   * Fired when a directory or its content has been renamed or moved. Like for the other changes,
+   * {@link #pathChanged(Path, Path, boolean)} is fired before with the new path.
+   * 
+   * @param path The watched path in which the entry is now
+   * @param previous The old path of the entry
+   * @param renamed The new path of the entry
+   */
+  public void directoryRenamed(Path path, Path previous, Path renamed);
+
+}
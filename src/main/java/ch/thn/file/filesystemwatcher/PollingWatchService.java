@@ -15,11 +15,15 @@
 package ch.thn.file.filesystemwatcher;
 
 import ch.thn.thread.controlledrunnable.ControlledRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
@@ -27,11 +31,16 @@ import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.Watchable;
-import java.util.LinkedList;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -46,23 +55,101 @@ import java.util.concurrent.TimeUnit;
  */
 public class PollingWatchService extends ControlledRunnable implements WatchService {
 
+  private static final Logger logger = LoggerFactory.getLogger(PollingWatchService.class);
+
   private long pollTimeout = 0;
 
-  private ConcurrentHashMap<Path, PollingWatchKey> registeredPaths = null;
+  /**
+   * The registered directories and their watch keys
+   */
+  private PathRegistry<PollingWatchKey> registeredPaths = null;
 
   /**
-   * A directory and all the files and their last modified timestamps<br />
-   * &lt;Directory, &lt;File path, last modified timestamp&gt;&gt;
+   * The last snapshot of each scanned directory, with all its files and their last modified
+   * timestamps
    */
-  private ConcurrentHashMap<Path, Map<Path, Long>> lastModified = null;
+  private SnapshotStore snapshots = null;
 
   /**
    * A FIFO list of all the watch keys which have events pending
    */
-  private LinkedBlockingQueue<PollingWatchKey> keysWithEvents = null;
+  private HandoffQueue<PollingWatchKey> keysWithEvents = null;
 
   private FilenameFilter fileNameFilter = null;
 
+  /**
+   * Excluded entries are not read, files which are not included are not reported
+   */
+  private volatile PathFilter pathFilter = null;
+
+  /**
+   * The number of threads used to scan the registered directories. 1 means the directories are
+   * scanned one after another on the polling thread.
+   */
+  private volatile int parallelism = 1;
+
+  /**
+   * The pool which scans the directories if parallelism is greater than 1
+   */
+  private volatile ForkJoinPool scanPool = null;
+
+  /**
+   * If set, each directory is scanned on its own virtual thread, instead of the polling thread or
+   * the scan pool
+   */
+  private volatile VirtualThreadExecutor virtualScanner = null;
+
+  /**
+   * If set, a directory is only listed again if its own last modified timestamp or size changed
+   */
+  private volatile boolean skipUnchangedDirectories = false;
+
+  /**
+   * Every how many scans the files of directories which have not been listed again are checked
+   * for modifications. 0 means never.
+   */
+  private volatile int modifyCheckInterval = 1;
+
+  /**
+   * The number of scans done so far
+   */
+  private volatile long scanCount = 0;
+
+  /**
+   * The shortest interval between two checks of a directory if adaptive polling is enabled. 0 if
+   * all directories are checked with the same poll timeout.
+   */
+  private volatile long minPollInterval = 0;
+
+  /**
+   * The longest interval between two checks of a directory if adaptive polling is enabled
+   */
+  private volatile long maxPollInterval = 0;
+
+  private final WatcherMetrics metrics;
+
+  /**
+   * The file the snapshots are persisted to, or <code>null</code>
+   */
+  private volatile SnapshotFile snapshotFile = null;
+
+  /**
+   * The snapshots which have been loaded from the snapshot file and whose directories have not
+   * been registered again yet
+   */
+  private ConcurrentHashMap<Path, DirectorySnapshot> restoredSnapshots = null;
+
+  /**
+   * If set, the restored snapshots of directories which do not exist any more are dropped after
+   * the next scan
+   */
+  private volatile boolean checkRestoredSnapshots = false;
+
+  /**
+   * Verifies the contents of modified files before they are reported, or <code>null</code>
+   */
+  private volatile ContentVerifier contentVerifier = null;
+
   /**
    * 
    * 
@@ -85,9 +172,11 @@ public class PollingWatchService extends ControlledRunnable implements WatchServ
     this.pollTimeout = pollTimeout;
     this.fileNameFilter = fileNameFilter;
 
-    registeredPaths = new ConcurrentHashMap<Path, PollingWatchKey>();
-    lastModified = new ConcurrentHashMap<Path, Map<Path, Long>>();
-    keysWithEvents = new LinkedBlockingQueue<PollingWatchKey>();
+    registeredPaths = new PathRegistry<PollingWatchKey>();
+    snapshots = new SnapshotStore();
+    keysWithEvents = new HandoffQueue<PollingWatchKey>();
+    metrics = new WatcherMetrics();
+    restoredSnapshots = new ConcurrentHashMap<Path, DirectorySnapshot>();
 
   }
 
@@ -111,112 +200,676 @@ public class PollingWatchService extends ControlledRunnable implements WatchServ
 
       lookForChanges();
 
-      controlledWait(pollTimeout);
+      // With adaptive polling, each round only checks the directories which are due
+      controlledWait(minPollInterval > 0 ? minPollInterval : pollTimeout);
 
     }
 
-    registeredPaths.clear();
-    lastModified.clear();
-    keysWithEvents.clear();
+    // Store the final state, compacted
+    try {
+      setSnapshotFile(null);
+    } catch (IOException e) {
+      logger.warn("Failed to write the snapshot file", e);
+    }
 
-    for (PollingWatchKey key : registeredPaths.values()) {
+    for (PollingWatchKey key : registeredPaths.getValues()) {
       key.cancel();
     }
 
-    notifyWaitingTake();
+    registeredPaths.clear();
+    snapshots.clear();
+    keysWithEvents.clear();
+
+    setParallelism(1);
+    setContentVerification(0, 0);
+
+    // In case it has been stopped without closing it
+    keysWithEvents.close();
 
     runEnd();
   }
 
 
+  /**
+   * Sets the number of threads which scan the registered directories. With a parallelism of 1
+   * (the default) all directories are scanned one after another on the polling thread. With a
+   * higher parallelism, the registered directories are split up and scanned concurrently in a
+   * {@link ForkJoinPool}. Each directory is always scanned by one single thread, so the events of
+   * one directory keep their order.
+   * 
+   * @param parallelism The number of scanning threads, at least 1
+   */
+  public synchronized void setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism has to be at least 1");
+    }
+
+    this.parallelism = parallelism;
+
+    if (scanPool != null) {
+      scanPool.shutdown();
+      scanPool = null;
+    }
+
+    if (parallelism > 1) {
+      scanPool = new ForkJoinPool(parallelism);
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of threads which scan the registered directories
+   */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Enables or disables scanning on virtual threads (Java 21 or later). Each registered directory
+   * is scanned on its own virtual thread, with at most the given number of them scanning at the
+   * same time. A virtual thread which waits for a slow listing, for example of a directory on a
+   * network mount, does not block a platform thread, so many more listings can overlap than with
+   * {@link #setParallelism(int)}, which is ignored while virtual threads are used. Each
+   * directory is still scanned by one single thread per scan.<br>
+   * <br>
+   * A virtual thread which blocks while it holds a monitor pins the platform thread it runs on
+   * (up to Java 23). The listings and attribute reads of a scan do not hold any monitor. The
+   * synchronized methods of the snapshots and keys only guard in-memory work and are held
+   * briefly. The snapshot file, which is written by the scanning threads, is guarded by a lock
+   * which does not pin.
+   * 
+   * @param maxConcurrency The maximum number of directories which are scanned at the same time.
+   *        0 disables virtual threads.
+   * @throws UnsupportedOperationException If the java version has no virtual threads
+   */
+  public synchronized void setVirtualThreads(int maxConcurrency) {
+    if (maxConcurrency < 0) {
+      throw new IllegalArgumentException("Concurrency can not be negative");
+    }
+
+    virtualScanner = maxConcurrency > 0
+        ? new VirtualThreadExecutor(PollingWatchService.class.getSimpleName(), maxConcurrency)
+        : null;
+  }
+
+  /**
+   * 
+   * 
+   * @return <code>true</code> if the directories are scanned on virtual threads
+   */
+  public boolean isVirtualThreads() {
+    return virtualScanner != null;
+  }
+
+  /**
+   * Enables or disables the directory timestamp check. Creating, deleting or renaming an entry
+   * changes the last modified timestamp of its directory. With this check enabled, each scan first
+   * reads the attributes of the directory itself and only lists it again if its timestamp or size
+   * changed. On mostly idle trees, this makes a scan one attribute read per directory (plus the
+   * modify checks, see {@link #setModifyCheckInterval(int)}).<br>
+   * <br>
+   * Some network file systems do not reliably update the timestamps of directories. Do not enable
+   * this check if creations or deletions go unnoticed with it.
+   * 
+   * @param skipUnchangedDirectories
+   */
+  public void setSkipUnchangedDirectories(boolean skipUnchangedDirectories) {
+    this.skipUnchangedDirectories = skipUnchangedDirectories;
+  }
+
   /**
    * 
    * 
+   * @return <code>true</code> if directories are only listed again if their timestamp changed
    */
-  private void lookForChanges() {
+  public boolean isSkipUnchangedDirectories() {
+    return skipUnchangedDirectories;
+  }
 
-    // Set<Path> tempPaths = new HashSet<>();
+  /**
+   * Sets the include and exclude rules for the scanned entries. Excluded entries are left out
+   * before their attributes are read. Unlike the file name filter, the rules can also match whole
+   * paths. The filter should be set before the directories are registered, the snapshots taken
+   * before are only filtered with their next scan.
+   * 
+   * @param pathFilter The filter, or <code>null</code> to scan all entries
+   */
+  public void setPathFilter(PathFilter pathFilter) {
+    this.pathFilter = pathFilter;
+  }
 
-    for (Path directoryPath : registeredPaths.keySet()) {
-      // If a registered path gets deleted because it does not exist any more
-      // and it is the next path in line, it still gets returned. Check here again
-      // if it it still available.
-      if (!registeredPaths.containsKey(directoryPath)) {
-        continue;
+  /**
+   * 
+   * 
+   * @return The include and exclude rules for the scanned entries, or <code>null</code>
+   */
+  public PathFilter getPathFilter() {
+    return pathFilter;
+  }
+
+  /**
+   * Modifying a file does not change the timestamp of its directory. If unchanged directories are
+   * skipped (see {@link #setSkipUnchangedDirectories(boolean)}), the known files of a skipped
+   * directory are checked for modifications in a separate pass, which reads the attributes of the
+   * files without listing the directory. This interval defines how often this pass is done.
+   * 
+   * @param modifyCheckInterval 1 (the default) checks the files with every scan, n every n-th scan
+   *        and 0 never. Directories which are listed again always report their modified files.
+   */
+  public void setModifyCheckInterval(int modifyCheckInterval) {
+    if (modifyCheckInterval < 0) {
+      throw new IllegalArgumentException("Modify check interval can not be negative");
+    }
+
+    this.modifyCheckInterval = modifyCheckInterval;
+  }
+
+  /**
+   * 
+   * 
+   * @return Every how many scans the files of skipped directories are checked for modifications
+   */
+  public int getModifyCheckInterval() {
+    return modifyCheckInterval;
+  }
+
+  /**
+   * Enables adaptive polling, where each directory is checked in its own interval instead of all
+   * directories with every poll. A directory in which changes have been found is checked again
+   * after the minimum interval. Every check without changes doubles the interval of the
+   * directory, up to the maximum interval. Busy directories are like this checked often while
+   * quiet ones hardly cause any I/O.<br>
+   * With adaptive polling enabled, the poll timeout given with the constructor is not used.
+   * 
+   * @param minPollInterval The shortest interval between two checks of a directory, in
+   *        milliseconds. 0 disables adaptive polling.
+   * @param maxPollInterval The longest interval between two checks of a directory, in
+   *        milliseconds
+   * @throws IllegalArgumentException If an interval is negative, or if adaptive polling is
+   *         enabled and the maximum interval is shorter than the minimum
+   */
+  public synchronized void setAdaptivePolling(long minPollInterval, long maxPollInterval) {
+    if (minPollInterval < 0 || maxPollInterval < 0
+        || (minPollInterval > 0 && maxPollInterval < minPollInterval)) {
+      throw new IllegalArgumentException("Invalid adaptive polling interval "
+          + minPollInterval + "-" + maxPollInterval);
+    }
+
+    this.maxPollInterval = maxPollInterval;
+    this.minPollInterval = minPollInterval;
+  }
+
+  /**
+   * 
+   * 
+   * @return The shortest interval between two checks of a directory, or 0 if adaptive polling is
+   *         disabled
+   */
+  public long getMinPollInterval() {
+    return minPollInterval;
+  }
+
+  /**
+   * 
+   * 
+   * @return The longest interval between two checks of a directory
+   */
+  public long getMaxPollInterval() {
+    return maxPollInterval;
+  }
+
+  /**
+   * Enables or disables the content verification of modified files. A new last modified timestamp
+   * does not mean that the contents of a file changed: touching a file, rewriting it with the same
+   * contents or copying the same file over it all change the timestamp. With content verification,
+   * a file with a new timestamp and the same size is hashed and only reported as modified if its
+   * contents differ from the last time it has been hashed. Files whose size changed are reported
+   * without hashing them.<br>
+   * <br>
+   * The hashes are cached. A file which has no cached hash yet is reported and then hashed, so
+   * that its next modification can be verified. Created files are hashed right away. The hashing
+   * runs on its own threads and does not hold up the scans, which means that verified
+   * modifications may be reported slightly after the other changes of the same scan.
+   * 
+   * @param threads The number of hashing threads. 0 disables the content verification.
+   * @param cacheSize The maximum number of cached hashes
+   */
+  public synchronized void setContentVerification(int threads, int cacheSize) {
+    if (threads < 0) {
+      throw new IllegalArgumentException("Number of hashing threads can not be negative");
+    }
+
+    if (contentVerifier != null) {
+      contentVerifier.shutdown();
+      contentVerifier = null;
+    }
+
+    if (threads > 0) {
+      contentVerifier = new ContentVerifier(threads, cacheSize);
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @return <code>true</code> if the contents of modified files are verified before they are
+   *         reported
+   */
+  public boolean isContentVerification() {
+    return contentVerifier != null;
+  }
+
+  /**
+   * Estimates how much heap the recorded directory snapshots currently use. Walks through all
+   * snapshots, so it should not be called too often with very large trees.
+   * 
+   * @return The footprint report
+   */
+  public SnapshotFootprint getSnapshotFootprint() {
+    return snapshots.getFootprint();
+  }
+
+  /**
+   * 
+   * 
+   * @param directory
+   * @return The last recorded snapshot of the directory, or <code>null</code> if there is none
+   */
+  DirectorySnapshot getSnapshot(Path directory) {
+    return snapshots.get(directory);
+  }
+
+
+  /**
+   * Sets the file in which the snapshots of the watched directories are persisted. The file is
+   * loaded right away. When a directory is registered which has a snapshot in the file, its
+   * snapshot is taken over instead of listing the directory, and the first poll reports everything
+   * which has been created, modified or deleted while the watcher has not been running.<br>
+   * <br>
+   * While polling, the snapshot of each changed directory is appended to the file. The file is
+   * compacted from time to time and when the watch service stops. The file has to be set before
+   * the directories are registered. Snapshots of directories which have been deleted meanwhile are
+   * dropped after the first scan, which follows the registration, and
+   * {@link #discardRestoredSnapshots()} drops the ones which are not registered again.
+   * 
+   * @param file The snapshot file, which is created if it does not exist. <code>null</code> closes
+   *        the current file.
+   * @throws IOException If the file could not be opened, or if it exists and is not a snapshot
+   *         file
+   */
+  public synchronized void setSnapshotFile(Path file) throws IOException {
+    SnapshotFile current = snapshotFile;
+
+    if (current != null) {
+      snapshotFile = null;
+
+      try {
+        current.compact(getPersistedSnapshots());
+      } finally {
+        current.close();
+        restoredSnapshots.clear();
       }
+    }
 
-      File directory = directoryPath.toFile();
-      PollingWatchKey key = registeredPaths.get(directoryPath);
+    if (file != null) {
+      SnapshotFile newFile = new SnapshotFile(file);
+      restoredSnapshots.putAll(newFile.open(snapshots.getNameTable()));
+      snapshotFile = newFile;
+      checkRestoredSnapshots = !restoredSnapshots.isEmpty();
+    }
+  }
 
+  /**
+   * 
+   * 
+   * @return The file in which the snapshots are persisted, or <code>null</code>
+   */
+  public Path getSnapshotFile() {
+    SnapshotFile file = snapshotFile;
+    return file == null ? null : file.getFile();
+  }
 
-      // Does registered directory still exist?
-      if (!directory.exists()) {
-        entryDelete(key, directoryPath);
-        continue;
+  /**
+   * 
+   * 
+   * @return The metrics of the polling cycles
+   */
+  public WatcherMetrics getMetrics() {
+    return metrics;
+  }
+
+
+  /**
+   * Scans all registered directories once, either sequentially, split up across the scan pool or
+   * on virtual threads
+   * 
+   */
+  void lookForChanges() {
+
+    long start = System.nanoTime();
+
+    scanCount++;
+
+    ForkJoinPool pool = scanPool;
+    VirtualThreadExecutor virtual = virtualScanner;
+
+    if (virtual != null) {
+      List<Runnable> scans = new ArrayList<Runnable>();
+
+      for (final Path directoryPath : registeredPaths.getPaths()) {
+        scans.add(new Runnable() {
+
+          @Override
+          public void run() {
+            scanDirectory(directoryPath);
+          }
+        });
       }
 
-      File[] files = null;
-      if (fileNameFilter != null) {
-        files = directory.listFiles(fileNameFilter);
-      } else {
-        files = directory.listFiles();
+      virtual.invokeAll(scans);
+    } else if (pool == null) {
+      for (Path directoryPath : registeredPaths.getPaths()) {
+        scanDirectory(directoryPath);
       }
+    } else {
+      List<Path> directories = registeredPaths.getPaths();
+      // Several chunks per thread, so that one slow directory does not hold up a whole chunk
+      int threshold = Math.max(1, directories.size() / (parallelism * 4));
+      pool.invoke(new ScanTask(directories, 0, directories.size(), threshold));
+    }
+
+    metrics.recordScan(System.nanoTime() - start);
+    metrics.setPendingKeys(keysWithEvents.size());
+
+    if (checkRestoredSnapshots) {
+      // The directories which are watched after the restart have been registered
+      checkRestoredSnapshots = false;
+      dropRestoredSnapshots(true);
+    }
+
+    compactSnapshotFile();
+
+  }
+
+  /**
+   * Compacts the snapshot file if it has too many outdated records
+   * 
+   */
+  private synchronized void compactSnapshotFile() {
+    SnapshotFile file = snapshotFile;
+
+    if (file != null && file.needsCompaction()) {
+      try {
+        file.compact(getPersistedSnapshots());
+      } catch (IOException | RuntimeException e) {
+        // Never ends the polling, the snapshots are only persisted as long as possible
+        logger.warn("Failed to compact the snapshot file " + file.getFile(), e);
+      }
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @return The snapshots which belong into the snapshot file: the current ones, and the restored
+   *         ones whose directories have not been registered again yet but still exist
+   */
+  private Collection<DirectorySnapshot> getPersistedSnapshots() {
+    List<DirectorySnapshot> persisted = new ArrayList<DirectorySnapshot>(snapshots.getSnapshots());
+
+    for (DirectorySnapshot restored : restoredSnapshots.values()) {
+      Path directory = restored.getDirectory();
 
-      if (!lastModified.containsKey(directoryPath)) {
-        // It is a new path which has just been added and has not been checked yet.
-        // Record all files and their modified timestamp
+      if (!Files.isDirectory(directory)) {
+        // Deleted while the watcher has not been running, it will not be registered again
+        restoredSnapshots.remove(directory);
+      } else if (!snapshots.contains(directory)) {
+        persisted.add(restored);
+      }
+    }
+
+    return persisted;
+  }
 
-        Map<Path, Long> filesMap = new ConcurrentHashMap<Path, Long>();
-        lastModified.put(directoryPath, filesMap);
+  /**
+   * Drops the snapshots which have been loaded from the snapshot file and whose directories have
+   * not been registered again. Call this once all directories which are watched after a restart
+   * have been registered. Otherwise the snapshots of directories which are not watched any more
+   * stay in the snapshot file as long as the directories exist.
+   * 
+   * @return The number of dropped snapshots
+   */
+  public int discardRestoredSnapshots() {
+    return dropRestoredSnapshots(false);
+  }
 
-        for (File f : files) {
-          Path filePath = f.toPath();
-          long fileLastModified = f.lastModified();
+  /**
+   * Drops restored snapshots whose directories have not been registered again, and writes their
+   * removal to the snapshot file
+   * 
+   * @param deletedOnly If set, only the snapshots of directories which do not exist any more are
+   *        dropped
+   * @return The number of dropped snapshots
+   */
+  private synchronized int dropRestoredSnapshots(boolean deletedOnly) {
+    SnapshotFile file = snapshotFile;
+    int dropped = 0;
 
-          filesMap.put(filePath, fileLastModified);
+    for (Path directory : new ArrayList<Path>(restoredSnapshots.keySet())) {
+      if (deletedOnly && Files.isDirectory(directory)) {
+        continue;
+      }
+
+      if (restoredSnapshots.remove(directory) == null) {
+        continue;
+      }
+
+      dropped++;
+
+      if (file != null && !snapshots.contains(directory)) {
+        try {
+          file.appendRemoval(directory);
+        } catch (IOException | IllegalStateException e) {
+          logger.warn("Failed to write the removal of " + directory + " to the snapshot file "
+              + file.getFile(), e);
         }
+      }
+    }
 
-      } else {
-        Map<Path, Long> directoryFileMap = lastModified.get(directoryPath);
+    return dropped;
+  }
 
-        // Check all existing files
-        for (File f : files) {
-          Path filePath = f.toPath();
-          long fileLastModified = f.lastModified();
+  /**
+   * Appends the current state of a snapshot to the snapshot file, if there is one
+   * 
+   * @param snapshot
+   */
+  private void persist(DirectorySnapshot snapshot) {
+    SnapshotFile file = snapshotFile;
+
+    if (file != null) {
+      try {
+        file.append(snapshot);
+      } catch (IOException | IllegalStateException e) {
+        logger.warn("Failed to write the snapshot of " + snapshot.getDirectory()
+            + " to the snapshot file " + file.getFile(), e);
+      }
+    }
+  }
 
-          if (directoryFileMap.containsKey(filePath)) {
-            // File has previously been around
+  /**
+   * Checks one registered directory for created, modified and deleted files, if it is due with
+   * adaptive polling
+   * 
+   * @param directoryPath
+   */
+  private void scanDirectory(Path directoryPath) {
+    // If a registered path gets deleted because it does not exist any more
+    // and it is the next path in line, it still gets returned. Check here again
+    // if it it still available.
+    PollingWatchKey key = registeredPaths.get(directoryPath);
+    if (key == null) {
+      return;
+    }
 
-            if (filePath.toFile().exists()) {
-              // Modified?
+    long minInterval = minPollInterval;
 
-              long oldLastModified = directoryFileMap.get(filePath);
+    if (minInterval > 0) {
+      long now = System.currentTimeMillis();
+      if (!key.isDue(now)) {
+        return;
+      }
 
-              if (oldLastModified < fileLastModified) {
-                // New modification date on current file
-                directoryFileMap.put(filePath, fileLastModified);
-                fileModified(key, filePath, StandardWatchEventKinds.ENTRY_MODIFY);
-              }
-            }
+      long changes = key.getChangeCount();
+      scanDirectory(key, directoryPath);
+      boolean changed = key.getChangeCount() != changes;
+      key.schedule(now, changed, minInterval, maxPollInterval);
 
-          } else {
-            // File has not been recorded yet and must therefore be new
-            directoryFileMap.put(filePath, fileLastModified);
-            fileModified(key, filePath, StandardWatchEventKinds.ENTRY_CREATE);
-          }
+      if (changed) {
+        signal(key);
+      }
+    } else {
+      long changes = key.getChangeCount();
+      scanDirectory(key, directoryPath);
+
+      if (key.getChangeCount() != changes) {
+        signal(key);
+      }
+    }
+
+  }
+
+  /**
+   * 
+   * 
+   * @param key
+   * @param directoryPath
+   */
+  private void scanDirectory(PollingWatchKey key, Path directoryPath) {
+
+    BasicFileAttributes directoryAttributes = null;
+
+    if (skipUnchangedDirectories) {
+      DirectorySnapshot recorded = snapshots.get(directoryPath);
+
+      if (recorded != null) {
+        try {
+          directoryAttributes = Files.readAttributes(directoryPath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+          entryDelete(key, directoryPath);
+          return;
+        } catch (IOException e) {
+          return;
         }
 
-        // Go through the list of recorded files and check if they all still exist
-        for (Path path : directoryFileMap.keySet()) {
-          File f = path.toFile();
-          if (!f.exists()) {
-            entryDelete(key, path);
+        if (recorded.isUnchanged(directoryAttributes)) {
+          int interval = modifyCheckInterval;
+          if (interval > 0 && scanCount % interval == 0) {
+            checkModified(key, recorded);
+            metrics.recordDirectoryScanned(recorded.size());
+          } else {
+            metrics.recordDirectoryScanned(0);
           }
+          return;
         }
+      }
+    }
+
+    DirectorySnapshot current = null;
+    try {
+      current = snapshots.read(directoryPath, fileNameFilter, pathFilter, directoryAttributes);
+    } catch (NoSuchFileException | NotDirectoryException e) {
+      // Registered directory does not exist any more
+      entryDelete(key, directoryPath);
+      return;
+    } catch (IOException e) {
+      // Not readable at the moment. Keep the previous snapshot and try again with the next scan.
+      return;
+    }
+
+    metrics.recordDirectoryScanned(current.size());
+
+    DirectorySnapshot previous = snapshots.put(current);
+
+    if (registeredPaths.get(directoryPath) == null) {
+      // Unregistered while it has been scanned
+      snapshots.remove(directoryPath);
+      return;
+    }
 
+    if (previous == null) {
+      // It is a new path which has just been added and has not been checked yet.
+      // The snapshot is the base for the next checks.
+      persist(current);
+      return;
+    }
+
+    DirectorySnapshot.Diff diff = current.diff(previous);
+
+    ContentVerifier verifier = contentVerifier;
+
+    for (Path path : diff.getCreated()) {
+      fileModified(key, path, StandardWatchEventKinds.ENTRY_CREATE);
+      if (verifier != null) {
+        verifier.prime(path);
       }
     }
 
+    for (Path path : diff.getModified()) {
+      entryModify(key, path, previous.getLastModified(path.getFileName().toString()));
+    }
+
+    for (Path path : diff.getDeleted()) {
+      entryDelete(key, path);
+    }
+
+    if (!diff.isEmpty()) {
+      persist(current);
+    }
+
+  }
+
+  /**
+   * Checks the recorded files of a directory for modifications, without listing the directory
+   * 
+   * @param key
+   * @param snapshot
+   */
+  private void checkModified(PollingWatchKey key, DirectorySnapshot snapshot) {
+    Path directoryPath = snapshot.getDirectory();
+    boolean changed = false;
+
+    for (String name : snapshot.getNames()) {
+      Path path = directoryPath.resolve(name);
+      BasicFileAttributes attributes = null;
+
+      try {
+        attributes = DirectorySnapshot.readAttributes(path);
+      } catch (IOException e) {
+        continue;
+      }
+
+      if (attributes == null) {
+        // Deleted in the meantime, even though the directory timestamp has not changed yet
+        entryDelete(key, path);
+        changed = true;
+        continue;
+      }
+
+      long fileLastModified = attributes.lastModifiedTime().toMillis();
+      long recorded = snapshot.getLastModified(name);
+      if (recorded < fileLastModified) {
+        snapshot.update(name, fileLastModified);
+        entryModify(key, path, recorded);
+        changed = true;
+      }
+    }
+
+    if (changed) {
+      persist(snapshot);
+    }
+
   }
 
   /**
@@ -227,111 +880,207 @@ public class PollingWatchService extends ControlledRunnable implements WatchServ
    */
   private void entryDelete(PollingWatchKey key, Path path) {
 
-    // Unregister
-    registeredPaths.remove(path);
+    // Unregister. If it was a registered directory, its key is invalidated once the deletion has
+    // been added, so that the key is still handed out with it if it is its own key.
+    PollingWatchKey removed = registeredPaths.remove(path);
+
+    // Clear the snapshot
+    if (snapshots.remove(path) != null) {
+      SnapshotFile file = snapshotFile;
+      if (file != null) {
+        try {
+          file.appendRemoval(path);
+        } catch (IOException | IllegalStateException e) {
+          logger.warn("Failed to write the removal of " + path + " to the snapshot file "
+              + file.getFile(), e);
+        }
+      }
+    }
 
-    // Clear last modified records
-    lastModified.remove(path);
+    // If its parent path has a snapshot, clear its record
+    snapshots.removeEntry(path);
 
-    // If its parent path is in the list of modified, clear its record
-    Path parent = path.getParent();
-    // Because the parent path object is a new one, the paths have to be compared one by one
-    for (Path p : lastModified.keySet()) {
-      if (p.equals(parent)) {
-        lastModified.get(p).remove(path);
-      }
+    ContentVerifier verifier = contentVerifier;
+    if (verifier != null) {
+      verifier.forget(path);
     }
 
     fileModified(key, path, StandardWatchEventKinds.ENTRY_DELETE);
 
+    if (removed != null) {
+      removed.invalidate();
+    }
+
   }
 
 
   /**
-   * 
+   * Reports a file with a new last modified timestamp, after verifying its contents if content
+   * verification is enabled
    * 
    * @param key
    * @param path
+   * @param lastModified The previously recorded last modified timestamp of the file
    */
-  private void fileModified(PollingWatchKey key, Path path, Kind<Path> kind) {
-    key.addWatchEvent(new PollingWatchEvent(path, kind));
-    keysWithEvents.add(key);
+  private void entryModify(final PollingWatchKey key, final Path path, long lastModified) {
+    ContentVerifier verifier = contentVerifier;
 
-    synchronized (keysWithEvents) {
-      keysWithEvents.notify();
+    if (verifier == null) {
+      fileModified(key, path, StandardWatchEventKinds.ENTRY_MODIFY);
+      return;
     }
+
+    verifier.verify(path, lastModified, new Runnable() {
+
+      @Override
+      public void run() {
+        // Verified on its own, after the scan which found it has signalled its key
+        fileModified(key, path, StandardWatchEventKinds.ENTRY_MODIFY);
+        signal(key);
+      }
+    });
   }
 
   /**
+   * Adds an event to the key. The key is handed out once the scan which found the change is done,
+   * see {@link #signal(PollingWatchKey)}. The event is merged into the previous one if that one is
+   * still pending and has the same kind and path.
    * 
+   * @param key
+   * @param path
+   */
+  private void fileModified(PollingWatchKey key, Path path, Kind<Path> kind) {
+    key.addWatchEvent(new PollingWatchEvent(path, kind));
+  }
+
+  /**
+   * Hands out a key with new events. This is done once for all events which have been found with
+   * one scan of a directory, so a burst of changes wakes up the waiting thread once per directory
+   * instead of once per event.
    * 
+   * @param key
    */
-  private void notifyWaitingTake() {
-    synchronized (keysWithEvents) {
-      keysWithEvents.notify();
+  private void signal(PollingWatchKey key) {
+    // A key which has been handed out already is queued again with its reset
+    if (key.signal()) {
+      keysWithEvents.offer(key);
     }
-
   }
 
 
+  /**
+   * Closes the watch service. A thread which is waiting in {@link #take()} is woken up right away
+   * and gets a {@link ClosedWatchServiceException}. Like with the java watch service, the keys
+   * which are still queued are not handed out any more.
+   * 
+   */
   @Override
   public void close() throws IOException {
+    keysWithEvents.close();
     stop();
   }
 
   @Override
   public WatchKey poll() {
-    WatchKey key = keysWithEvents.poll();
+    checkOpen();
 
-    if (isStopped()) {
-      throw new ClosedWatchServiceException();
-    }
+    PollingWatchKey key = null;
+
+    do {
+      key = keysWithEvents.poll();
+    } while (key != null && key.isCancelled());
 
     return key;
   }
 
   @Override
   public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
-    WatchKey key = keysWithEvents.poll(timeout, unit);
+    checkOpen();
 
-    if (isStopped()) {
-      throw new ClosedWatchServiceException();
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    PollingWatchKey key = null;
+
+    do {
+      key = keysWithEvents.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    } while (key != null && key.isCancelled());
+
+    if (key == null) {
+      checkOpen();
     }
 
     return key;
-
   }
 
 
   @Override
   public WatchKey take() throws InterruptedException {
-    synchronized (keysWithEvents) {
-      while (keysWithEvents.size() == 0 && !isStopped()) {
-        keysWithEvents.wait();
-      }
-    }
+    // Once closed, the keys which are still queued are not handed out any more. A key which has
+    // been taken right while closing is still returned.
+    checkOpen();
 
-    if (isStopped()) {
+    PollingWatchKey key = null;
+
+    do {
+      // Only returns without a key if the watch service has been closed
+      key = keysWithEvents.take();
+    } while (key != null && key.isCancelled());
+
+    if (key == null) {
       throw new ClosedWatchServiceException();
     }
 
-    // Instead of using keysWithEvents.take() we are using keysWithEvents.poll().
-    // The waiting is done with wait() because only like this we are able to
-    // notify the waiting in order to stop the thread.
+    return key;
+  }
 
-    return keysWithEvents.poll();
+  /**
+   * 
+   * 
+   * @throws ClosedWatchServiceException If the watch service has been closed or stopped
+   */
+  private void checkOpen() {
+    if (keysWithEvents.isClosed() || isStopped()) {
+      throw new ClosedWatchServiceException();
+    }
   }
 
 
   /**
-   * 
+   * Registers a directory. Its current entries are recorded right away, before the key exists, so
+   * that everything which changes once the key is returned is reported with the next poll. If the
+   * snapshot file has a snapshot of the directory, that one is taken instead, and the next poll
+   * reports what changed since it has been written.
    * 
    * @param path
    * @return
    */
   public PollingWatchKey register(Path path) {
-    PollingWatchKey watchKey = new PollingWatchKey();
-    registeredPaths.put(path, watchKey);
+    DirectorySnapshot restored = restoredSnapshots.remove(path);
+
+    if (restored != null && !snapshots.contains(path)) {
+      // The first poll compares with the state before the restart
+      snapshots.put(restored);
+    } else if (!snapshots.contains(path)) {
+      try {
+        DirectorySnapshot snapshot = snapshots.read(path, fileNameFilter, pathFilter, null);
+        snapshots.put(snapshot);
+        persist(snapshot);
+      } catch (IOException e) {
+        // Recorded with the first poll instead
+      }
+    }
+
+    PollingWatchKey watchKey = null;
+
+    synchronized (registeredPaths) {
+      // Like the java watch service, a directory which is registered already keeps its key
+      watchKey = registeredPaths.get(path);
+      if (watchKey != null) {
+        return watchKey;
+      }
+
+      watchKey = new PollingWatchKey(path);
+      registeredPaths.put(path, watchKey);
+    }
 
     reset();
 
@@ -339,6 +1088,104 @@ public class PollingWatchService extends ControlledRunnable implements WatchServ
   }
 
 
+  /**
+   * Stops watching a directory, and optionally all registered directories below it. Their keys
+   * are cancelled, their pending events discarded and their snapshots dropped, also from the
+   * snapshot file. This takes time in proportion to the number of directories in the sub tree,
+   * not to the number of all registered directories.
+   * 
+   * @param path
+   * @param recursive If set, all registered directories below the path are unregistered too
+   * @return The number of unregistered directories
+   */
+  public int unregister(Path path, boolean recursive) {
+    Map<Path, PollingWatchKey> removed = null;
+
+    if (recursive) {
+      removed = registeredPaths.removeSubtree(path);
+    } else {
+      removed = new HashMap<Path, PollingWatchKey>();
+      PollingWatchKey key = registeredPaths.remove(path);
+      if (key != null) {
+        removed.put(path, key);
+      }
+    }
+
+    for (PollingWatchKey key : removed.values()) {
+      key.cancel();
+    }
+
+    Collection<DirectorySnapshot> dropped = null;
+    if (recursive) {
+      dropped = snapshots.removeSubtree(path);
+    } else {
+      DirectorySnapshot snapshot = snapshots.remove(path);
+      dropped = snapshot == null ? Collections.<DirectorySnapshot>emptyList()
+          : Collections.singletonList(snapshot);
+    }
+
+    SnapshotFile file = snapshotFile;
+    if (file != null) {
+      for (DirectorySnapshot snapshot : dropped) {
+        try {
+          file.appendRemoval(snapshot.getDirectory());
+        } catch (IOException | IllegalStateException e) {
+          logger.warn("Failed to write the removal of " + snapshot.getDirectory()
+              + " to the snapshot file " + file.getFile(), e);
+        }
+      }
+    }
+
+    return removed.size();
+  }
+
+
+  /*************************************************************************
+   * Scans a range of the registered directories. Ranges which are larger than the threshold are
+   * split in half and scanned in parallel.
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private class ScanTask extends RecursiveAction {
+    private static final long serialVersionUID = 4329460254113935452L;
+
+    private final List<Path> directories;
+    private final int from;
+    private final int to;
+    private final int threshold;
+
+    /**
+     * 
+     * 
+     * @param directories
+     * @param from Index of the first directory to scan (inclusive)
+     * @param to Index of the last directory to scan (exclusive)
+     * @param threshold The maximum number of directories to scan without splitting
+     */
+    public ScanTask(List<Path> directories, int from, int to, int threshold) {
+      this.directories = directories;
+      this.from = from;
+      this.to = to;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= threshold) {
+        for (int i = from; i < to; i++) {
+          scanDirectory(directories.get(i));
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new ScanTask(directories, from, middle, threshold),
+            new ScanTask(directories, middle, to, threshold));
+      }
+    }
+
+  }
+
+
   /*************************************************************************
    * 
    * 
@@ -348,60 +1195,229 @@ public class PollingWatchService extends ControlledRunnable implements WatchServ
    */
   protected class PollingWatchKey implements WatchKey {
 
-    private LinkedBlockingQueue<WatchEvent<?>> pollEvents = null;
+    private final Path path;
+
+    private List<PollingWatchEvent> pollEvents = null;
+
+    /**
+     * If set, the key has been handed out and has not been reset yet
+     */
+    private boolean signalled = false;
+
+    /**
+     * Not set any more once the key has been cancelled or its directory has been deleted
+     */
+    private volatile boolean valid = true;
+
+    /**
+     * Set once the key has been cancelled. A cancelled key which is still queued is skipped when
+     * it comes up, instead of searching the queue for it.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * The number of events which have been added to this key so far
+     */
+    private volatile long changeCount = 0;
+
+    /**
+     * The current adaptive polling interval of the directory
+     */
+    private long pollInterval = 0;
+
+    /**
+     * When the directory is due for its next check with adaptive polling. New directories are due
+     * right away.
+     */
+    private volatile long nextCheck = 0;
 
     /**
      * 
+     * 
+     * @param path The watched directory
      */
-    public PollingWatchKey() {
+    public PollingWatchKey(Path path) {
+      this.path = path;
 
-      pollEvents = new LinkedBlockingQueue<WatchEvent<?>>();
+      pollEvents = new ArrayList<PollingWatchEvent>();
 
     }
 
     /**
-     * 
+     * Adds an event, or counts it with the last pending event if that one has the same kind and
+     * path. Events for an invalid key are dropped.
      * 
      * @param watchEvent
      */
     public synchronized void addWatchEvent(PollingWatchEvent watchEvent) {
+      if (!valid) {
+        return;
+      }
+
+      if (!pollEvents.isEmpty()) {
+        PollingWatchEvent last = pollEvents.get(pollEvents.size() - 1);
+
+        if (last.kind() == watchEvent.kind() && last.context().equals(watchEvent.context())) {
+          last.increment();
+          changeCount++;
+          return;
+        }
+      }
+
       pollEvents.add(watchEvent);
+      changeCount++;
+    }
+
+    /**
+     * Marks the key as signalled if it is ready and has events
+     * 
+     * @return <code>true</code> if the key has to be queued. <code>false</code> if it has no
+     *         events or has been signalled already.
+     */
+    public synchronized boolean signal() {
+      if (signalled || pollEvents.isEmpty()) {
+        return false;
+      }
+
+      signalled = true;
+      return true;
+    }
+
+    /**
+     * Invalidates the key because its directory does not exist any more. The pending events can
+     * still be retrieved. The key is queued even without events, so that the consumer finds out
+     * that it is not valid any more, like with the java watch service. This is the case when the
+     * directory is deleted together with its parent and found with the scan of the parent.
+     * 
+     */
+    public synchronized void invalidate() {
+      valid = false;
+
+      if (!signalled) {
+        signalled = true;
+        keysWithEvents.offer(this);
+      }
+    }
+
+    /**
+     * 
+     * 
+     * @return The number of events which have been added to this key so far
+     */
+    public long getChangeCount() {
+      return changeCount;
+    }
+
+    /**
+     * 
+     * 
+     * @return The current adaptive polling interval of the directory, 0 if it has not been
+     *         checked with adaptive polling yet
+     */
+    public synchronized long getPollInterval() {
+      return pollInterval;
+    }
+
+    /**
+     * 
+     * 
+     * @param now
+     * @return <code>true</code> if the directory should be checked with adaptive polling
+     */
+    public boolean isDue(long now) {
+      return now >= nextCheck;
+    }
+
+    /**
+     * Schedules the next check of the directory after it has been checked. The interval is reset
+     * to the minimum if something changed, otherwise it is doubled.
+     * 
+     * @param now When the directory has been checked
+     * @param changed If changes have been found
+     * @param minInterval
+     * @param maxInterval
+     */
+    public synchronized void schedule(long now, boolean changed, long minInterval,
+        long maxInterval) {
+      if (changed || pollInterval < minInterval) {
+        pollInterval = minInterval;
+      } else {
+        pollInterval = Math.min(pollInterval * 2, maxInterval);
+      }
+
+      nextCheck = now + pollInterval;
     }
 
+    /**
+     * Cancels the key. Its pending events are discarded and its directory is not polled any more.
+     * 
+     */
     @Override
-    public synchronized void cancel() {
-      pollEvents.clear();
+    public void cancel() {
+      synchronized (this) {
+        valid = false;
+        cancelled = true;
+        pollEvents.clear();
+      }
+
+      synchronized (registeredPaths) {
+        // Unless it has been registered again with a new key
+        if (registeredPaths.get(path) == this) {
+          registeredPaths.remove(path);
+        }
+      }
     }
 
     @Override
     public boolean isValid() {
-      // TODO
-      return true;
+      return valid;
+    }
+
+    /**
+     * 
+     * 
+     * @return <code>true</code> if the key has been cancelled. A key whose directory has been
+     *         deleted is not valid any more, but it has not been cancelled.
+     */
+    public boolean isCancelled() {
+      return cancelled;
     }
 
     @Override
     public synchronized List<WatchEvent<?>> pollEvents() {
-      synchronized (pollEvents) {
-        // Create a copy of the poll events because they might get changed
-        // while the events are still being processed. Also, only the current
-        // events have to be returned.
-        LinkedList<WatchEvent<?>> e = new LinkedList<WatchEvent<?>>(pollEvents);
-        pollEvents.clear();
-        return e;
-      }
-
+      // Only the current events are returned. Events which are found meanwhile are added to a new
+      // list, so the returned events do not change while they are being processed.
+      List<WatchEvent<?>> e = new ArrayList<WatchEvent<?>>(pollEvents);
+      pollEvents.clear();
+      return e;
     }
 
+    /**
+     * Makes a signalled key ready again. If events have been added since the key has been handed
+     * out, it is queued again right away.
+     * 
+     * @return <code>false</code> if the key is not valid any more
+     */
     @Override
     public synchronized boolean reset() {
+      if (!valid) {
+        return false;
+      }
+
+      if (signalled) {
+        if (pollEvents.isEmpty()) {
+          signalled = false;
+        } else {
+          keysWithEvents.offer(this);
+        }
+      }
 
-      // TODO
       return true;
     }
 
     @Override
     public Watchable watchable() {
-      return null;
+      return path;
     }
 
 
@@ -421,6 +1437,16 @@ public class PollingWatchService extends ControlledRunnable implements WatchServ
     private Path path = null;
     private Kind<Path> kind = null;
 
+    /**
+     * How many times the change has been detected before the event has been handed out
+     */
+    private volatile int count = 1;
+
+    /**
+     * When the change has been detected, as {@link System#nanoTime()}
+     */
+    private final long detected;
+
 
     /**
      * 
@@ -428,9 +1454,28 @@ public class PollingWatchService extends ControlledRunnable implements WatchServ
     public PollingWatchEvent(Path path, Kind<Path> kind) {
       this.path = path;
       this.kind = kind;
+      this.detected = System.nanoTime();
 
     }
 
+    /**
+     * 
+     * 
+     * @return When the change has been detected, as {@link System#nanoTime()}
+     */
+    public long getDetected() {
+      return detected;
+    }
+
+    /**
+     * Counts the same change once more. Only called while the event is pending, by the key which
+     * holds it.
+     * 
+     */
+    private void increment() {
+      count++;
+    }
+
 
     @Override
     public Path context() {
@@ -439,7 +1484,7 @@ public class PollingWatchService extends ControlledRunnable implements WatchServ
 
     @Override
     public int count() {
-      return 0;
+      return count;
     }
 
     @Override
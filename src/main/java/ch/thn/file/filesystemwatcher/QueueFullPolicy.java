@@ -0,0 +1,44 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+/**
+ * Defines what happens if the event queue of an asynchronously notified
+ * {@link PathWatcherListener} is full
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public enum QueueFullPolicy {
+
+  /**
+   * Wait until the listener has taken an event from the queue. This slows down the watcher for all
+   * listeners, but no event is lost.
+   */
+  BLOCK,
+
+  /**
+   * Discard the oldest queued event to make room for the new one
+   */
+  DROP_OLDEST,
+
+  /**
+   * Discard all queued events and replace them with one overflow event for each path they
+   * belonged to, like the watch service itself does when it can not keep up
+   */
+  OVERFLOW;
+
+}
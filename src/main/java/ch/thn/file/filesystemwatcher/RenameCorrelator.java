@@ -0,0 +1,486 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pairs the deletion and the creation of the same file into one
+ * {@link PathWatcherEvent#ENTRY_RENAMED} event. Both watch services report a renamed or moved entry
+ * as a deletion of the old path and a creation of the new path.<br>
+ * <br>
+ * A file is identified by its file key (the inode on unix file systems) together with its size
+ * and last modified timestamp, which a rename does not change. The timestamp of a directory
+ * changes with its entries without an event for it, so directories are identified by their file
+ * key and size only. Empty files are never paired, since a newly created empty file which gets
+ * the inode of a just deleted empty file would look the same. Since a deleted file can not be
+ * read any more, the identities of the known entries are remembered: the entries of each
+ * registered directory and every created or modified entry.
+ * The deletion of a known entry is held back for the rename window. If an entry with the same
+ * identity is created within the window, both are reported as one rename, otherwise the deletion
+ * is reported once the window is over. Deletions of unknown entries are not held back. If the
+ * creation is reported first, which happens with the polling watch service when the new
+ * directory is scanned before the old one, the creation is reported as rename right away if the
+ * old path of the identity does not exist any more, and the deletion which follows is dropped.<br>
+ * <br>
+ * File systems without file keys (like the default file system on Windows) do not report renames.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+class RenameCorrelator {
+
+  private final long windowNanos;
+
+  /**
+   * The identities of the known entries, least recently used first
+   */
+  private final Map<Path, Identity> identities;
+
+  /**
+   * The path of each remembered identity
+   */
+  private final Map<Identity, Path> paths;
+
+  /**
+   * The old paths of renames which have been reported before their deletion showed up, with the
+   * time they have been reported
+   */
+  private final LinkedHashMap<Path, Long> expectedDeletes;
+
+  /**
+   * The held back deletions by the identity of the deleted entry, oldest first
+   */
+  private final LinkedHashMap<Identity, PendingDelete> pending;
+
+
+  /**
+   * 
+   * 
+   * @param window The time in milliseconds a deletion waits for the matching creation
+   * @param capacity The maximum number of remembered entry identities. The least recently used
+   *        ones are dropped first.
+   */
+  public RenameCorrelator(long window, final int capacity) {
+    this.windowNanos = window * 1000000;
+
+    paths = new HashMap<Identity, Path>();
+
+    identities = new LinkedHashMap<Path, Identity>(16, 0.75f, true) {
+      private static final long serialVersionUID = 5083392946614785128L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Path, Identity> eldest) {
+        if (size() <= capacity) {
+          return false;
+        }
+
+        if (eldest.getKey().equals(paths.get(eldest.getValue()))) {
+          paths.remove(eldest.getValue());
+        }
+        return true;
+      }
+    };
+
+    pending = new LinkedHashMap<Identity, PendingDelete>();
+    expectedDeletes = new LinkedHashMap<Path, Long>();
+  }
+
+  /**
+   * Remembers the identities of all entries of a directory, so that they can be recognized when
+   * they are renamed. Lists the directory, use {@link #learn(DirectorySnapshot)} if there is a
+   * snapshot of it already.
+   * 
+   * @param dir
+   */
+  public void learn(Path dir) {
+    List<Path> entries = new ArrayList<Path>();
+
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path entry : stream) {
+        entries.add(entry);
+      }
+    } catch (IOException | DirectoryIteratorException e) {
+      // Renames of the entries which could not be read are reported as deletion and creation
+    }
+
+    learn(entries);
+  }
+
+  /**
+   * Remembers the identities of the entries of a directory snapshot, so that they can be
+   * recognized when they are renamed. The snapshot has no file keys, so the attributes of the
+   * entries are read, but the directory is not listed again.
+   * 
+   * @param snapshot
+   */
+  public void learn(DirectorySnapshot snapshot) {
+    String[] names = snapshot.getNames();
+    List<Path> entries = new ArrayList<Path>(names.length);
+
+    for (String name : names) {
+      entries.add(snapshot.getDirectory().resolve(name));
+    }
+
+    learn(entries);
+  }
+
+  /**
+   * Adds new events. Deletions of known entries are held back, and creations which match a held
+   * back deletion are returned as rename instead. Within the given events, deletions are matched
+   * regardless of whether they come before or after the creation.
+   * 
+   * @param events
+   * @param now The current {@link System#nanoTime()}
+   * @return The events which are ready to be reported now
+   */
+  public synchronized List<PathWatcherEvent> add(List<PathWatcherEvent> events, long now) {
+    if (events.isEmpty()) {
+      return events;
+    }
+
+    List<PathWatcherEvent> ready = new ArrayList<PathWatcherEvent>(events.size());
+
+    // Deletions first, so that a rename is found regardless of the order of the events
+    Set<PathWatcherEvent> held =
+        Collections.newSetFromMap(new IdentityHashMap<PathWatcherEvent, Boolean>());
+
+    for (PathWatcherEvent event : events) {
+      if (event.getKind() == StandardWatchEventKinds.ENTRY_DELETE && !event.isOverflow()) {
+        if (expectedDeletes.remove(event.getContext()) != null) {
+          // Already reported as rename
+          held.add(event);
+          continue;
+        }
+
+        Identity identity = forget(event.getContext());
+        if (identity != null) {
+          // Another path with the same identity (a hard link) which is still held back
+          PendingDelete other = pending.remove(identity);
+          if (other != null) {
+            ready.add(other.event);
+          }
+
+          pending.put(identity, new PendingDelete(event, now));
+          held.add(event);
+        }
+      }
+    }
+
+    for (PathWatcherEvent event : events) {
+      if (event.isOverflow() || event.getContext() == null) {
+        drainAll(ready);
+        ready.add(event);
+      } else if (held.contains(event)) {
+        continue;
+      } else if (event.getKind() == StandardWatchEventKinds.ENTRY_CREATE
+          || event.getKind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+        Identity identity = readIdentity(event.getContext());
+
+        if (identity == null) {
+          ready.add(event);
+          continue;
+        }
+
+        Path previous = null;
+
+        if (event.getKind() == StandardWatchEventKinds.ENTRY_CREATE) {
+          PendingDelete deleted = pending.remove(identity);
+
+          if (deleted != null) {
+            previous = deleted.event.getContext();
+          } else {
+            // The deletion might still come
+            Path known = paths.get(identity);
+            if (known != null && !known.equals(event.getContext())
+                && Files.notExists(known, LinkOption.NOFOLLOW_LINKS)) {
+              previous = known;
+              forget(known);
+              expectedDeletes.put(known, now);
+            }
+          }
+        }
+
+        remember(event.getContext(), identity);
+
+        if (previous == null) {
+          ready.add(event);
+        } else {
+          ready.add(new PathWatcherEvent(PathWatcherEvent.ENTRY_RENAMED, event.getPath(),
+              event.getContext(), previous, false, event.getDetected()));
+        }
+      } else {
+        ready.add(event);
+      }
+    }
+
+    return ready;
+  }
+
+  /**
+   * Releases the held back deletions whose window is over
+   * 
+   * @param now The current {@link System#nanoTime()}
+   * @return The released deletions, in the order in which they occurred
+   */
+  public synchronized List<PathWatcherEvent> flush(long now) {
+    Iterator<Long> expected = expectedDeletes.values().iterator();
+    while (expected.hasNext() && now - expected.next() >= windowNanos) {
+      expected.remove();
+    }
+
+    if (pending.isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    List<PathWatcherEvent> ready = new ArrayList<PathWatcherEvent>();
+    Iterator<PendingDelete> iterator = pending.values().iterator();
+
+    while (iterator.hasNext()) {
+      PendingDelete p = iterator.next();
+
+      if (now - p.added < windowNanos) {
+        // The others have been added later
+        break;
+      }
+
+      ready.add(p.event);
+      iterator.remove();
+    }
+
+    return ready;
+  }
+
+  /**
+   * Releases all held back deletions, regardless of the window
+   * 
+   * @return
+   */
+  public synchronized List<PathWatcherEvent> flushAll() {
+    List<PathWatcherEvent> ready = new ArrayList<PathWatcherEvent>();
+    drainAll(ready);
+    return ready;
+  }
+
+  /**
+   * 
+   * 
+   * @param now The current {@link System#nanoTime()}
+   * @return The time in milliseconds until the next held back deletion is released, or -1 if
+   *         there are none
+   */
+  public synchronized long getDelay(long now) {
+    if (pending.isEmpty()) {
+      return -1;
+    }
+
+    long remaining = windowNanos - (now - pending.values().iterator().next().added);
+
+    // Round up, to not wake up right before the deletion is due
+    return Math.max(0, (remaining + 999999) / 1000000);
+  }
+
+  /**
+   * 
+   * 
+   * @param entries
+   */
+  private void learn(List<Path> entries) {
+    Map<Path, Identity> found = new LinkedHashMap<Path, Identity>();
+
+    for (Path entry : entries) {
+      Identity identity = readIdentity(entry);
+      if (identity != null) {
+        found.put(entry, identity);
+      }
+    }
+
+    synchronized (this) {
+      for (Map.Entry<Path, Identity> entry : found.entrySet()) {
+        remember(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Forgets all remembered identities and held back deletions
+   * 
+   */
+  public synchronized void clear() {
+    identities.clear();
+    paths.clear();
+    pending.clear();
+    expectedDeletes.clear();
+  }
+
+  /**
+   * 
+   * 
+   * @param path
+   * @param identity
+   */
+  private void remember(Path path, Identity identity) {
+    Identity old = identities.put(path, identity);
+
+    if (old != null && path.equals(paths.get(old))) {
+      paths.remove(old);
+    }
+
+    paths.put(identity, path);
+  }
+
+  /**
+   * 
+   * 
+   * @param path
+   * @return The remembered identity of the path, or <code>null</code>
+   */
+  private Identity forget(Path path) {
+    Identity identity = identities.remove(path);
+
+    if (identity != null && path.equals(paths.get(identity))) {
+      paths.remove(identity);
+    }
+
+    return identity;
+  }
+
+  /**
+   * 
+   * 
+   * @param ready
+   */
+  private void drainAll(List<PathWatcherEvent> ready) {
+    for (PendingDelete p : pending.values()) {
+      ready.add(p.event);
+    }
+
+    pending.clear();
+  }
+
+  /**
+   * 
+   * 
+   * @param path
+   * @return The identity of the entry, or <code>null</code> if it does not exist (any more), is
+   *         an empty file or the file system has no file keys
+   */
+  static Identity readIdentity(Path path) {
+    try {
+      BasicFileAttributes attributes =
+          Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+
+      if (attributes.fileKey() == null
+          || (!attributes.isDirectory() && attributes.size() == 0)) {
+        return null;
+      }
+
+      return new Identity(attributes.fileKey(), attributes.size(),
+          attributes.isDirectory() ? 0 : attributes.lastModifiedTime().toMillis());
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+
+  /*************************************************************************
+   * What identifies a file across a rename
+   * 
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  static class Identity {
+
+    private final Object fileKey;
+    private final long size;
+    private final long lastModified;
+
+    /**
+     * 
+     * 
+     * @param fileKey
+     * @param size
+     * @param lastModified
+     */
+    public Identity(Object fileKey, long size, long lastModified) {
+      this.fileKey = fileKey;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = 31 * fileKey.hashCode() + (int) (size ^ (size >>> 32));
+      return 31 * hash + (int) (lastModified ^ (lastModified >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Identity)) {
+        return false;
+      }
+
+      Identity other = (Identity) obj;
+      return size == other.size && lastModified == other.lastModified
+          && fileKey.equals(other.fileKey);
+    }
+
+  }
+
+
+  /*************************************************************************
+   * A held back deletion
+   * 
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private static class PendingDelete {
+
+    private final PathWatcherEvent event;
+    private final long added;
+
+    /**
+     * 
+     * 
+     * @param event
+     * @param added
+     */
+    public PendingDelete(PathWatcherEvent event, long added) {
+      this.event = event;
+      this.added = added;
+    }
+
+  }
+
+}
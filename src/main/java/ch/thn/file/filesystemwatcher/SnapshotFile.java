@@ -0,0 +1,581 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the {@link DirectorySnapshot}s of a {@link PollingWatchService}, so that changes which
+ * happen while the watcher is not running can be reported after a restart.<br>
+ * <br>
+ * The file is a journal: whenever the snapshot of a directory changes, the whole snapshot of that
+ * directory is appended as a new record, and a removed directory gets a removal record. When the
+ * file is opened, it is read from start to end, so the last record of each
+ * directory wins. Each record carries its length and a checksum. A record which has only partly
+ * been written, for example because the process has been killed, ends the file and is cut off.
+ * The file keeps track of how many of its bytes belong to the last record of a directory and how
+ * many are outdated. Once more than half of the file is outdated, or the outdated bytes exceed a
+ * cap, it is compacted into a new file with one record per directory. Since the records are whole
+ * snapshots, a large directory which changes with every poll makes the file grow fast, and the
+ * cap keeps it from growing too large to be read at once. The file is read into memory instead
+ * of memory mapped, since a mapped file can not be truncated or replaced on all platforms as
+ * long as the mapping has not been garbage collected.<br>
+ * <br>
+ * Format: <code>magic (int), version (int)</code>, then records of
+ * <code>length (int), payload (length bytes), CRC32 of the payload (int)</code>. The payload is
+ * <code>type (byte), directory (string)</code> and for snapshot records
+ * <code>directory last modified (long), directory size (long), listed at (long), entry count (int)</code>
+ * followed by <code>name (string), last modified (long)</code> for each entry. Strings are their
+ * UTF-8 length (int) followed by the UTF-8 bytes.<br>
+ * <br>
+ * Records are appended by the scanning threads, which can be virtual threads. The file is
+ * guarded by a {@link ReentrantLock} instead of a monitor, because a virtual thread which blocks
+ * on file I/O while it holds a monitor also blocks the platform thread it is mounted on.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+class SnapshotFile implements Closeable {
+
+  private static final int MAGIC = 0x46535753;
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 8;
+
+  private static final byte RECORD_SNAPSHOT = 1;
+
+  private static final byte RECORD_REMOVED = 2;
+
+  /**
+   * The file is not compacted as long as it has less outdated bytes than this
+   */
+  private static final long MIN_STALE_BYTES = 1L << 20;
+
+  /**
+   * The file is compacted once it has more outdated bytes than this, even if most of it is still
+   * current
+   */
+  private static final long MAX_STALE_BYTES = 256L << 20;
+
+  private final Path file;
+
+  private final ReentrantLock lock;
+
+  private final long minStaleBytes;
+
+  private final long maxStaleBytes;
+
+  private FileChannel channel = null;
+
+  /**
+   * The size of the last record of each directory, which are the records which are still needed
+   */
+  private final Map<Path, Integer> liveRecords;
+
+  /**
+   * The number of bytes of the records which are still needed
+   */
+  private long liveBytes = 0;
+
+  /**
+   * The size of the file
+   */
+  private long size = 0;
+
+
+  /**
+   * 
+   * 
+   * @param file
+   */
+  public SnapshotFile(Path file) {
+    this(file, MIN_STALE_BYTES, MAX_STALE_BYTES);
+  }
+
+  /**
+   * 
+   * 
+   * @param file
+   * @param minStaleBytes The number of outdated bytes below which the file is not compacted
+   * @param maxStaleBytes The number of outdated bytes above which the file is always compacted
+   */
+  SnapshotFile(Path file, long minStaleBytes, long maxStaleBytes) {
+    this.file = file;
+    this.minStaleBytes = minStaleBytes;
+    this.maxStaleBytes = maxStaleBytes;
+
+    liveRecords = new HashMap<Path, Integer>();
+    lock = new ReentrantLock();
+  }
+
+  /**
+   * 
+   * 
+   * @return The path of the file
+   */
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Opens the file and reads all snapshots from it. A damaged end of the file is cut off. A file
+   * which is not a snapshot file is left untouched, so that a wrong path does not destroy other
+   * data. Further records are appended.
+   * 
+   * @param nameTable The table to intern the entry names with
+   * @return The last snapshot of each directory in the file
+   * @throws IOException If the file could not be read, or if it exists and is not a snapshot file
+   */
+  public Map<Path, DirectorySnapshot> open(NameTable nameTable) throws IOException {
+    lock.lock();
+    try {
+      if (channel != null) {
+        throw new IllegalStateException("Snapshot file " + file + " is already open");
+      }
+
+      Map<Path, DirectorySnapshot> snapshots = new HashMap<Path, DirectorySnapshot>();
+
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      liveRecords.clear();
+      liveBytes = 0;
+
+      long fileSize = channel.size();
+      if (fileSize > Integer.MAX_VALUE) {
+        closeChannel();
+        throw new IOException("Snapshot file " + file + " is too large to be read");
+      }
+
+      if (fileSize == 0) {
+        // A new file
+        write(channel, header());
+        size = HEADER_SIZE;
+        return snapshots;
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate((int) fileSize);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, buffer.position()) < 0) {
+          break;
+        }
+      }
+      buffer.flip();
+
+      if (buffer.limit() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+        closeChannel();
+        throw new IOException(file + " exists and is not a snapshot file");
+      }
+
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        closeChannel();
+        throw new IOException("Snapshot file " + file + " has the unknown version " + version);
+      }
+
+      long valid = HEADER_SIZE;
+
+      while (buffer.remaining() >= 4) {
+        int length = buffer.getInt();
+        if (length < 1 || buffer.remaining() < length + 4L) {
+          break;
+        }
+
+        ByteBuffer payload = buffer.slice();
+        payload.limit(length);
+        buffer.position(buffer.position() + length);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != buffer.getInt()) {
+          break;
+        }
+
+        try {
+          readRecord(payload, nameTable, snapshots);
+        } catch (RuntimeException e) {
+          // A record with a valid checksum but invalid content
+          break;
+        }
+
+        valid = buffer.position();
+      }
+
+      if (valid < fileSize) {
+        channel.truncate(valid);
+      }
+
+      size = valid;
+      channel.position(size);
+
+      return snapshots;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Appends the current state of a snapshot
+   * 
+   * @param snapshot
+   * @throws IOException
+   */
+  public void append(DirectorySnapshot snapshot) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(RECORD_SNAPSHOT);
+    snapshot.write(out);
+    out.flush();
+
+    appendRecord(snapshot.getDirectory(), bytes.toByteArray(), false);
+  }
+
+  /**
+   * Appends the removal of the snapshot of a directory
+   * 
+   * @param directory
+   * @throws IOException
+   */
+  public void appendRemoval(Path directory) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(RECORD_REMOVED);
+    writeString(out, directory.toString());
+    out.flush();
+
+    appendRecord(directory, bytes.toByteArray(), true);
+  }
+
+  /**
+   * 
+   * 
+   * @return <code>true</code> if more than half of the file is outdated, or if its outdated part
+   *         exceeds the cap. A file with only a few outdated bytes, or which is not open, is never
+   *         compacted.
+   */
+  public boolean needsCompaction() {
+    lock.lock();
+    try {
+      if (channel == null) {
+        return false;
+      }
+
+      long stale = getStaleBytes();
+      return stale >= minStaleBytes && (stale > liveBytes || stale > maxStaleBytes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of bytes of the records which have been replaced by later records
+   */
+  public long getStaleBytes() {
+    lock.lock();
+    try {
+      return Math.max(0, size - HEADER_SIZE - liveBytes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Replaces the file with a new file which only contains the given snapshots. The new file is
+   * written next to the old one and then moved over it, so there is always a complete file.
+   * 
+   * @param snapshots
+   * @throws IOException
+   */
+  public void compact(Collection<DirectorySnapshot> snapshots) throws IOException {
+    lock.lock();
+    try {
+      if (channel == null) {
+        throw new IllegalStateException("Snapshot file " + file + " is not open");
+      }
+
+      Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+
+      Map<Path, Integer> written = new HashMap<Path, Integer>();
+      long writtenBytes = 0;
+
+      try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        write(out, header());
+
+        for (DirectorySnapshot snapshot : snapshots) {
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          DataOutputStream data = new DataOutputStream(bytes);
+          data.writeByte(RECORD_SNAPSHOT);
+          snapshot.write(data);
+          data.flush();
+
+          ByteBuffer record = record(bytes.toByteArray());
+          int recordSize = record.remaining();
+          write(out, record);
+
+          Integer previous = written.put(snapshot.getDirectory(), recordSize);
+          writtenBytes += recordSize - (previous == null ? 0 : previous);
+        }
+
+        out.force(true);
+      }
+
+      closeChannel();
+
+      boolean moved = false;
+      try {
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        moved = true;
+      } finally {
+        if (!moved) {
+          Files.deleteIfExists(temporary);
+        }
+
+        // Further records are appended to the new file, or to the old one if it could not be
+        // replaced. If it can not be opened at all, the file stays closed.
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+
+        if (moved) {
+          liveRecords.clear();
+          liveRecords.putAll(written);
+          liveBytes = writtenBytes;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (channel != null) {
+        channel.force(false);
+        closeChannel();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @throws IOException
+   */
+  private void closeChannel() throws IOException {
+    try {
+      channel.close();
+    } finally {
+      channel = null;
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @param directory
+   * @param payload
+   * @param removal If it is a removal record
+   * @throws IOException
+   */
+  private void appendRecord(Path directory, byte[] payload, boolean removal) throws IOException {
+    ByteBuffer record = record(payload);
+    int recordSize = record.remaining();
+
+    lock.lock();
+    try {
+      if (channel == null) {
+        throw new IllegalStateException("Snapshot file " + file + " is not open");
+      }
+
+      write(channel, record);
+      recordAdded(directory, recordSize, removal);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Updates which records are still needed. A snapshot record replaces the previous record of its
+   * directory. A removal record replaces it too, and is not needed itself once the file has been
+   * compacted.
+   * 
+   * @param directory
+   * @param recordSize
+   * @param removal
+   */
+  private void recordAdded(Path directory, int recordSize, boolean removal) {
+    Integer previous =
+        removal ? liveRecords.remove(directory) : liveRecords.put(directory, recordSize);
+
+    if (previous != null) {
+      liveBytes -= previous;
+    }
+
+    if (!removal) {
+      liveBytes += recordSize;
+    }
+
+    size += recordSize;
+  }
+
+  /**
+   * 
+   * 
+   * @param payload
+   * @return The record with its length and checksum, ready to be written
+   */
+  private static ByteBuffer record(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+
+    ByteBuffer record = ByteBuffer.allocate(payload.length + 8);
+    record.putInt(payload.length);
+    record.put(payload);
+    record.putInt((int) crc.getValue());
+    record.flip();
+
+    return record;
+  }
+
+  /**
+   * 
+   * 
+   * @return The header of a new file, ready to be written
+   */
+  private static ByteBuffer header() {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.flip();
+
+    return header;
+  }
+
+  /**
+   * 
+   * 
+   * @param channel
+   * @param buffer
+   * @throws IOException
+   */
+  private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Reads one record and applies it to the snapshots
+   * 
+   * @param payload
+   * @param nameTable
+   * @param snapshots
+   */
+  private void readRecord(ByteBuffer payload, NameTable nameTable,
+      Map<Path, DirectorySnapshot> snapshots) {
+    // The length in front of the payload and the checksum after it
+    int recordSize = payload.remaining() + 8;
+
+    byte type = payload.get();
+    Path directory = Paths.get(readString(payload));
+
+    if (type == RECORD_REMOVED) {
+      snapshots.remove(directory);
+      recordAdded(directory, recordSize, true);
+      return;
+    } else if (type != RECORD_SNAPSHOT) {
+      throw new IllegalArgumentException("Unknown record type " + type);
+    }
+
+    long directoryLastModified = payload.getLong();
+    long directorySize = payload.getLong();
+    long listedAt = payload.getLong();
+    int size = payload.getInt();
+
+    // Each entry needs at least 12 bytes
+    if (size < 0 || size > payload.remaining() / 12) {
+      throw new IllegalArgumentException("Invalid entry count " + size);
+    }
+
+    String[] names = new String[size];
+    long[] lastModified = new long[size];
+
+    for (int i = 0; i < size; i++) {
+      names[i] = nameTable.intern(readString(payload));
+      lastModified[i] = payload.getLong();
+    }
+
+    snapshots.put(directory, DirectorySnapshot.restore(directory, names, lastModified,
+        directoryLastModified, directorySize, listedAt));
+    recordAdded(directory, recordSize, false);
+  }
+
+  /**
+   * Writes a string as its UTF-8 length and bytes
+   * 
+   * @param out
+   * @param string
+   * @throws IOException
+   */
+  static void writeString(DataOutput out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * 
+   * 
+   * @param buffer
+   * @return The string at the current position of the buffer
+   */
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Invalid string length " + length);
+    }
+
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
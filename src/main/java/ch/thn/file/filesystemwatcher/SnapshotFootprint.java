@@ -0,0 +1,112 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+/**
+ * A report of the estimated heap usage of the directory snapshots which a
+ * {@link PollingWatchService} keeps to detect changes
+ * 
+ * 
+ * @author Thomas Naeff (github.com/thnaeff)
+ * 
+ */
+public class SnapshotFootprint {
+
+  private final long directories;
+  private final long entries;
+  private final long distinctNames;
+  private final long snapshotBytes;
+  private final long nameBytes;
+
+  /**
+   * 
+   * 
+   * @param directories
+   * @param entries
+   * @param distinctNames
+   * @param snapshotBytes
+   * @param nameBytes
+   */
+  public SnapshotFootprint(long directories, long entries, long distinctNames, long snapshotBytes,
+      long nameBytes) {
+    this.directories = directories;
+    this.entries = entries;
+    this.distinctNames = distinctNames;
+    this.snapshotBytes = snapshotBytes;
+    this.nameBytes = nameBytes;
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of directories with a snapshot
+   */
+  public long getDirectories() {
+    return directories;
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of entries in all snapshots
+   */
+  public long getEntries() {
+    return entries;
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of distinct names in the name table
+   */
+  public long getDistinctNames() {
+    return distinctNames;
+  }
+
+  /**
+   * 
+   * 
+   * @return The estimated bytes used by the snapshot columns
+   */
+  public long getSnapshotBytes() {
+    return snapshotBytes;
+  }
+
+  /**
+   * 
+   * 
+   * @return The estimated bytes used by the interned names
+   */
+  public long getNameBytes() {
+    return nameBytes;
+  }
+
+  /**
+   * 
+   * 
+   * @return The estimated total bytes
+   */
+  public long getTotalBytes() {
+    return snapshotBytes + nameBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "Snapshots: " + directories + " directories, " + entries + " entries, "
+        + distinctNames + " distinct names, ~" + (getTotalBytes() / 1024) + " KiB (columns ~"
+        + (snapshotBytes / 1024) + " KiB, names ~" + (nameBytes / 1024) + " KiB)";
+  }
+
+}
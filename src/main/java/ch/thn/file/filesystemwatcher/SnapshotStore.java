@@ -0,0 +1,267 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+
+/**
+ * Holds the last {@link DirectorySnapshot} of each scanned directory. All snapshots of a store
+ * share one {@link NameTable}, so equal file names in different directories are only kept once.
+ * The snapshots are kept in a {@link PathRegistry}, so the snapshots of a whole sub tree can be
+ * found and removed without going through all of them.
+ * 
+ * 
+ * @author Thomas Naeff (github.com/thnaeff)
+ * 
+ */
+class SnapshotStore {
+
+  private final PathRegistry<DirectorySnapshot> snapshots;
+
+  private final NameTable nameTable;
+
+
+  /**
+   * 
+   */
+  public SnapshotStore() {
+    snapshots = new PathRegistry<DirectorySnapshot>();
+    nameTable = new NameTable();
+  }
+
+  /**
+   * Takes a new snapshot of the given directory. The snapshot is not stored yet.
+   * 
+   * @param directory
+   * @param fileNameFilter
+   * @param directoryAttributes The attributes of the directory if they have just been read, or
+   *        <code>null</code>
+   * @return
+   * @throws IOException
+   */
+  public DirectorySnapshot read(Path directory, FilenameFilter fileNameFilter,
+      BasicFileAttributes directoryAttributes) throws IOException {
+    return read(directory, fileNameFilter, null, directoryAttributes);
+  }
+
+  /**
+   * Takes a new snapshot of the given directory. The snapshot is not stored yet.
+   * 
+   * @param directory
+   * @param fileNameFilter
+   * @param pathFilter
+   * @param directoryAttributes The attributes of the directory if they have just been read, or
+   *        <code>null</code>
+   * @return
+   * @throws IOException
+   */
+  public DirectorySnapshot read(Path directory, FilenameFilter fileNameFilter,
+      PathFilter pathFilter, BasicFileAttributes directoryAttributes) throws IOException {
+    return DirectorySnapshot.read(directory, fileNameFilter, pathFilter, nameTable,
+        directoryAttributes);
+  }
+
+  /**
+   * 
+   * 
+   * @param directory
+   * @return The last snapshot of the directory, or <code>null</code> if there is none
+   */
+  public DirectorySnapshot get(Path directory) {
+    return snapshots.get(directory);
+  }
+
+  /**
+   * 
+   * 
+   * @param directory
+   * @return <code>true</code> if there is a snapshot of the given directory
+   */
+  public boolean contains(Path directory) {
+    return snapshots.contains(directory);
+  }
+
+  /**
+   * Stores the new snapshot of a directory
+   * 
+   * @param snapshot
+   * @return The previous snapshot of the directory, or <code>null</code> if there was none
+   */
+  public DirectorySnapshot put(DirectorySnapshot snapshot) {
+    return snapshots.put(snapshot.getDirectory(), snapshot);
+  }
+
+  /**
+   * Removes the snapshot of a directory
+   * 
+   * @param directory
+   * @return The removed snapshot, or <code>null</code> if there was none
+   */
+  public DirectorySnapshot remove(Path directory) {
+    return snapshots.remove(directory);
+  }
+
+  /**
+   * Removes the snapshots of a directory and all directories below it
+   * 
+   * @param directory
+   * @return The removed snapshots
+   */
+  public Collection<DirectorySnapshot> removeSubtree(Path directory) {
+    return snapshots.removeSubtree(directory).values();
+  }
+
+  /**
+   * Removes the given path from the snapshot of its parent directory
+   * 
+   * @param path
+   */
+  public void removeEntry(Path path) {
+    Path parent = path.getParent();
+
+    if (parent == null) {
+      return;
+    }
+
+    DirectorySnapshot parentSnapshot = snapshots.get(parent);
+    if (parentSnapshot != null) {
+      parentSnapshot.remove(path);
+    }
+  }
+
+  /**
+   * Records the current last modified timestamp of the given path in the snapshot of its parent
+   * directory, or removes it from there if it does not exist any more. Nothing is read if the
+   * parent directory has no snapshot.
+   * 
+   * @param path
+   * @throws IOException
+   */
+  public void refreshEntry(Path path) throws IOException {
+    Path parent = path.getParent();
+
+    if (parent == null) {
+      return;
+    }
+
+    DirectorySnapshot parentSnapshot = snapshots.get(parent);
+    if (parentSnapshot == null) {
+      return;
+    }
+
+    BasicFileAttributes attributes = DirectorySnapshot.readAttributes(path);
+
+    if (attributes == null) {
+      parentSnapshot.remove(path);
+    } else {
+      parentSnapshot.update(nameTable.intern(path.getFileName().toString()),
+          attributes.lastModifiedTime().toMillis());
+    }
+  }
+
+  /**
+   * Takes a new snapshot of the given directory, stores it and compares it with the snapshot it
+   * replaces
+   * 
+   * @param directory
+   * @param fileNameFilter
+   * @return The differences to the previous snapshot, or <code>null</code> if there was no
+   *         previous snapshot to compare with
+   * @throws IOException If the directory could not be listed
+   */
+  public DirectorySnapshot.Diff rescan(Path directory, FilenameFilter fileNameFilter)
+      throws IOException {
+    return rescan(directory, fileNameFilter, null);
+  }
+
+  /**
+   * Takes a new snapshot of the given directory, stores it and compares it with the snapshot it
+   * replaces
+   * 
+   * @param directory
+   * @param fileNameFilter
+   * @param pathFilter
+   * @return The differences to the previous snapshot, or <code>null</code> if there was no
+   *         previous snapshot to compare with
+   * @throws IOException If the directory could not be listed
+   */
+  public DirectorySnapshot.Diff rescan(Path directory, FilenameFilter fileNameFilter,
+      PathFilter pathFilter) throws IOException {
+    DirectorySnapshot current = read(directory, fileNameFilter, pathFilter, null);
+    DirectorySnapshot previous = put(current);
+
+    return previous == null ? null : current.diff(previous);
+  }
+
+  /**
+   * 
+   * 
+   * @return The table with which the names of the snapshots are interned
+   */
+  public NameTable getNameTable() {
+    return nameTable;
+  }
+
+  /**
+   * 
+   * 
+   * @return All stored snapshots
+   */
+  public Collection<DirectorySnapshot> getSnapshots() {
+    return snapshots.getValues();
+  }
+
+  /**
+   * 
+   * 
+   * @return The number of directories which have a snapshot
+   */
+  public int size() {
+    return snapshots.size();
+  }
+
+  /**
+   * 
+   */
+  public void clear() {
+    snapshots.clear();
+    nameTable.clear();
+  }
+
+  /**
+   * Estimates how much heap the snapshots use
+   * 
+   * @return
+   */
+  public SnapshotFootprint getFootprint() {
+    long directories = 0;
+    long entries = 0;
+    long bytes = 0;
+
+    for (DirectorySnapshot snapshot : snapshots.getValues()) {
+      directories++;
+      entries += snapshot.size();
+      bytes += snapshot.estimateBytes();
+    }
+
+    return new SnapshotFootprint(directories, entries, nameTable.size(), bytes,
+        nameTable.estimateNameBytes());
+  }
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs tasks on virtual threads, one new thread per task, with a cap on how many of them run at
+ * the same time. Virtual threads are cheap to create and do not hold on to a platform thread
+ * while they wait for blocking I/O, so many slow directory listings can overlap without sizing a
+ * thread pool for them.<br>
+ * <br>
+ * Virtual threads exist since Java 21. They are created through reflection, so that this library
+ * still runs on older versions, where {@link #isAvailable()} returns <code>false</code>.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+class VirtualThreadExecutor {
+
+  private final ThreadFactory factory;
+
+  private final Semaphore permits;
+
+  private final int maxConcurrency;
+
+
+  /**
+   * 
+   * 
+   * @param name The name prefix of the threads
+   * @param maxConcurrency The maximum number of tasks which run at the same time
+   * @throws UnsupportedOperationException If the java version has no virtual threads
+   */
+  public VirtualThreadExecutor(String name, int maxConcurrency) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("Concurrency has to be at least 1");
+    }
+
+    this.factory = newFactory(name);
+    this.maxConcurrency = maxConcurrency;
+
+    if (factory == null) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+    }
+
+    permits = new Semaphore(maxConcurrency);
+  }
+
+  /**
+   * 
+   * 
+   * @return <code>true</code> if the java version has virtual threads
+   */
+  public static boolean isAvailable() {
+    return newFactory("probe") != null;
+  }
+
+  /**
+   * 
+   * 
+   * @return The maximum number of tasks which run at the same time
+   */
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Runs all tasks and returns when all of them are done. A new task is only started when less
+   * than the maximum number of tasks are running. If tasks fail, the first failure is thrown once
+   * all tasks are done.
+   * 
+   * @param tasks
+   */
+  public void invokeAll(List<? extends Runnable> tasks) {
+    final CountDownLatch done = new CountDownLatch(tasks.size());
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    for (final Runnable task : tasks) {
+      // Waits for a running task to finish before the next thread is even created
+      permits.acquireUninterruptibly();
+
+      Thread t = factory.newThread(new Runnable() {
+
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          } finally {
+            permits.release();
+            done.countDown();
+          }
+        }
+      });
+
+      t.start();
+    }
+
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.await();
+        break;
+      } catch (InterruptedException e) {
+        // The tasks are running already, so their results have to be waited for anyway
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    Throwable e = failure.get();
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    } else if (e instanceof Error) {
+      throw (Error) e;
+    }
+  }
+
+  /**
+   * Creates the factory for virtual threads through reflection, the equivalent of
+   * <code>Thread.ofVirtual().name(name, 0).factory()</code>
+   * 
+   * @param name
+   * @return The factory, or <code>null</code> if the java version has no virtual threads
+   */
+  private static ThreadFactory newFactory(String name) {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+          name + "-", 0L);
+
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+        | InvocationTargetException e) {
+      return null;
+    }
+  }
+
+}
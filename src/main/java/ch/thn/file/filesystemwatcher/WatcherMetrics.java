@@ -0,0 +1,382 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms about what a {@link FileSystemWatcher} and its
+ * {@link PollingWatchService} are doing: how long the polling cycles take, how much they check,
+ * how many changes are detected, how long it takes until the listeners get them and how long the
+ * listeners need. All values are recorded with atomic counters, so the metrics are always on.<br>
+ * <br>
+ * The metrics can be read directly, or published to JMX with {@link #registerMBean(String)}.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class WatcherMetrics implements WatcherMetricsMBean {
+
+  /**
+   * The JMX domain of the published metrics
+   */
+  public static final String JMX_DOMAIN = "ch.thn.file.filesystemwatcher";
+
+  private static final double NANOS_PER_MILLI = 1000000.0;
+
+  private final LatencyHistogram scanDuration;
+  private final LatencyHistogram dispatchLatency;
+  private final LatencyHistogram listenerTime;
+
+  private final LongAdder directoriesScanned;
+  private final LongAdder filesScanned;
+
+  private final LongAdder createEvents;
+  private final LongAdder modifyEvents;
+  private final LongAdder deleteEvents;
+  private final LongAdder overflowEvents;
+
+  private final LongAdder registrations;
+
+  private volatile int registeredPaths = 0;
+  private volatile int pendingKeys = 0;
+
+  private ObjectName objectName = null;
+
+
+  /**
+   * 
+   */
+  public WatcherMetrics() {
+    scanDuration = new LatencyHistogram();
+    dispatchLatency = new LatencyHistogram();
+    listenerTime = new LatencyHistogram();
+
+    directoriesScanned = new LongAdder();
+    filesScanned = new LongAdder();
+
+    createEvents = new LongAdder();
+    modifyEvents = new LongAdder();
+    deleteEvents = new LongAdder();
+    overflowEvents = new LongAdder();
+
+    registrations = new LongAdder();
+  }
+
+  /**
+   * Publishes these metrics to the platform MBean server
+   * 
+   * @param name The name which identifies the watcher in JMX
+   * @return The name under which the metrics have been registered
+   * @throws JMException If the metrics could not be registered, for example because the name is
+   *         already taken
+   */
+  public synchronized ObjectName registerMBean(String name) throws JMException {
+    unregisterMBean();
+
+    ObjectName on = new ObjectName(JMX_DOMAIN + ":type=" + WatcherMetrics.class.getSimpleName()
+        + ",name=" + ObjectName.quote(name));
+
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+    objectName = on;
+
+    return on;
+  }
+
+  /**
+   * Removes these metrics from the platform MBean server, if they have been published
+   * 
+   * @throws JMException
+   */
+  public synchronized void unregisterMBean() throws JMException {
+    if (objectName == null) {
+      return;
+    }
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if (server.isRegistered(objectName)) {
+      server.unregisterMBean(objectName);
+    }
+
+    objectName = null;
+  }
+
+  /**
+   * 
+   * 
+   * @return The durations of the polling cycles
+   */
+  public LatencyHistogram getScanDuration() {
+    return scanDuration;
+  }
+
+  /**
+   * 
+   * 
+   * @return The times from the detection of a change until the listeners got it
+   */
+  public LatencyHistogram getDispatchLatency() {
+    return dispatchLatency;
+  }
+
+  /**
+   * 
+   * 
+   * @return The times the listeners needed to process an event
+   */
+  public LatencyHistogram getListenerTime() {
+    return listenerTime;
+  }
+
+  /**
+   * 
+   * 
+   * @param kind
+   * @return The number of detected events of the given kind
+   */
+  public long getEventCount(Kind<?> kind) {
+    LongAdder counter = counter(kind);
+    return counter == null ? 0 : counter.sum();
+  }
+
+  @Override
+  public long getScanCount() {
+    return scanDuration.getCount();
+  }
+
+  @Override
+  public double getScanDurationMeanMillis() {
+    return scanDuration.getMean() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getScanDurationP99Millis() {
+    return scanDuration.getPercentile(0.99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getScanDurationMaxMillis() {
+    return scanDuration.getMax() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public long getDirectoriesScanned() {
+    return directoriesScanned.sum();
+  }
+
+  @Override
+  public long getFilesScanned() {
+    return filesScanned.sum();
+  }
+
+  @Override
+  public long getCreateEvents() {
+    return createEvents.sum();
+  }
+
+  @Override
+  public long getModifyEvents() {
+    return modifyEvents.sum();
+  }
+
+  @Override
+  public long getDeleteEvents() {
+    return deleteEvents.sum();
+  }
+
+  @Override
+  public long getOverflowEvents() {
+    return overflowEvents.sum();
+  }
+
+  @Override
+  public double getDispatchLatencyMeanMillis() {
+    return dispatchLatency.getMean() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getDispatchLatencyP99Millis() {
+    return dispatchLatency.getPercentile(0.99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getDispatchLatencyMaxMillis() {
+    return dispatchLatency.getMax() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getListenerTimeMeanMillis() {
+    return listenerTime.getMean() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getListenerTimeP99Millis() {
+    return listenerTime.getPercentile(0.99) / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public double getListenerTimeMaxMillis() {
+    return listenerTime.getMax() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public long getRegistrations() {
+    return registrations.sum();
+  }
+
+  @Override
+  public int getRegisteredPaths() {
+    return registeredPaths;
+  }
+
+  @Override
+  public int getPendingKeys() {
+    return pendingKeys;
+  }
+
+  @Override
+  public void reset() {
+    scanDuration.reset();
+    dispatchLatency.reset();
+    listenerTime.reset();
+
+    directoriesScanned.reset();
+    filesScanned.reset();
+
+    createEvents.reset();
+    modifyEvents.reset();
+    deleteEvents.reset();
+    overflowEvents.reset();
+
+    registrations.reset();
+  }
+
+  /**
+   * 
+   * 
+   * @param nanos The duration of one polling cycle
+   */
+  void recordScan(long nanos) {
+    scanDuration.record(nanos);
+  }
+
+  /**
+   * 
+   * 
+   * @param files The number of files which have been checked in the directory
+   */
+  void recordDirectoryScanned(int files) {
+    directoriesScanned.increment();
+    filesScanned.add(files);
+  }
+
+  /**
+   * 
+   * 
+   * @param kind The kind of a detected event
+   */
+  void recordEvent(Kind<?> kind) {
+    LongAdder counter = counter(kind);
+    if (counter != null) {
+      counter.increment();
+    }
+  }
+
+  /**
+   * 
+   * 
+   * @param nanos The time from the detection of a change until the listeners got it
+   */
+  void recordDispatchLatency(long nanos) {
+    dispatchLatency.record(nanos);
+  }
+
+  /**
+   * 
+   * 
+   * @param nanos The time the listeners needed to process an event
+   */
+  void recordListenerTime(long nanos) {
+    listenerTime.record(nanos);
+  }
+
+  /**
+   * 
+   * 
+   * @param registeredPaths The number of watched directories after the registration
+   */
+  void recordRegistration(int registeredPaths) {
+    registrations.increment();
+    this.registeredPaths = registeredPaths;
+  }
+
+  /**
+   * 
+   * 
+   * @param registeredPaths The current number of watched directories
+   */
+  void setRegisteredPaths(int registeredPaths) {
+    this.registeredPaths = registeredPaths;
+  }
+
+  /**
+   * 
+   * 
+   * @param pendingKeys The current number of keys with pending events
+   */
+  void setPendingKeys(int pendingKeys) {
+    this.pendingKeys = pendingKeys;
+  }
+
+  /**
+   * 
+   * 
+   * @param kind
+   * @return The counter of the event kind, or <code>null</code> for unknown kinds
+   */
+  private LongAdder counter(Kind<?> kind) {
+    if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+      return createEvents;
+    } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+      return modifyEvents;
+    } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+      return deleteEvents;
+    } else if (kind == StandardWatchEventKinds.OVERFLOW) {
+      return overflowEvents;
+    }
+
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "scans=" + getScanCount() + " (" + scanDuration + "), directories="
+        + getDirectoriesScanned() + ", files=" + getFilesScanned() + ", created="
+        + getCreateEvents() + ", modified=" + getModifyEvents() + ", deleted="
+        + getDeleteEvents() + ", overflows=" + getOverflowEvents() + ", latency=("
+        + dispatchLatency + "), listeners=(" + listenerTime + "), registrations="
+        + getRegistrations() + ", registered=" + getRegisteredPaths() + ", pending="
+        + getPendingKeys();
+  }
+
+}
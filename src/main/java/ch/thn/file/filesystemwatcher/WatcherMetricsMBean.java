@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 Thomas Naeff (github.com/thnaeff)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ * 
+ */
+package ch.thn.file.filesystemwatcher;
+
+/**
+ * The JMX view of the {@link WatcherMetrics}. The counters only ever grow (until they are reset),
+ * so rates like events per second are the difference between two reads divided by the time
+ * between them, which is how monitoring tools usually handle counters. Durations are in
+ * milliseconds.
+ * 
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public interface WatcherMetricsMBean {
+
+  /**
+   * 
+   * 
+   * @return The number of polling cycles
+   */
+  public long getScanCount();
+
+  /**
+   * 
+   * 
+   * @return The average duration of a polling cycle
+   */
+  public double getScanDurationMeanMillis();
+
+  /**
+   * 
+   * 
+   * @return The 99th percentile of the polling cycle durations
+   */
+  public double getScanDurationP99Millis();
+
+  /**
+   * 
+   * 
+   * @return The longest polling cycle
+   */
+  public double getScanDurationMaxMillis();
+
+  /**
+   * 
+   * 
+   * @return The number of directories which have been checked by the polling cycles
+   */
+  public long getDirectoriesScanned();
+
+  /**
+   * 
+   * 
+   * @return The number of files which have been checked by the polling cycles
+   */
+  public long getFilesScanned();
+
+  /**
+   * 
+   * 
+   * @return The number of detected creations
+   */
+  public long getCreateEvents();
+
+  /**
+   * 
+   * 
+   * @return The number of detected modifications
+   */
+  public long getModifyEvents();
+
+  /**
+   * 
+   * 
+   * @return The number of detected deletions
+   */
+  public long getDeleteEvents();
+
+  /**
+   * 
+   * 
+   * @return The number of overflows reported by the watch service
+   */
+  public long getOverflowEvents();
+
+  /**
+   * 
+   * 
+   * @return The average time from the detection of a change until the listeners get it
+   */
+  public double getDispatchLatencyMeanMillis();
+
+  /**
+   * 
+   * 
+   * @return The 99th percentile of the time from the detection of a change until the listeners
+   *         get it
+   */
+  public double getDispatchLatencyP99Millis();
+
+  /**
+   * 
+   * 
+   * @return The longest time from the detection of a change until the listeners got it
+   */
+  public double getDispatchLatencyMaxMillis();
+
+  /**
+   * 
+   * 
+   * @return The average time the listeners needed to process an event
+   */
+  public double getListenerTimeMeanMillis();
+
+  /**
+   * 
+   * 
+   * @return The 99th percentile of the time the listeners needed to process an event
+   */
+  public double getListenerTimeP99Millis();
+
+  /**
+   * 
+   * 
+   * @return The longest time the listeners needed to process an event
+   */
+  public double getListenerTimeMaxMillis();
+
+  /**
+   * 
+   * 
+   * @return The number of directory registrations
+   */
+  public long getRegistrations();
+
+  /**
+   * 
+   * 
+   * @return The number of currently watched directories
+   */
+  public int getRegisteredPaths();
+
+  /**
+   * 
+   * 
+   * @return The number of watch keys with pending events after the last polling cycle
+   */
+  public int getPendingKeys();
+
+  /**
+   * Resets all counters and histograms. The gauges (registered paths and pending keys) are kept.
+   * 
+   */
+  public void reset();
+
+}
@@ -0,0 +1,153 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class AsyncListenerDispatcherTest {
+
+  private final Path dir = Paths.get("watched");
+
+
+  @Test
+  public void testDropOldest() throws Exception {
+
+    BlockingListener listener = new BlockingListener();
+    AsyncListenerDispatcher dispatcher =
+        new AsyncListenerDispatcher(listener, 2, QueueFullPolicy.DROP_OLDEST);
+
+    // The first event blocks the listener, the others are queued
+    dispatcher.dispatch(modified("1"));
+    assertTrue(listener.entered.await(5, TimeUnit.SECONDS));
+
+    dispatcher.dispatch(modified("2"));
+    dispatcher.dispatch(modified("3"));
+    dispatcher.dispatch(modified("4"));
+
+    assertEquals(2, dispatcher.getQueueSize());
+    assertEquals(1, dispatcher.getDroppedCount());
+
+    listener.release.countDown();
+    dispatcher.shutdown();
+    assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+
+    assertEquals(3, listener.changed.size());
+    assertEquals(dir.resolve("1"), listener.changed.get(0));
+    assertEquals(dir.resolve("3"), listener.changed.get(1));
+    assertEquals(dir.resolve("4"), listener.changed.get(2));
+
+  }
+
+
+  @Test
+  public void testOverflow() throws Exception {
+
+    BlockingListener listener = new BlockingListener();
+    AsyncListenerDispatcher dispatcher =
+        new AsyncListenerDispatcher(listener, 2, QueueFullPolicy.OVERFLOW);
+
+    dispatcher.dispatch(modified("1"));
+    assertTrue(listener.entered.await(5, TimeUnit.SECONDS));
+
+    dispatcher.dispatch(modified("2"));
+    dispatcher.dispatch(modified("3"));
+    dispatcher.dispatch(modified("4"));
+
+    // All queued events of the directory collapsed into one overflow
+    assertEquals(1, dispatcher.getQueueSize());
+    assertEquals(3, dispatcher.getDroppedCount());
+
+    listener.release.countDown();
+    dispatcher.shutdown();
+    assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+
+    assertEquals(1, listener.overflows);
+
+  }
+
+
+  private PathWatcherEvent modified(String name) {
+    return new PathWatcherEvent(StandardWatchEventKinds.ENTRY_MODIFY, dir, dir.resolve(name),
+        false);
+  }
+
+
+
+  /********************************************************************************
+   *
+   *
+   * @author Thomas Naeff (github.com/thnaeff)
+   *
+   */
+  private static class BlockingListener implements PathWatcherListener {
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private final List<Path> changed = Collections.synchronizedList(new ArrayList<Path>());
+    private volatile int overflows = 0;
+
+    @Override
+    public void newPathWatched(Path path) {
+
+    }
+
+    @Override
+    public void pathChanged(Path path, Path context, boolean overflow) {
+
+      entered.countDown();
+
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      if (overflow) {
+        overflows++;
+        done.countDown();
+      }
+
+    }
+
+    @Override
+    public void directoryCreated(Path path, Path created) {
+
+    }
+
+    @Override
+    public void directoryDeleted(Path path, Path deleted) {
+
+    }
+
+    @Override
+    public void directoryModified(Path path, Path modified) {
+
+      changed.add(modified);
+      if (modified.endsWith("4")) {
+        done.countDown();
+      }
+
+    }
+
+  }
+
+}
@@ -0,0 +1,177 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class ContentVerifierTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+
+  @Test
+  public void testVerify() throws Exception {
+
+    Path file = folder.newFile("file.txt").toPath();
+    write(file, "abc", 10000);
+
+    ContentVerifier verifier = new ContentVerifier(1, 100);
+    verifier.prime(file);
+    awaitCacheSize(verifier, 1);
+
+    // Touched, but the same contents
+    write(file, "abc", 20000);
+    final AtomicInteger modified = new AtomicInteger();
+    verifier.verify(file, 10000, new Runnable() {
+
+      @Override
+      public void run() {
+        modified.incrementAndGet();
+      }
+    });
+
+    // The hashing thread handles one request after the other
+    verifier.prime(folder.newFile("marker.txt").toPath());
+    awaitCacheSize(verifier, 2);
+    assertEquals(0, modified.get());
+
+    // Different contents with the same size
+    write(file, "xyz", 30000);
+    final CountDownLatch changed = new CountDownLatch(1);
+    verifier.verify(file, 20000, new Runnable() {
+
+      @Override
+      public void run() {
+        changed.countDown();
+      }
+    });
+    assertTrue(changed.await(5, TimeUnit.SECONDS));
+
+    // A different size is a modification without hashing, and the hash is dropped
+    write(file, "abcdef", 40000);
+    final CountDownLatch grown = new CountDownLatch(1);
+    verifier.verify(file, 30000, new Runnable() {
+
+      @Override
+      public void run() {
+        grown.countDown();
+      }
+    });
+    assertTrue(grown.await(5, TimeUnit.SECONDS));
+    awaitCacheSize(verifier, 1);
+
+    // Without a cached hash it is reported right away
+    verifier.verify(file, 40000, new Runnable() {
+
+      @Override
+      public void run() {
+        modified.incrementAndGet();
+      }
+    });
+    assertEquals(1, modified.get());
+
+    verifier.shutdown();
+
+  }
+
+
+  @Test
+  public void testTruncatedWhileHashing() throws Exception {
+
+    Path file = folder.newFile("file.bin").toPath();
+    Files.write(file, new byte[3 * 1024 * 1024]);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(10000));
+
+    final AtomicInteger hashed = new AtomicInteger();
+
+    ContentVerifier verifier = new ContentVerifier(1, 100) {
+
+      @Override
+      long hash(Path path, long size) throws IOException {
+        if (hashed.incrementAndGet() == 2) {
+          // Truncated after the size has been compared, while it is being hashed
+          try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size / 2);
+          }
+        } else if (hashed.get() == 4) {
+          throw new UncheckedIOException(new IOException("Failed to read the file"));
+        }
+
+        return super.hash(path, size);
+      }
+    };
+
+    verifier.prime(file);
+    awaitCacheSize(verifier, 1);
+
+    final CountDownLatch truncated = new CountDownLatch(1);
+    verifier.verify(file, 10000, new Runnable() {
+
+      @Override
+      public void run() {
+        truncated.countDown();
+      }
+    });
+    assertTrue(truncated.await(5, TimeUnit.SECONDS));
+    awaitCacheSize(verifier, 0);
+
+    // Unchecked exceptions do not stop the hashing thread either
+    Files.write(file, new byte[1024]);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(20000));
+    verifier.prime(file);
+    awaitCacheSize(verifier, 1);
+
+    final CountDownLatch failed = new CountDownLatch(1);
+    verifier.verify(file, 20000, new Runnable() {
+
+      @Override
+      public void run() {
+        failed.countDown();
+      }
+    });
+    assertTrue(failed.await(5, TimeUnit.SECONDS));
+    assertEquals(4, hashed.get());
+    awaitCacheSize(verifier, 0);
+
+    verifier.shutdown();
+
+  }
+
+
+  private void write(Path file, String content, long lastModified) throws Exception {
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified));
+  }
+
+  private void awaitCacheSize(ContentVerifier verifier, int size) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while (verifier.getCacheSize() != size && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(size, verifier.getCacheSize());
+  }
+
+}
@@ -0,0 +1,130 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class DirectorySnapshotTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+
+  @Test
+  public void testDiff() throws Exception {
+
+    folder.newFile("unchanged.txt");
+    File modified = folder.newFile("modified.txt");
+    File deleted = folder.newFile("deleted.txt");
+
+    Path directory = folder.getRoot().toPath();
+
+    DirectorySnapshot before = DirectorySnapshot.read(directory, null, null);
+    assertEquals(3, before.size());
+
+    assertTrue(modified.setLastModified(modified.lastModified() + 10000));
+    assertTrue(deleted.delete());
+    File created = folder.newFile("created.txt");
+
+    DirectorySnapshot after = DirectorySnapshot.read(directory, null, null);
+    DirectorySnapshot.Diff diff = after.diff(before);
+
+    assertEquals(1, diff.getCreated().size());
+    assertEquals(1, diff.getModified().size());
+    assertEquals(1, diff.getDeleted().size());
+
+    assertThat(diff.getCreated(), hasItem(created.toPath()));
+    assertThat(diff.getModified(), hasItem(modified.toPath()));
+    assertThat(diff.getDeleted(), hasItem(deleted.toPath()));
+
+    // Nothing changed since the last snapshot
+    assertTrue(DirectorySnapshot.read(directory, null, null).diff(after).isEmpty());
+
+  }
+
+
+  @Test
+  public void testPathFilter() throws Exception {
+
+    folder.newFile("Main.java");
+    folder.newFile("notes.txt");
+    folder.newFolder("src");
+    folder.newFolder(".git");
+
+    PathFilter filter = new PathFilter();
+    filter.addInclude("*.java");
+    filter.addExclude(".git");
+
+    DirectorySnapshot snapshot =
+        DirectorySnapshot.read(folder.getRoot().toPath(), null, filter, null, null);
+
+    assertEquals(2, snapshot.size());
+    assertTrue(snapshot.contains("Main.java"));
+    assertTrue(snapshot.contains("src"));
+
+  }
+
+
+  @Test
+  public void testDirectoryUnchanged() throws Exception {
+
+    File root = folder.getRoot();
+    Path directory = root.toPath();
+
+    folder.newFile("existing.txt");
+
+    // Timestamps right before the listing are not trusted, so move it to the past
+    assertTrue(root.setLastModified(System.currentTimeMillis() - 60000));
+
+    DirectorySnapshot snapshot = DirectorySnapshot.read(directory, null, null);
+    assertTrue(snapshot.isUnchanged(Files.readAttributes(directory, BasicFileAttributes.class)));
+
+    folder.newFile("created.txt");
+    assertFalse(snapshot.isUnchanged(Files.readAttributes(directory, BasicFileAttributes.class)));
+
+  }
+
+
+  @Test
+  public void testUpdateAndRemove() throws Exception {
+
+    DirectorySnapshot snapshot = new DirectorySnapshot(folder.getRoot().toPath());
+
+    snapshot.update("b", 2);
+    snapshot.update("c", 3);
+    snapshot.update("a", 1);
+    snapshot.update("b", 20);
+
+    assertEquals(3, snapshot.size());
+    assertEquals(1, snapshot.getLastModified("a"));
+    assertEquals(20, snapshot.getLastModified("b"));
+    assertEquals(-1, snapshot.getLastModified("d"));
+
+    assertTrue(snapshot.remove("a"));
+    assertFalse(snapshot.remove("a"));
+    assertFalse(snapshot.contains("a"));
+    assertEquals(2, snapshot.size());
+    assertEquals(3, snapshot.getLastModified("c"));
+
+  }
+
+
+}
@@ -0,0 +1,121 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class EventCoalescerTest {
+
+  private static final long MS = 1000000;
+
+  private final Path dir = Paths.get("watched");
+
+
+  @Test
+  public void testMerge() throws Exception {
+
+    EventCoalescer coalescer = new EventCoalescer(100);
+
+    Path written = dir.resolve("written");
+    Path temporary = dir.resolve("temporary");
+    Path modified = dir.resolve("modified");
+
+    List<PathWatcherEvent> ready = coalescer.add(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_CREATE, written),
+        event(StandardWatchEventKinds.ENTRY_MODIFY, written),
+        event(StandardWatchEventKinds.ENTRY_CREATE, temporary),
+        event(StandardWatchEventKinds.ENTRY_MODIFY, modified),
+        event(StandardWatchEventKinds.ENTRY_MODIFY, written),
+        event(StandardWatchEventKinds.ENTRY_DELETE, temporary),
+        event(StandardWatchEventKinds.ENTRY_MODIFY, modified)), 0);
+
+    // Everything is held back
+    assertTrue(ready.isEmpty());
+    assertEquals(100, coalescer.getDelay(0));
+
+    // Not quiet long enough yet
+    assertTrue(coalescer.flush(50 * MS).isEmpty());
+
+    ready = coalescer.flush(100 * MS);
+
+    assertEquals(2, ready.size());
+    assertEquals(written, ready.get(0).getContext());
+    assertEquals(StandardWatchEventKinds.ENTRY_CREATE, ready.get(0).getKind());
+    assertEquals(modified, ready.get(1).getContext());
+    assertEquals(StandardWatchEventKinds.ENTRY_MODIFY, ready.get(1).getKind());
+
+    assertTrue(coalescer.isEmpty());
+    assertEquals(-1, coalescer.getDelay(100 * MS));
+
+  }
+
+
+  @Test
+  public void testOverflowReleasesPending() throws Exception {
+
+    EventCoalescer coalescer = new EventCoalescer(100);
+
+    Path file = dir.resolve("file");
+
+    coalescer.add(Arrays.asList(event(StandardWatchEventKinds.ENTRY_MODIFY, file)), 0);
+
+    List<PathWatcherEvent> ready = coalescer.add(Arrays.asList(
+        new PathWatcherEvent(StandardWatchEventKinds.OVERFLOW, dir, null, true)), 10 * MS);
+
+    assertEquals(2, ready.size());
+    assertEquals(file, ready.get(0).getContext());
+    assertTrue(ready.get(1).isOverflow());
+    assertTrue(coalescer.isEmpty());
+
+  }
+
+
+  @Test
+  public void testUpdateDelaysRelease() throws Exception {
+
+    EventCoalescer coalescer = new EventCoalescer(100);
+
+    Path busy = dir.resolve("busy");
+    Path quiet = dir.resolve("quiet");
+
+    coalescer.add(Arrays.asList(event(StandardWatchEventKinds.ENTRY_MODIFY, busy),
+        event(StandardWatchEventKinds.ENTRY_MODIFY, quiet)), 0);
+    coalescer.add(Arrays.asList(event(StandardWatchEventKinds.ENTRY_MODIFY, busy)), 60 * MS);
+
+    // The path which has been updated first is due first
+    assertEquals(40, coalescer.getDelay(60 * MS));
+
+    List<PathWatcherEvent> ready = coalescer.flush(100 * MS);
+    assertEquals(1, ready.size());
+    assertEquals(quiet, ready.get(0).getContext());
+
+    assertEquals(60, coalescer.getDelay(100 * MS));
+
+    ready = coalescer.flush(160 * MS);
+    assertEquals(1, ready.size());
+    assertEquals(busy, ready.get(0).getContext());
+    assertEquals(-1, coalescer.getDelay(160 * MS));
+
+  }
+
+
+  private PathWatcherEvent event(Kind<Path> kind, Path context) {
+    return new PathWatcherEvent(kind, dir, context, false);
+  }
+
+}
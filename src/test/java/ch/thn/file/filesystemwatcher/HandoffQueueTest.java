@@ -0,0 +1,102 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class HandoffQueueTest {
+
+
+  @Test
+  public void testHandoff() throws Exception {
+
+    final HandoffQueue<Integer> queue = new HandoffQueue<Integer>();
+    final int producers = 4;
+    final int items = 10000;
+    final CountDownLatch start = new CountDownLatch(1);
+
+    for (int p = 0; p < producers; p++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < items; i++) {
+            queue.offer(i);
+          }
+        }
+      }.start();
+    }
+
+    start.countDown();
+
+    // Every item arrives, no wake up gets lost
+    int taken = 0;
+    while (taken < producers * items) {
+      assertTrue(queue.poll(10, TimeUnit.SECONDS) != null);
+      taken++;
+    }
+
+    assertEquals(0, queue.size());
+    assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+  }
+
+
+  @Test
+  public void testCloseWakesUp() throws Exception {
+
+    final HandoffQueue<String> queue = new HandoffQueue<String>();
+    final AtomicReference<String> result = new AtomicReference<String>("none");
+    final AtomicInteger returned = new AtomicInteger();
+
+    Thread waiting = new Thread() {
+      @Override
+      public void run() {
+        try {
+          result.set(queue.take());
+          returned.incrementAndGet();
+        } catch (InterruptedException e) {
+          // Not expected
+        }
+      }
+    };
+    waiting.start();
+
+    Thread.sleep(100);
+    assertEquals(0, returned.get());
+
+    queue.close();
+    waiting.join(5000);
+
+    assertFalse(waiting.isAlive());
+    assertEquals(1, returned.get());
+    assertNull(result.get());
+    assertTrue(queue.isClosed());
+
+    // What is left can still be taken
+    queue.offer("left");
+    assertEquals("left", queue.take());
+    assertNull(queue.take());
+
+  }
+
+}
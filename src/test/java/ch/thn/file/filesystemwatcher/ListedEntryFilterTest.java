@@ -0,0 +1,110 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class ListedEntryFilterTest {
+
+  private static final long MS = 1000000;
+
+  private final Path dir = Paths.get("watched");
+
+
+  @Test
+  public void testDuplicates() throws Exception {
+
+    ListedEntryFilter filter = new ListedEntryFilter(1000);
+
+    Path listedFirst = dir.resolve("listedFirst");
+    Path watchedFirst = dir.resolve("watchedFirst");
+    Path deleted = dir.resolve("deleted");
+
+    // Nothing to filter while no directory is listed
+    List<PathWatcherEvent> events =
+        Arrays.asList(event(StandardWatchEventKinds.ENTRY_CREATE, dir.resolve("other")));
+    assertSame(events, filter.addWatched(events, false, 0));
+    assertTrue(filter.isEmpty());
+
+    List<PathWatcherEvent> passed = filter.addWatched(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_CREATE, watchedFirst),
+        event(StandardWatchEventKinds.ENTRY_CREATE, deleted),
+        event(StandardWatchEventKinds.ENTRY_DELETE, deleted)), true, 0);
+
+    assertEquals(3, passed.size());
+
+    // Listed before they have been reported by the watch service, or before the deletion
+    passed = filter.addListed(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_CREATE, listedFirst),
+        event(StandardWatchEventKinds.ENTRY_CREATE, watchedFirst),
+        event(StandardWatchEventKinds.ENTRY_CREATE, deleted)), 10 * MS);
+
+    assertEquals(1, passed.size());
+    assertEquals(listedFirst, passed.get(0).getContext());
+
+    passed = filter.addWatched(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_CREATE, listedFirst),
+        event(StandardWatchEventKinds.ENTRY_MODIFY, listedFirst)), false, 20 * MS);
+
+    assertEquals(1, passed.size());
+    assertEquals(StandardWatchEventKinds.ENTRY_MODIFY, passed.get(0).getKind());
+
+    // Deleted and created again
+    passed = filter.addWatched(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_DELETE, listedFirst),
+        event(StandardWatchEventKinds.ENTRY_CREATE, listedFirst)), false, 30 * MS);
+
+    assertEquals(2, passed.size());
+
+  }
+
+
+  @Test
+  public void testExpire() throws Exception {
+
+    ListedEntryFilter filter = new ListedEntryFilter(100);
+
+    Path file = dir.resolve("file");
+
+    filter.addListed(Arrays.asList(event(StandardWatchEventKinds.ENTRY_CREATE, file)), 0);
+    assertFalse(filter.isEmpty());
+
+    // Reported by the watch service after the window, as a new creation
+    List<PathWatcherEvent> passed = filter.addWatched(
+        Arrays.asList(event(StandardWatchEventKinds.ENTRY_CREATE, file)), false, 100 * MS);
+
+    assertEquals(1, passed.size());
+    assertTrue(filter.isEmpty());
+
+  }
+
+
+  /**
+   * 
+   * 
+   * @param kind
+   * @param context
+   * @return
+   */
+  private PathWatcherEvent event(Kind<Path> kind, Path context) {
+    return new PathWatcherEvent(kind, dir, context, false);
+  }
+
+}
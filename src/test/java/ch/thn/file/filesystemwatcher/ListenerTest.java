@@ -1,16 +1,25 @@
 package ch.thn.file.filesystemwatcher;
 
 import static org.hamcrest.CoreMatchers.hasItem;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -21,6 +30,8 @@ import java.util.List;
  */
 public class ListenerTest {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
 
   private final Collection<Path> watchedPaths = new ArrayList<>();
 
@@ -95,6 +106,171 @@ public class ListenerTest {
   }
 
 
+  @Test
+  public void testBatchListener() throws Exception {
+
+    Path dir = folder.getRoot().toPath();
+
+    FileSystemWatcher watcher = new FileSystemWatcher(100);
+    PollingWatchService service = watcher.getPollingWatchService();
+
+    final List<List<PathWatcherEvent>> batches =
+        Collections.synchronizedList(new ArrayList<List<PathWatcherEvent>>());
+    PathWatcherBatchListener listener = new PathWatcherBatchListener() {
+
+      @Override
+      public void pathsChanged(List<PathWatcherEvent> events) {
+        batches.add(events);
+      }
+    };
+
+    // Tells when the watcher reported a change, also after the other listener has been removed
+    final List<Path> reported = Collections.synchronizedList(new ArrayList<Path>());
+    final CountDownLatch first = new CountDownLatch(5);
+    final CountDownLatch last = new CountDownLatch(1);
+    watcher.addPathWatcherBatchListener(new PathWatcherBatchListener() {
+
+      @Override
+      public void pathsChanged(List<PathWatcherEvent> events) {
+        for (PathWatcherEvent event : events) {
+          reported.add(event.getContext());
+          first.countDown();
+          if (event.getContext().getFileName().toString().equals("last")) {
+            last.countDown();
+          }
+        }
+      }
+    });
+
+    watcher.addPathWatcherBatchListener(listener);
+    watcher.registerPath(dir, false, false);
+
+    Thread t = new Thread(watcher);
+    t.start();
+
+    // All files are created between two scans
+    service.pause(true);
+    Thread.sleep(300);
+    for (int i = 0; i < 5; i++) {
+      Files.createFile(dir.resolve("f" + i));
+    }
+    service.pause(false);
+
+    assertTrue(first.await(10, TimeUnit.SECONDS));
+    Thread.sleep(300);
+
+    // One scan, one batch, in the order of the scan
+    assertEquals(1, batches.size());
+    List<PathWatcherEvent> batch = batches.get(0);
+    assertEquals(5, batch.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(StandardWatchEventKinds.ENTRY_CREATE, batch.get(i).getKind());
+      assertEquals(dir.resolve("f" + i), batch.get(i).getContext());
+    }
+
+    // Removed listeners do not get anything any more
+    watcher.removePathWatcherBatchListener(listener);
+    Files.createFile(dir.resolve("last"));
+
+    assertTrue(last.await(10, TimeUnit.SECONDS));
+    assertEquals(1, batches.size());
+    assertEquals(6, reported.size());
+
+    watcher.stop(true);
+    t.join(5000);
+
+  }
+
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+
+    assumeTrue(VirtualThreadExecutor.isAvailable());
+
+    Path dir = folder.getRoot().toPath();
+
+    FileSystemWatcher watcher = new FileSystemWatcher(100);
+    watcher.setVirtualThreads(4);
+    assertTrue(watcher.isVirtualThreads());
+    assertTrue(watcher.getPollingWatchService().isVirtualThreads());
+
+    final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+    final List<Path> created = Collections.synchronizedList(new ArrayList<Path>());
+    final CountDownLatch listenerDone = new CountDownLatch(1);
+    final CountDownLatch batchDone = new CountDownLatch(1);
+
+    watcher.addPathWatcherListener(new PathWatcherListener() {
+
+      @Override
+      public void newPathWatched(Path path) {}
+
+      @Override
+      public void pathChanged(Path path, Path context, boolean overflow) {}
+
+      @Override
+      public void directoryCreated(Path path, Path c) {
+        threads.add(Thread.currentThread().getName());
+        created.add(c);
+        if (created.size() == 3) {
+          listenerDone.countDown();
+        }
+      }
+
+      @Override
+      public void directoryDeleted(Path path, Path deleted) {}
+
+      @Override
+      public void directoryModified(Path path, Path modified) {}
+    });
+
+    // Waits for the other listener, which only works if both are notified at the same time
+    final List<Boolean> overlapped = Collections.synchronizedList(new ArrayList<Boolean>());
+    watcher.addPathWatcherBatchListener(new PathWatcherBatchListener() {
+
+      @Override
+      public void pathsChanged(List<PathWatcherEvent> events) {
+        threads.add(Thread.currentThread().getName());
+        try {
+          overlapped.add(listenerDone.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+          overlapped.add(false);
+        }
+        batchDone.countDown();
+      }
+    });
+
+    watcher.registerPath(dir, false, false);
+
+    Thread t = new Thread(watcher);
+    t.start();
+
+    // All files are created between two scans, so that they are one batch
+    PollingWatchService service = watcher.getPollingWatchService();
+    service.pause(true);
+    Thread.sleep(300);
+    for (int i = 0; i < 3; i++) {
+      Files.createFile(dir.resolve("f" + i));
+    }
+    service.pause(false);
+
+    assertTrue(batchDone.await(10, TimeUnit.SECONDS));
+    assertEquals(Collections.singletonList(true), overlapped);
+
+    // In order on each listener thread
+    for (int i = 0; i < 3; i++) {
+      assertEquals(dir.resolve("f" + i), created.get(i));
+    }
+
+    for (String thread : threads) {
+      assertTrue(thread, thread.startsWith(FileSystemWatcher.class.getSimpleName() + "-"));
+    }
+
+    watcher.stop(true);
+    t.join(5000);
+
+  }
+
+
 
   /********************************************************************************
    *
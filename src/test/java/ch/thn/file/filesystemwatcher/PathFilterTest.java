@@ -0,0 +1,54 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class PathFilterTest {
+
+  private final Path root = Paths.get("watched").toAbsolutePath();
+
+
+  @Test
+  public void testRules() throws Exception {
+
+    PathFilter filter = new PathFilter();
+    assertTrue(filter.isEmpty());
+    assertTrue(filter.accept(root.resolve("anything"), false));
+
+    filter.addInclude("*.java");
+    filter.addExclude("node_modules");
+    filter.addExclude("glob:**/build/**");
+    filter.addExclude("regex:.*~");
+
+    // Names and whole paths
+    assertTrue(filter.isExcluded(root.resolve("node_modules")));
+    assertTrue(filter.isExcluded(root.resolve("a").resolve("node_modules")));
+    assertFalse(filter.isExcluded(root.resolve("node_modules.txt")));
+    assertTrue(filter.isExcluded(root.resolve("build").resolve("Main.java")));
+    assertTrue(filter.isExcluded(root.resolve("Main.java~")));
+
+    // Includes only apply to files
+    assertTrue(filter.accept(root.resolve("Main.java"), false));
+    assertFalse(filter.accept(root.resolve("notes.txt"), false));
+    assertTrue(filter.accept(root.resolve("src"), true));
+    assertFalse(filter.accept(root.resolve("node_modules"), true));
+
+    // Does not exist, so it is handled like a file
+    assertFalse(filter.accept(root.resolve("deleted")));
+    assertTrue(filter.accept(root.resolve("Deleted.java")));
+
+  }
+
+}
@@ -0,0 +1,85 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class PathRegistryTest {
+
+  private final Path root = Paths.get("watched").toAbsolutePath();
+
+
+  @Test
+  public void testLookup() throws Exception {
+
+    PathRegistry<String> registry = new PathRegistry<String>();
+
+    Path a = root.resolve("a");
+    Path deep = a.resolve("b").resolve("c");
+
+    registry.put(root, "root");
+    registry.put(a, "a");
+    registry.put(deep, "c");
+
+    assertEquals(3, registry.size());
+    assertEquals("a", registry.get(a));
+    assertNull(registry.get(a.resolve("b")));
+    assertFalse(registry.contains(a.resolve("b")));
+
+    assertEquals(Arrays.asList(root, a, deep), registry.getPaths());
+
+    // The registered path below stays
+    assertEquals("a", registry.remove(a));
+    assertEquals(Arrays.asList(root, deep), registry.getPaths());
+    assertEquals("c", registry.get(deep));
+    assertEquals(2, registry.size());
+
+  }
+
+
+  @Test
+  public void testRemoveSubtree() throws Exception {
+
+    PathRegistry<String> registry = new PathRegistry<String>();
+
+    Path a = root.resolve("a");
+    Path b = root.resolve("b");
+
+    registry.put(root, "root");
+    registry.put(a, "a");
+    registry.put(a.resolve("1"), "a1");
+    registry.put(a.resolve("2"), "a2");
+    registry.put(b, "b");
+
+    Map<Path, String> removed = registry.removeSubtree(a);
+
+    assertEquals(3, removed.size());
+    assertEquals("a", removed.get(a));
+    assertEquals(2, registry.size());
+    assertEquals(Arrays.asList(root, b), registry.getPaths());
+
+    // Nodes without registered paths are removed again
+    assertTrue(registry.removeSubtree(a).isEmpty());
+    registry.remove(b);
+    registry.remove(root);
+    assertTrue(registry.isEmpty());
+    assertTrue(registry.getPaths().isEmpty());
+
+  }
+
+}
@@ -0,0 +1,202 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class PathWatcherPublisherTest {
+
+  private static final Executor DIRECT = new Executor() {
+
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private final Path dir = Paths.get("watched").toAbsolutePath();
+
+
+  @Test
+  public void testCoalesce() throws Exception {
+
+    FileSystemWatcher watcher = new FileSystemWatcher();
+    PathWatcherPublisher publisher =
+        PathWatcherPublisher.publish(watcher, 3, BackpressureStrategy.COALESCE, DIRECT);
+
+    Recorder recorder = new Recorder();
+    publisher.subscribe(recorder);
+    assertEquals(1, publisher.getSubscriberCount());
+
+    // Nothing requested yet, so everything is buffered
+    publisher.pathsChanged(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_MODIFY, "a"),
+        event(StandardWatchEventKinds.ENTRY_MODIFY, "a"),
+        event(StandardWatchEventKinds.ENTRY_MODIFY, "a"),
+        event(StandardWatchEventKinds.ENTRY_CREATE, "b"),
+        event(StandardWatchEventKinds.ENTRY_CREATE, "c"),
+        event(StandardWatchEventKinds.ENTRY_DELETE, "c")));
+    assertTrue(recorder.events.isEmpty());
+    assertEquals(4, publisher.getCoalescedCount());
+
+    recorder.subscription.request(1);
+    assertEquals(1, recorder.events.size());
+    assertEquals(dir.resolve("a"), recorder.events.get(0).getContext());
+
+    recorder.subscription.request(10);
+    assertEquals(2, recorder.events.size());
+    assertEquals(StandardWatchEventKinds.ENTRY_CREATE, recorder.events.get(1).getKind());
+
+    // Too many different paths for the buffer
+    recorder.subscription.cancel();
+    recorder = new Recorder();
+    publisher.subscribe(recorder);
+    publisher.pathsChanged(Arrays.asList(event(StandardWatchEventKinds.ENTRY_CREATE, "1"),
+        event(StandardWatchEventKinds.ENTRY_CREATE, "2"),
+        event(StandardWatchEventKinds.ENTRY_CREATE, "3"),
+        event(StandardWatchEventKinds.ENTRY_CREATE, "4")));
+
+    recorder.subscription.request(10);
+    assertEquals(1, recorder.events.size());
+    assertTrue(recorder.events.get(0).isOverflow());
+    assertEquals(dir, recorder.events.get(0).getPath());
+
+    // Too many different watched paths, one overflow for all of them
+    recorder.subscription.cancel();
+    recorder = new Recorder();
+    publisher.subscribe(recorder);
+    List<PathWatcherEvent> events = new ArrayList<PathWatcherEvent>();
+    for (int i = 0; i < 5; i++) {
+      Path sub = dir.resolve("d" + i);
+      events.add(new PathWatcherEvent(StandardWatchEventKinds.ENTRY_CREATE, sub,
+          sub.resolve("f"), false));
+    }
+    publisher.pathsChanged(events);
+
+    recorder.subscription.request(10);
+    assertEquals(1, recorder.events.size());
+    assertTrue(recorder.events.get(0).isOverflow());
+    assertEquals(dir, recorder.events.get(0).getPath());
+
+    publisher.close();
+    assertTrue(recorder.completed);
+    assertEquals(0, publisher.getSubscriberCount());
+
+    // Invalid requests end the subscription
+    recorder = new Recorder();
+    publisher.subscribe(recorder);
+    assertTrue(recorder.completed);
+    recorder = new Recorder();
+    PathWatcherPublisher.publish(watcher, 3, BackpressureStrategy.COALESCE, DIRECT)
+        .subscribe(recorder);
+    recorder.subscription.request(0);
+    assertTrue(recorder.error instanceof IllegalArgumentException);
+
+    watcher.stop();
+
+  }
+
+
+  @Test
+  public void testPausePolling() throws Exception {
+
+    FileSystemWatcher watcher = new FileSystemWatcher(100);
+    PathWatcherPublisher publisher =
+        PathWatcherPublisher.publish(watcher, 4, BackpressureStrategy.PAUSE_POLLING, DIRECT);
+
+    Recorder recorder = new Recorder();
+    publisher.subscribe(recorder);
+
+    List<PathWatcherEvent> events = new ArrayList<PathWatcherEvent>();
+    for (int i = 0; i < 4; i++) {
+      events.add(event(StandardWatchEventKinds.ENTRY_CREATE, "f" + i));
+    }
+
+    publisher.pathsChanged(events);
+    assertTrue(watcher.getPollingWatchService().isPauseRequested());
+    assertEquals(0, publisher.getCoalescedCount());
+
+    // Not down to half of the buffer yet
+    recorder.subscription.request(1);
+    assertTrue(watcher.getPollingWatchService().isPauseRequested());
+
+    recorder.subscription.request(1);
+    assertFalse(watcher.getPollingWatchService().isPauseRequested());
+    assertEquals(2, recorder.events.size());
+
+    // The scan which was running when the buffer got full does not make it grow beyond its
+    // capacity either
+    events.clear();
+    for (int i = 4; i < 10; i++) {
+      events.add(event(StandardWatchEventKinds.ENTRY_CREATE, "f" + i));
+    }
+    publisher.pathsChanged(events);
+    assertEquals(7, publisher.getCoalescedCount());
+
+    recorder.subscription.request(10);
+    assertEquals(3, recorder.events.size());
+    assertTrue(recorder.events.get(2).isOverflow());
+
+    publisher.close();
+    watcher.stop();
+
+  }
+
+
+  private PathWatcherEvent event(Kind<Path> kind, String name) {
+    return new PathWatcherEvent(kind, dir, dir.resolve(name), false);
+  }
+
+
+  /**
+   * Records what it receives, requests nothing by itself
+   */
+  private static class Recorder implements Flow.Subscriber<PathWatcherEvent> {
+
+    private Flow.Subscription subscription = null;
+    private final List<PathWatcherEvent> events = new ArrayList<PathWatcherEvent>();
+    private boolean completed = false;
+    private Throwable error = null;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(PathWatcherEvent item) {
+      events.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+
+  }
+
+}
@@ -0,0 +1,430 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class PollingWatchServiceTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+
+  @Test
+  public void testKeyStates() throws Exception {
+
+    File directory = folder.newFolder("dir");
+    File file = new File(directory, "a.txt");
+    file.createNewFile();
+
+    PollingWatchService service = new PollingWatchService(1000);
+    WatchKey registered = service.register(directory.toPath());
+    assertSame(registered, service.register(directory.toPath()));
+
+    // Baseline
+    service.lookForChanges();
+    assertNull(service.poll());
+
+    // The same change found with two scans, the key is queued once
+    assertTrue(file.setLastModified(file.lastModified() + 10000));
+    service.lookForChanges();
+    assertTrue(file.setLastModified(file.lastModified() + 10000));
+    service.lookForChanges();
+
+    WatchKey key = service.poll();
+    assertSame(registered, key);
+    assertNull(service.poll());
+
+    List<WatchEvent<?>> events = key.pollEvents();
+    assertEquals(1, events.size());
+    assertEquals(StandardWatchEventKinds.ENTRY_MODIFY, events.get(0).kind());
+    assertEquals(2, events.get(0).count());
+
+    // Signalled keys are not queued again until they are reset
+    new File(directory, "b.txt").createNewFile();
+    service.lookForChanges();
+    assertNull(service.poll());
+
+    assertTrue(key.reset());
+    assertSame(key, service.poll());
+    assertEquals(1, key.pollEvents().size());
+    assertTrue(key.reset());
+    assertNull(service.poll());
+
+    // Deleting the directory invalidates the key, but its last events are still handed out
+    new File(directory, "b.txt").delete();
+    file.delete();
+    directory.delete();
+    service.lookForChanges();
+
+    key = service.poll();
+    assertSame(registered, key);
+    assertFalse(key.isValid());
+    assertEquals(1, key.pollEvents().size());
+    assertFalse(key.reset());
+
+    // Cancelled keys do not get events any more
+    File other = folder.newFolder("other");
+    WatchKey cancelled = service.register(other.toPath());
+    service.lookForChanges();
+    cancelled.cancel();
+    assertFalse(cancelled.isValid());
+
+    new File(other, "c.txt").createNewFile();
+    service.lookForChanges();
+    assertNull(service.poll());
+    assertFalse(cancelled.reset());
+
+    service.stop();
+
+  }
+
+
+  @Test
+  public void testCancelQueuedAndClose() throws Exception {
+
+    File first = folder.newFolder("first");
+    File second = folder.newFolder("second");
+
+    PollingWatchService service = new PollingWatchService(1000);
+    WatchKey cancelled = service.register(first.toPath());
+    WatchKey kept = service.register(second.toPath());
+
+    // Baseline
+    service.lookForChanges();
+
+    new File(first, "a.txt").createNewFile();
+    new File(second, "b.txt").createNewFile();
+    service.lookForChanges();
+
+    // Both keys are queued, the cancelled one is skipped
+    cancelled.cancel();
+    assertSame(kept, service.take());
+    assertNull(service.poll(10, TimeUnit.MILLISECONDS));
+    assertTrue(kept.reset());
+
+    new File(second, "c.txt").createNewFile();
+    service.lookForChanges();
+
+    // Once closed, the queued key is not handed out any more
+    service.close();
+
+    try {
+      service.take();
+      fail("Closed");
+    } catch (ClosedWatchServiceException e) {
+      // Expected
+    }
+
+    try {
+      service.poll();
+      fail("Closed");
+    } catch (ClosedWatchServiceException e) {
+      // Expected
+    }
+
+  }
+
+
+  @Test
+  public void testDeletedSubdirectory() throws Exception {
+
+    File directory = folder.newFolder("dir");
+    File sub = new File(directory, "sub");
+    sub.mkdir();
+    new File(sub, "a.txt").createNewFile();
+
+    PollingWatchService service = new PollingWatchService(1000);
+    WatchKey parent = service.register(directory.toPath());
+    WatchKey child = service.register(sub.toPath());
+
+    // Baseline
+    service.lookForChanges();
+    assertNull(service.poll());
+
+    new File(sub, "a.txt").delete();
+    sub.delete();
+    service.lookForChanges();
+
+    // The parent reports the deletion, the key of the sub directory is handed out without events
+    // so that its owner finds out that it is not valid any more
+    Set<WatchKey> keys = new HashSet<WatchKey>();
+    WatchKey key = null;
+    while ((key = service.poll()) != null) {
+      keys.add(key);
+    }
+
+    assertEquals(2, keys.size());
+    assertTrue(keys.contains(parent));
+    assertTrue(keys.contains(child));
+
+    assertTrue(parent.isValid());
+    List<WatchEvent<?>> events = parent.pollEvents();
+    assertEquals(StandardWatchEventKinds.ENTRY_DELETE, events.get(0).kind());
+    assertEquals(sub.toPath(), events.get(0).context());
+    assertTrue(parent.reset());
+
+    assertFalse(child.isValid());
+    assertTrue(child.pollEvents().isEmpty());
+    assertFalse(child.reset());
+
+    // Queued once only
+    service.lookForChanges();
+    assertNull(service.poll());
+
+    service.stop();
+
+  }
+
+
+  @Test
+  public void testParallelScan() throws Exception {
+
+    Path root = folder.getRoot().toPath();
+    List<Path> dirs = new ArrayList<Path>();
+    dirs.add(root);
+
+    // 4 + 16 directories, 3 files in each of the lower ones
+    for (int i = 0; i < 4; i++) {
+      dirs.add(Files.createDirectories(root.resolve("d" + i)));
+      for (int j = 0; j < 4; j++) {
+        Path dir = Files.createDirectories(root.resolve("d" + i).resolve("e" + j));
+        dirs.add(dir);
+        for (int k = 0; k < 3; k++) {
+          Files.createFile(dir.resolve("f" + k));
+        }
+      }
+    }
+
+    PollingWatchService sequential = new PollingWatchService(1000);
+    PollingWatchService parallel = new PollingWatchService(1000);
+    parallel.setParallelism(4);
+    assertEquals(4, parallel.getParallelism());
+
+    for (PollingWatchService service : new PollingWatchService[] {sequential, parallel}) {
+      for (Path dir : dirs) {
+        service.register(dir);
+      }
+      // Baseline
+      service.lookForChanges();
+    }
+
+    // Created, modified and deleted files all over the tree, and a whole deleted sub tree
+    Files.createFile(root.resolve("d0").resolve("e1").resolve("new"));
+    Files.createFile(root.resolve("d3").resolve("new"));
+    File modified = root.resolve("d2").resolve("e3").resolve("f1").toFile();
+    assertTrue(modified.setLastModified(modified.lastModified() + 10000));
+    Files.delete(root.resolve("d0").resolve("e0").resolve("f2"));
+
+    Path deleted = root.resolve("d1");
+    for (int j = 0; j < 4; j++) {
+      for (int k = 0; k < 3; k++) {
+        Files.delete(deleted.resolve("e" + j).resolve("f" + k));
+      }
+      Files.delete(deleted.resolve("e" + j));
+    }
+    Files.delete(deleted);
+
+    sequential.lookForChanges();
+    parallel.lookForChanges();
+
+    Set<String> events = events(sequential);
+    assertEquals(events, events(parallel));
+
+    assertTrue(events.contains("ENTRY_CREATE " + root.resolve("d0").resolve("e1").resolve("new")));
+    assertTrue(events.contains("ENTRY_CREATE " + root.resolve("d3").resolve("new")));
+    assertTrue(events.contains("ENTRY_MODIFY " + modified.toPath()));
+    assertTrue(events.contains("ENTRY_DELETE " + root.resolve("d0").resolve("e0").resolve("f2")));
+    assertTrue(events.contains("ENTRY_DELETE " + deleted));
+    for (int j = 0; j < 4; j++) {
+      assertTrue(events.contains("ENTRY_DELETE " + deleted.resolve("e" + j)));
+    }
+    // The directories with created or deleted entries have new timestamps
+    assertTrue(events.contains("ENTRY_MODIFY " + root.resolve("d0").resolve("e0")));
+    assertTrue(events.contains("ENTRY_MODIFY " + root.resolve("d0").resolve("e1")));
+    assertTrue(events.contains("ENTRY_MODIFY " + root.resolve("d3")));
+    assertEquals(12, events.size());
+
+    sequential.stop();
+    parallel.stop();
+
+  }
+
+  @Test
+  public void testVirtualThreads() throws Exception {
+
+    assumeTrue(VirtualThreadExecutor.isAvailable());
+
+    Path root = folder.getRoot().toPath();
+    List<Path> dirs = new ArrayList<Path>();
+    for (int i = 0; i < 20; i++) {
+      dirs.add(Files.createDirectories(root.resolve("d" + i)));
+    }
+
+    // Records which threads list the directories
+    final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+    PathFilter filter = new PathFilter() {
+
+      @Override
+      public boolean isExcluded(Path path) {
+        threads.add(Thread.currentThread().getName());
+        return super.isExcluded(path);
+      }
+    };
+
+    PollingWatchService service = new PollingWatchService(1000);
+    service.setPathFilter(filter);
+    service.setVirtualThreads(4);
+    assertTrue(service.isVirtualThreads());
+
+    for (Path dir : dirs) {
+      service.register(dir);
+    }
+    // Baseline
+    service.lookForChanges();
+
+    for (Path dir : dirs) {
+      Files.createFile(dir.resolve("new"));
+    }
+
+    threads.clear();
+    service.lookForChanges();
+
+    Set<String> events = events(service);
+    assertEquals(20, events.size());
+    for (Path dir : dirs) {
+      assertTrue(events.contains("ENTRY_CREATE " + dir.resolve("new")));
+    }
+
+    assertFalse(threads.isEmpty());
+    for (String thread : threads) {
+      assertTrue(thread, thread.startsWith(PollingWatchService.class.getSimpleName() + "-"));
+    }
+
+    // Back to the scanning thread
+    service.setVirtualThreads(0);
+    assertFalse(service.isVirtualThreads());
+
+    service.stop();
+
+  }
+
+
+  @Test
+  public void testAdaptivePolling() throws Exception {
+
+    File directory = folder.newFolder("dir");
+
+    PollingWatchService service = new PollingWatchService(1000);
+    service.setAdaptivePolling(50, 400);
+    PollingWatchService.PollingWatchKey key = service.register(directory.toPath());
+
+    // Backs off while nothing changes, up to the maximum
+    long[] intervals = new long[] {50, 100, 200, 400, 400};
+    for (long interval : intervals) {
+      Thread.sleep(key.getPollInterval() + 20);
+      service.lookForChanges();
+      assertEquals(interval, key.getPollInterval());
+    }
+
+    // Not checked again before it is due
+    long scanned = service.getMetrics().getDirectoriesScanned();
+    service.lookForChanges();
+    assertEquals(scanned, service.getMetrics().getDirectoriesScanned());
+    assertNull(service.poll());
+
+    // Back to the minimum with a change
+    File created = new File(directory, "c.txt");
+    created.createNewFile();
+    Thread.sleep(key.getPollInterval() + 20);
+    service.lookForChanges();
+
+    assertEquals(50, key.getPollInterval());
+    assertSame(key, service.poll());
+    assertEquals(created.toPath(), key.pollEvents().get(0).context());
+
+    service.stop();
+
+  }
+
+
+  @Test
+  public void testAdaptivePollingArguments() throws Exception {
+
+    PollingWatchService service = new PollingWatchService(1000);
+
+    long[][] invalid = new long[][] {{100, 50}, {-1, 100}, {100, 0}, {100, -1}, {0, -1}};
+    for (long[] interval : invalid) {
+      try {
+        service.setAdaptivePolling(interval[0], interval[1]);
+        fail("Accepted " + interval[0] + "-" + interval[1]);
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+
+    // Nothing has been changed by the invalid arguments
+    assertEquals(0, service.getMinPollInterval());
+
+    service.setAdaptivePolling(100, 100);
+    assertEquals(100, service.getMinPollInterval());
+    assertEquals(100, service.getMaxPollInterval());
+
+    // Disabled again
+    service.setAdaptivePolling(0, 0);
+    assertEquals(0, service.getMinPollInterval());
+
+    service.stop();
+
+  }
+
+  /**
+   * Takes all keys with events
+   *
+   * @param service
+   * @return The kinds and paths of the events
+   */
+  private static Set<String> events(PollingWatchService service) {
+    Set<String> events = new HashSet<String>();
+    WatchKey key = null;
+
+    while ((key = service.poll()) != null) {
+      for (WatchEvent<?> event : key.pollEvents()) {
+        events.add(event.kind().name() + " " + event.context());
+      }
+      key.reset();
+    }
+
+    return events;
+  }
+
+}
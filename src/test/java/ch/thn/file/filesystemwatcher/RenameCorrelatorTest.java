@@ -0,0 +1,142 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent.Kind;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class RenameCorrelatorTest {
+
+  private static final long MS = 1000000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+
+  @Test
+  public void testRename() throws Exception {
+
+    Path dir = folder.newFolder("watched").toPath();
+    Path other = folder.newFolder("other").toPath();
+    Path renamed = Files.write(dir.resolve("renamed"), new byte[] {1, 2, 3});
+    Path moved = Files.write(dir.resolve("moved"), new byte[] {4, 5});
+    Path deleted = Files.write(dir.resolve("deleted"), new byte[] {6});
+    Path late = Files.write(dir.resolve("late"), new byte[] {7, 8, 9, 10});
+
+    RenameCorrelator correlator = new RenameCorrelator(100, 1000);
+    correlator.learn(dir);
+
+    Path newName = Files.move(renamed, dir.resolve("new"));
+    Path newPlace = Files.move(moved, other.resolve("moved"));
+    Path lateNewPlace = Files.move(late, other.resolve("late"));
+    Files.delete(deleted);
+
+    // Like the polling watch service, which reports the creations first
+    List<PathWatcherEvent> ready = correlator.add(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_CREATE, dir, newName),
+        event(StandardWatchEventKinds.ENTRY_DELETE, dir, renamed),
+        event(StandardWatchEventKinds.ENTRY_DELETE, dir, deleted)), 0);
+
+    assertEquals(1, ready.size());
+    assertEquals(PathWatcherEvent.ENTRY_RENAMED, ready.get(0).getKind());
+    assertEquals(renamed, ready.get(0).getPrevious());
+    assertEquals(newName, ready.get(0).getContext());
+
+    // The deletions might still be moves
+    assertEquals(100, correlator.getDelay(0));
+    ready = correlator.add(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_DELETE, dir, moved)), 10 * MS);
+    assertTrue(ready.isEmpty());
+
+    ready = correlator.add(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_CREATE, other, newPlace)), 20 * MS);
+    assertEquals(1, ready.size());
+    assertEquals(moved, ready.get(0).getPrevious());
+    assertEquals(other, ready.get(0).getPath());
+
+    // The deletion shows up after the creation has been reported
+    ready = correlator.add(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_CREATE, other, lateNewPlace)), 30 * MS);
+    assertEquals(1, ready.size());
+    assertEquals(late, ready.get(0).getPrevious());
+    assertTrue(correlator.add(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_DELETE, dir, late)), 40 * MS).isEmpty());
+
+    // No matching creation within the window
+    assertTrue(correlator.flush(50 * MS).isEmpty());
+    ready = correlator.flush(100 * MS);
+    assertEquals(1, ready.size());
+    assertEquals(StandardWatchEventKinds.ENTRY_DELETE, ready.get(0).getKind());
+    assertEquals(deleted, ready.get(0).getContext());
+    assertEquals(-1, correlator.getDelay(100 * MS));
+
+  }
+
+
+  @Test
+  public void testIdentity() throws Exception {
+
+    Path dir = folder.newFolder("watched").toPath();
+    Path empty = Files.createFile(dir.resolve("empty"));
+    Path touched = Files.write(dir.resolve("touched"), new byte[] {1, 2, 3});
+    Path renamed = Files.write(dir.resolve("renamed"), new byte[] {4, 5, 6});
+
+    // Learned from the entries of the snapshot
+    RenameCorrelator correlator = new RenameCorrelator(100, 1000);
+    correlator.learn(DirectorySnapshot.read(dir, null, null));
+
+    Path newEmpty = Files.move(empty, dir.resolve("new-empty"));
+    Path newTouched = Files.move(touched, dir.resolve("new-touched"));
+    Files.setLastModifiedTime(newTouched,
+        FileTime.fromMillis(Files.getLastModifiedTime(newTouched).toMillis() + 10000));
+    Path newName = Files.move(renamed, dir.resolve("new"));
+
+    List<PathWatcherEvent> ready = correlator.add(Arrays.asList(
+        event(StandardWatchEventKinds.ENTRY_DELETE, dir, empty),
+        event(StandardWatchEventKinds.ENTRY_DELETE, dir, touched),
+        event(StandardWatchEventKinds.ENTRY_DELETE, dir, renamed),
+        event(StandardWatchEventKinds.ENTRY_CREATE, dir, newEmpty),
+        event(StandardWatchEventKinds.ENTRY_CREATE, dir, newTouched),
+        event(StandardWatchEventKinds.ENTRY_CREATE, dir, newName)), 0);
+
+    // Empty files are not even held back, and a different timestamp is a different file
+    assertEquals(4, ready.size());
+    assertEquals(StandardWatchEventKinds.ENTRY_DELETE, ready.get(0).getKind());
+    assertEquals(empty, ready.get(0).getContext());
+    assertEquals(StandardWatchEventKinds.ENTRY_CREATE, ready.get(1).getKind());
+    assertEquals(newEmpty, ready.get(1).getContext());
+    assertEquals(StandardWatchEventKinds.ENTRY_CREATE, ready.get(2).getKind());
+    assertEquals(newTouched, ready.get(2).getContext());
+    assertEquals(PathWatcherEvent.ENTRY_RENAMED, ready.get(3).getKind());
+    assertEquals(renamed, ready.get(3).getPrevious());
+
+    ready = correlator.flush(100 * MS);
+    assertEquals(1, ready.size());
+    assertEquals(StandardWatchEventKinds.ENTRY_DELETE, ready.get(0).getKind());
+    assertEquals(touched, ready.get(0).getContext());
+
+  }
+
+
+  private PathWatcherEvent event(Kind<Path> kind, Path dir, Path context) {
+    return new PathWatcherEvent(kind, dir, context, false);
+  }
+
+}
@@ -0,0 +1,343 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class SnapshotFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+
+  @Test
+  public void testJournal() throws Exception {
+
+    File directory = folder.newFolder("watched");
+    File other = folder.newFolder("other");
+    new File(directory, "a.txt").createNewFile();
+    new File(directory, "b.txt").createNewFile();
+
+    Path path = folder.getRoot().toPath().resolve("snapshots");
+    NameTable nameTable = new NameTable();
+
+    SnapshotFile file = new SnapshotFile(path);
+    assertTrue(file.open(nameTable).isEmpty());
+
+    file.append(DirectorySnapshot.read(directory.toPath(), null, nameTable));
+    file.append(DirectorySnapshot.read(other.toPath(), null, nameTable));
+    file.appendRemoval(other.toPath());
+
+    new File(directory, "c.txt").createNewFile();
+    file.append(DirectorySnapshot.read(directory.toPath(), null, nameTable));
+    file.close();
+
+    // A record which has only partly been written
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 100, 1, 2}));
+    }
+    long damagedSize = path.toFile().length();
+
+    file = new SnapshotFile(path);
+    Map<Path, DirectorySnapshot> snapshots = file.open(nameTable);
+
+    // The last record of each directory wins and the damaged end has been cut off
+    assertEquals(1, snapshots.size());
+    assertEquals(Arrays.asList("a.txt", "b.txt", "c.txt"),
+        Arrays.asList(snapshots.get(directory.toPath()).getNames()));
+    assertNull(snapshots.get(other.toPath()));
+    assertEquals(damagedSize - 6, path.toFile().length());
+
+    file.compact(snapshots.values());
+    file.close();
+
+    file = new SnapshotFile(path);
+    assertEquals(3, file.open(nameTable).get(directory.toPath()).size());
+    file.close();
+
+  }
+
+
+  @Test
+  public void testOfflineChanges() throws Exception {
+
+    File directory = folder.newFolder("watched");
+    File modified = new File(directory, "modified.txt");
+    File deleted = new File(directory, "deleted.txt");
+    modified.createNewFile();
+    deleted.createNewFile();
+
+    Path path = folder.getRoot().toPath().resolve("snapshots");
+
+    PollingWatchService service = new PollingWatchService(1000);
+    service.setSnapshotFile(path);
+    service.register(directory.toPath());
+    service.lookForChanges();
+    service.setSnapshotFile(null);
+
+    // Changes while the watcher is not running
+    assertTrue(modified.setLastModified(modified.lastModified() + 10000));
+    assertTrue(deleted.delete());
+    File created = new File(directory, "created.txt");
+    created.createNewFile();
+
+    PollingWatchService restarted = new PollingWatchService(1000);
+    restarted.setSnapshotFile(path);
+    restarted.register(directory.toPath());
+    restarted.lookForChanges();
+
+    WatchKey key = restarted.poll();
+    List<Path> changes = new ArrayList<Path>();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      changes.add((Path) event.context());
+    }
+
+    assertEquals(3, changes.size());
+    assertThat(changes, hasItem(created.toPath()));
+    assertThat(changes, hasItem(modified.toPath()));
+    assertThat(changes, hasItem(deleted.toPath()));
+
+    restarted.setSnapshotFile(null);
+
+  }
+
+
+  @Test
+  public void testCompactionBySize() throws Exception {
+
+    File large = folder.newFolder("large");
+    for (int i = 0; i < 200; i++) {
+      new File(large, "file" + i + ".txt").createNewFile();
+    }
+    File small = folder.newFolder("small");
+    new File(small, "a.txt").createNewFile();
+
+    Path path = folder.getRoot().toPath().resolve("snapshots");
+    NameTable nameTable = new NameTable();
+
+    // The large directory changes with every poll
+    SnapshotFile file = new SnapshotFile(path, 10000, 1L << 30);
+    file.open(nameTable);
+    DirectorySnapshot snapshot = DirectorySnapshot.read(large.toPath(), null, nameTable);
+
+    file.append(snapshot);
+    long recordSize = path.toFile().length() - 8;
+    int appended = 1;
+    while (!file.needsCompaction()) {
+      file.append(snapshot);
+      appended++;
+    }
+
+    // Compacted as soon as more than half of the file is outdated and the minimum is reached
+    assertEquals((appended - 1) * recordSize, file.getStaleBytes());
+    assertTrue(file.getStaleBytes() >= 10000);
+    assertTrue(file.getStaleBytes() - recordSize < 10000);
+
+    file.compact(Arrays.asList(snapshot));
+    assertEquals(0, file.getStaleBytes());
+    assertFalse(file.needsCompaction());
+    assertEquals(8 + recordSize, path.toFile().length());
+    file.close();
+
+    // A small directory which changes often next to a large quiet one reaches the cap first
+    file = new SnapshotFile(path, 100, 1000);
+    file.open(nameTable);
+    DirectorySnapshot smallSnapshot = DirectorySnapshot.read(small.toPath(), null, nameTable);
+
+    while (!file.needsCompaction()) {
+      file.append(smallSnapshot);
+    }
+
+    assertTrue(file.getStaleBytes() > 1000);
+    assertTrue(file.getStaleBytes() < recordSize);
+
+    // Removals do not count as current
+    file.compact(Arrays.asList(snapshot, smallSnapshot));
+    file.appendRemoval(large.toPath());
+    assertTrue(file.getStaleBytes() > recordSize);
+    assertTrue(file.needsCompaction());
+    file.close();
+
+  }
+
+
+  @Test
+  public void testCompactTornFile() throws Exception {
+
+    File directory = folder.newFolder("watched");
+    new File(directory, "a.txt").createNewFile();
+    File other = folder.newFolder("other");
+
+    Path path = folder.getRoot().toPath().resolve("snapshots");
+    NameTable nameTable = new NameTable();
+
+    SnapshotFile file = new SnapshotFile(path);
+    file.open(nameTable);
+    DirectorySnapshot snapshot = DirectorySnapshot.read(directory.toPath(), null, nameTable);
+    file.append(snapshot);
+    file.append(snapshot);
+    file.close();
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.wrap(new byte[] {0, 0, 1, 0, 1}));
+    }
+
+    // Cut off and replaced while it is open, and appended to afterwards
+    file = new SnapshotFile(path);
+    Map<Path, DirectorySnapshot> snapshots = file.open(nameTable);
+    file.compact(snapshots.values());
+    file.append(DirectorySnapshot.read(other.toPath(), null, nameTable));
+    file.close();
+
+    file = new SnapshotFile(path);
+    assertEquals(2, file.open(nameTable).size());
+    assertEquals(0, file.getStaleBytes());
+
+    // The file can not be replaced. The compaction fails, but does not leave the file in a state
+    // where it keeps trying.
+    Files.delete(path);
+    Files.createDirectories(path.resolve("blocked"));
+
+    try {
+      file.compact(snapshots.values());
+      fail("Replaced a directory");
+    } catch (IOException e) {
+      // Expected
+    }
+
+    assertFalse(file.needsCompaction());
+    assertFalse(Files.exists(path.resolveSibling("snapshots.tmp")));
+    try {
+      file.append(snapshot);
+      fail("Appended to a closed file");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    file.close();
+
+  }
+
+
+  @Test
+  public void testForeignFile() throws Exception {
+
+    Path path = folder.getRoot().toPath().resolve("notes.txt");
+    byte[] contents = "Not a snapshot file".getBytes(StandardCharsets.UTF_8);
+    Files.write(path, contents);
+
+    try {
+      new SnapshotFile(path).open(new NameTable());
+      fail("Opened a file which is not a snapshot file");
+    } catch (IOException e) {
+      // Expected
+    }
+
+    // Left as it was
+    assertArrayEquals(contents, Files.readAllBytes(path));
+
+    // Shorter than the header
+    Files.write(path, new byte[] {1, 2});
+    try {
+      new PollingWatchService(1000).setSnapshotFile(path);
+      fail("Opened a file which is not a snapshot file");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertEquals(2, path.toFile().length());
+
+  }
+
+
+  @Test
+  public void testDropRestoredSnapshots() throws Exception {
+
+    File kept = folder.newFolder("kept");
+    File deleted = folder.newFolder("deleted");
+    File unwatched = folder.newFolder("unwatched");
+    File offline = folder.newFolder("offline");
+
+    Path path = folder.getRoot().toPath().resolve("snapshots");
+
+    PollingWatchService service = new PollingWatchService(1000);
+    service.setSnapshotFile(path);
+    service.register(kept.toPath());
+    service.register(deleted.toPath());
+    service.register(unwatched.toPath());
+    service.register(offline.toPath());
+    service.setSnapshotFile(null);
+    service.stop();
+
+    assertTrue(deleted.delete());
+
+    // Restarted without registering anything. The deleted directory is dropped with the
+    // compaction, the others are still kept for their registration.
+    service = new PollingWatchService(1000);
+    service.setSnapshotFile(path);
+    service.setSnapshotFile(null);
+    service.stop();
+
+    SnapshotFile file = new SnapshotFile(path);
+    Map<Path, DirectorySnapshot> snapshots = file.open(new NameTable());
+    file.close();
+    assertEquals(3, snapshots.size());
+    assertFalse(snapshots.containsKey(deleted.toPath()));
+
+    // Deleted while not running. Its removal is written with the first scan after the
+    // registration, without waiting for a compaction.
+    assertTrue(offline.delete());
+    service = new PollingWatchService(1000);
+    service.setSnapshotFile(path);
+    service.register(kept.toPath());
+    service.lookForChanges();
+
+    file = new SnapshotFile(path);
+    snapshots = file.open(new NameTable());
+    file.close();
+    assertEquals(2, snapshots.size());
+    assertFalse(snapshots.containsKey(offline.toPath()));
+
+    // What has not been registered again is dropped on request
+    assertEquals(1, service.discardRestoredSnapshots());
+    service.setSnapshotFile(null);
+    service.stop();
+
+    file = new SnapshotFile(path);
+    snapshots = file.open(new NameTable());
+    file.close();
+    assertEquals(1, snapshots.size());
+    assertTrue(snapshots.containsKey(kept.toPath()));
+
+  }
+
+}
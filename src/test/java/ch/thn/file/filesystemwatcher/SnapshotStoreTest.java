@@ -0,0 +1,74 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Path;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class SnapshotStoreTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+
+  @Test
+  public void testRescanAfterOverflow() throws Exception {
+
+    File modified = folder.newFile("modified.txt");
+    File deleted = folder.newFile("deleted.txt");
+    File reported = folder.newFile("reported.txt");
+
+    Path directory = folder.getRoot().toPath();
+
+    SnapshotStore store = new SnapshotStore();
+
+    // Nothing to compare with yet
+    assertNull(store.rescan(directory, null));
+
+    // A change which has been reported is applied to the snapshot
+    File created = folder.newFile("created.txt");
+    store.refreshEntry(created.toPath());
+    assertTrue(reported.delete());
+    store.refreshEntry(reported.toPath());
+
+    DirectorySnapshot snapshot = store.get(directory);
+    assertTrue(snapshot.contains("created.txt"));
+    assertFalse(snapshot.contains("reported.txt"));
+
+    // Changes which got lost in an overflow
+    assertTrue(modified.setLastModified(modified.lastModified() + 10000));
+    assertTrue(deleted.delete());
+    File lost = folder.newFile("lost.txt");
+
+    DirectorySnapshot.Diff diff = store.rescan(directory, null);
+
+    assertEquals(1, diff.getCreated().size());
+    assertEquals(1, diff.getModified().size());
+    assertEquals(1, diff.getDeleted().size());
+
+    assertThat(diff.getCreated(), hasItem(lost.toPath()));
+    assertThat(diff.getModified(), hasItem(modified.toPath()));
+    assertThat(diff.getDeleted(), hasItem(deleted.toPath()));
+
+    // The rescan is the new snapshot
+    assertTrue(store.rescan(directory, null).isEmpty());
+
+  }
+
+}
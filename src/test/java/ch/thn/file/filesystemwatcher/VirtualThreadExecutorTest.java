@@ -0,0 +1,91 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class VirtualThreadExecutorTest {
+
+
+  @Test
+  public void testConcurrencyCap() throws Exception {
+
+    if (!VirtualThreadExecutor.isAvailable()) {
+      try {
+        new FileSystemWatcher().setVirtualThreads(4);
+        fail("Virtual threads enabled without Java 21");
+      } catch (UnsupportedOperationException e) {
+        // Expected before Java 21
+      }
+      return;
+    }
+
+    VirtualThreadExecutor executor = new VirtualThreadExecutor("test", 4);
+
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final AtomicInteger done = new AtomicInteger();
+    final List<String> names = new ArrayList<String>();
+
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for (int i = 0; i < 50; i++) {
+      tasks.add(new Runnable() {
+
+        @Override
+        public void run() {
+          int now = running.incrementAndGet();
+          synchronized (names) {
+            maxRunning.set(Math.max(maxRunning.get(), now));
+            names.add(Thread.currentThread().getName());
+          }
+
+          try {
+            Thread.sleep(10);
+          } catch (InterruptedException e) {
+            return;
+          }
+
+          running.decrementAndGet();
+          done.incrementAndGet();
+        }
+      });
+    }
+
+    executor.invokeAll(tasks);
+
+    assertEquals(50, done.get());
+    assertTrue(maxRunning.get() <= 4);
+    assertTrue(names.get(0).startsWith("test-"));
+
+    // Failures show up once all tasks are done
+    tasks.add(0, new Runnable() {
+
+      @Override
+      public void run() {
+        throw new IllegalStateException("failed");
+      }
+    });
+
+    try {
+      executor.invokeAll(tasks);
+      fail("Failure not passed on");
+    } catch (IllegalStateException e) {
+      assertEquals(100, done.get());
+    }
+
+  }
+
+}
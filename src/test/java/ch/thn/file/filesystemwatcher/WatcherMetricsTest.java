@@ -0,0 +1,89 @@
+package ch.thn.file.filesystemwatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.StandardWatchEventKinds;
+
+
+/**
+ *
+ *
+ * @author Thomas Naeff (github.com/thnaeff)
+ *
+ */
+public class WatcherMetricsTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+
+  @Test
+  public void testHistogram() throws Exception {
+
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(0.99));
+
+    for (int i = 0; i < 99; i++) {
+      histogram.record(100);
+    }
+    histogram.record(5000);
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(5000, histogram.getMax());
+    assertEquals(149.0, histogram.getMean(), 0.001);
+
+    // 100 needs 7 bits, so it is in the bucket up to 127
+    assertEquals(127, histogram.getPercentile(0.5));
+    assertEquals(127, histogram.getPercentile(0.99));
+    assertEquals(5000, histogram.getPercentile(1));
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+
+  }
+
+
+  @Test
+  public void testPollingCycle() throws Exception {
+
+    folder.newFile("a.txt");
+    folder.newFile("b.txt");
+
+    PollingWatchService service = new PollingWatchService(1000);
+    service.register(folder.getRoot().toPath());
+
+    // Baseline
+    service.lookForChanges();
+
+    File created = folder.newFile("c.txt");
+    service.lookForChanges();
+
+    WatcherMetrics metrics = service.getMetrics();
+
+    assertEquals(2, metrics.getScanCount());
+    assertEquals(2, metrics.getDirectoriesScanned());
+    assertEquals(5, metrics.getFilesScanned());
+    assertEquals(1, metrics.getPendingKeys());
+    assertTrue(metrics.getScanDuration().getMax() > 0);
+
+    PollingWatchService.PollingWatchKey key =
+        (PollingWatchService.PollingWatchKey) service.poll();
+    assertEquals(created.toPath(), key.pollEvents().get(0).context());
+
+    metrics.recordEvent(StandardWatchEventKinds.ENTRY_CREATE);
+    metrics.recordEvent(StandardWatchEventKinds.OVERFLOW);
+    assertEquals(1, metrics.getEventCount(StandardWatchEventKinds.ENTRY_CREATE));
+    assertEquals(1, metrics.getOverflowEvents());
+
+    service.stop();
+
+  }
+
+}
@@ -1,13 +1,31 @@
 package ch.thn.file.filesystemwatcher;
 
 import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -18,6 +36,8 @@ import java.util.Collection;
  */
 public class WatcherTest {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
 
   @Test
   public void testAddChildrenAndParents() throws Exception {
@@ -50,5 +70,473 @@ public class WatcherTest {
   }
 
 
+  @Test
+  public void testRegisterInBackground() throws Exception {
+
+    Path root = folder.getRoot().toPath();
+
+    // 3 + 9 + 27 child directories
+    for (int i = 0; i < 3; i++) {
+      for (int j = 0; j < 3; j++) {
+        for (int k = 0; k < 3; k++) {
+          Files.createDirectories(root.resolve("d" + i).resolve("d" + j).resolve("d" + k));
+        }
+      }
+      Files.createFile(root.resolve("d" + i).resolve("file.txt"));
+    }
+
+    FileSystemWatcher watcher = new FileSystemWatcher();
+    watcher.setRegistrationParallelism(4);
+
+    final AtomicInteger done = new AtomicInteger();
+
+    Future<Integer> registered =
+        watcher.registerPathInBackground(root, new PathRegistrationListener() {
+
+          @Override
+          public void registrationProgress(Path path, int registered) {
+
+          }
+
+          @Override
+          public void registrationDone(Path path, int registered) {
+            done.set(registered);
+          }
+        });
+
+    assertEquals(40, registered.get(10, TimeUnit.SECONDS).intValue());
+    assertEquals(40, done.get());
+    assertEquals(40, watcher.getWatchedPaths().size());
+    assertThat(watcher.getWatchedPaths(), hasItem(root.resolve("d2").resolve("d1").resolve("d0")));
+
+    watcher.stop();
+
+  }
+
+
+  @Test
+  public void testReportExisting() throws Exception {
+
+    Path root = folder.getRoot().toPath();
+    Path sub = Files.createDirectories(root.resolve("sub"));
+    Path file = Files.createFile(sub.resolve("file.txt"));
+    Path top = Files.createFile(root.resolve("top.txt"));
+
+    FileSystemWatcher watcher = new FileSystemWatcher();
+
+    final List<Path> created = Collections.synchronizedList(new ArrayList<Path>());
+    final CountDownLatch latch = new CountDownLatch(3);
+    watcher.addPathWatcherBatchListener(new PathWatcherBatchListener() {
+
+      @Override
+      public void pathsChanged(List<PathWatcherEvent> events) {
+        for (PathWatcherEvent event : events) {
+          if (event.getKind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            created.add(event.getContext());
+            latch.countDown();
+          }
+        }
+      }
+    });
+
+    assertEquals(2, watcher.registerPathInBackground(root, true, null).get(10, TimeUnit.SECONDS)
+        .intValue());
+
+    // The existing entries are reported by the watcher thread
+    assertTrue(created.isEmpty());
+
+    Thread t = new Thread(watcher);
+    t.start();
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertEquals(3, created.size());
+    assertThat(created, hasItem(sub));
+    assertThat(created, hasItem(file));
+    assertThat(created, hasItem(top));
+
+    watcher.stop(true);
+    t.join(5000);
+
+  }
+
+
+  @Test
+  public void testReportExistingOnce() throws Exception {
+    reportExistingOnce(0);
+    reportExistingOnce(100);
+  }
+
+  /**
+   * Creates a file after the directory is being watched and before it is listed, so that the
+   * watch service and the listing both find it
+   * 
+   * @param pollingTime
+   * @throws Exception
+   */
+  private void reportExistingOnce(long pollingTime) throws Exception {
+
+    final Path root = folder.newFolder("polling" + pollingTime).toPath();
+    final Path existing = Files.createFile(root.resolve("existing.txt"));
+    final Path late = root.resolve("late.txt");
+
+    FileSystemWatcher watcher = new FileSystemWatcher(pollingTime);
+
+    final List<Path> created = Collections.synchronizedList(new ArrayList<Path>());
+    final CountDownLatch latch = new CountDownLatch(2);
+    watcher.addPathWatcherBatchListener(new PathWatcherBatchListener() {
+
+      @Override
+      public void pathsChanged(List<PathWatcherEvent> events) {
+        for (PathWatcherEvent event : events) {
+          if (event.getKind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            created.add(event.getContext());
+            latch.countDown();
+          }
+        }
+      }
+    });
+
+    watcher.addPathWatcherListener(new PathWatcherListener() {
+
+      @Override
+      public void newPathWatched(Path path) {
+        try {
+          Files.createFile(late);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      @Override
+      public void pathChanged(Path path, Path context, boolean overflow) {}
+
+      @Override
+      public void directoryCreated(Path path, Path created) {}
+
+      @Override
+      public void directoryDeleted(Path path, Path deleted) {}
+
+      @Override
+      public void directoryModified(Path path, Path modified) {}
+    });
+
+    Thread t = new Thread(watcher);
+    t.start();
+
+    assertEquals(1, watcher.registerPathInBackground(root, true, null).get(10, TimeUnit.SECONDS)
+        .intValue());
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+    // Time for the watch service to report the late file a second time
+    Thread.sleep(Math.max(500, 3 * pollingTime));
+
+    assertEquals(created.toString(), 2, created.size());
+    assertThat(created, hasItem(existing));
+    assertThat(created, hasItem(late));
+
+    watcher.stop(true);
+    t.join(5000);
+
+  }
+
+
+  @Test
+  public void testOverflowRecovery() throws Exception {
+
+    Path root = folder.newFolder("overflow").toPath();
+    Path modified = Files.createFile(root.resolve("modified.txt"));
+    Path deleted = Files.createFile(root.resolve("deleted.txt"));
+    Files.setLastModifiedTime(modified, FileTime.fromMillis(10000));
+
+    FileSystemWatcher watcher = new FileSystemWatcher();
+    watcher.setOverflowRecovery(true);
+
+    final Set<Path> created = Collections.synchronizedSet(new HashSet<Path>());
+    final Set<Path> changed = Collections.synchronizedSet(new HashSet<Path>());
+    final AtomicInteger overflows = new AtomicInteger();
+    watcher.addPathWatcherBatchListener(new PathWatcherBatchListener() {
+
+      @Override
+      public void pathsChanged(List<PathWatcherEvent> events) {
+        for (PathWatcherEvent event : events) {
+          if (event.isOverflow()) {
+            overflows.incrementAndGet();
+          } else if (event.getKind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            created.add(event.getContext());
+          } else {
+            changed.add(event.getContext());
+          }
+        }
+      }
+    });
+
+    watcher.registerPath(root, true, false);
+
+    // More changes than the key of the java watch service keeps, while the watcher does not run
+    int files = 600;
+    for (int i = 0; i < files; i++) {
+      Files.createFile(root.resolve("f" + i));
+    }
+    Path sub = Files.createDirectory(root.resolve("sub"));
+    Files.setLastModifiedTime(modified, FileTime.fromMillis(20000));
+    Files.delete(deleted);
+
+    Thread.sleep(500);
+
+    Thread t = new Thread(watcher);
+    t.start();
+
+    long end = System.currentTimeMillis() + 10000;
+    while ((created.size() < files + 1 || changed.size() < 2
+        || !watcher.getWatchedPaths().contains(sub)) && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+
+    // The overflow has been replaced by what changed since the last reported event
+    assertTrue(watcher.getMetrics().getOverflowEvents() > 0);
+    assertEquals(0, overflows.get());
+    assertEquals(files + 1, created.size());
+    assertThat(created, hasItem(sub));
+    assertThat(changed, hasItem(modified));
+    assertThat(changed, hasItem(deleted));
+
+    // The new directory found with the rescan is watched
+    assertThat(watcher.getWatchedPaths(), hasItem(sub));
+
+    watcher.stop(true);
+    t.join(5000);
+
+  }
+
+
+  @Test
+  public void testUnregister() throws Exception {
+
+    Path root = folder.getRoot().toPath();
+    Path removed = Files.createDirectories(root.resolve("removed"));
+    Path sub = Files.createDirectories(removed.resolve("sub"));
+    Path kept = Files.createDirectories(root.resolve("kept"));
+
+    FileSystemWatcher watcher = new FileSystemWatcher(100);
+    watcher.registerPath(root, true, false);
+
+    assertEquals(4, watcher.getWatchedPaths().size());
+    assertEquals(4, watcher.getPollingWatchService().getSnapshotFootprint().getDirectories());
+
+    assertTrue(watcher.unregisterPath(removed, true));
+
+    Collection<Path> paths = watcher.getWatchedPaths();
+    assertEquals(2, paths.size());
+    assertThat(paths, hasItem(kept));
+    assertThat(paths, not(hasItem(sub)));
+
+    // The sub tree is not polled any more
+    assertEquals(2, watcher.getPollingWatchService().getSnapshotFootprint().getDirectories());
+    assertFalse(watcher.unregisterPath(sub, false));
+
+    assertTrue(watcher.unregisterPath(root, false));
+    assertEquals(Collections.singletonList(kept), new ArrayList<Path>(watcher.getWatchedPaths()));
+
+    watcher.stop();
+
+  }
+
+
+  @Test
+  public void testPathFilter() throws Exception {
+
+    Path root = folder.getRoot().toPath();
+    Path src = Files.createDirectories(root.resolve("src"));
+    Files.createDirectories(root.resolve(".git").resolve("objects"));
+    Files.createDirectories(src.resolve("node_modules").resolve("lib"));
+
+    PathFilter filter = new PathFilter();
+    filter.addExclude(".git");
+    filter.addExclude("node_modules");
+
+    FileSystemWatcher watcher = new FileSystemWatcher();
+    watcher.setPathFilter(filter);
+    watcher.registerPath(root, true, false);
+
+    // The excluded sub trees are not watched at all
+    Collection<Path> paths = watcher.getWatchedPaths();
+    assertEquals(2, paths.size());
+    assertThat(paths, hasItem(src));
+
+    watcher.stop();
+
+  }
+
+
+  @Test
+  public void testWatchServiceShards() throws Exception {
+
+    Path root = folder.getRoot().toPath();
+    final List<Path> dirs = new ArrayList<Path>();
+    for (int i = 0; i < 8; i++) {
+      dirs.add(Files.createDirectories(root.resolve("d" + i)));
+    }
+
+    FileSystemWatcher watcher = new FileSystemWatcher();
+    watcher.setWatchServiceShards(4);
+    assertEquals(4, watcher.getWatchServiceShards());
+
+    final int files = 20;
+    final CountDownLatch latch = new CountDownLatch(dirs.size() * files);
+    final List<Path> created = Collections.synchronizedList(new ArrayList<Path>());
+
+    watcher.addPathWatcherBatchListener(new PathWatcherBatchListener() {
+
+      @Override
+      public void pathsChanged(List<PathWatcherEvent> events) {
+        for (PathWatcherEvent event : events) {
+          if (event.getKind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            created.add(event.getContext());
+            latch.countDown();
+          }
+        }
+      }
+    });
+
+    watcher.registerPath(root, true, false);
+    assertEquals(9, watcher.getWatchedPaths().size());
+
+    Thread t = new Thread(watcher);
+    t.start();
+
+    for (int i = 0; i < files; i++) {
+      for (Path dir : dirs) {
+        Files.createFile(dir.resolve(String.format("f%02d", i)));
+      }
+    }
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+    // In the order of creation within each directory
+    for (Path dir : dirs) {
+      List<Path> inDir = new ArrayList<Path>();
+      for (Path p : new ArrayList<Path>(created)) {
+        if (p.getParent().equals(dir)) {
+          inDir.add(p);
+        }
+      }
+
+      assertEquals(files, inDir.size());
+      for (int i = 0; i < files; i++) {
+        assertEquals(dir.resolve(String.format("f%02d", i)), inDir.get(i));
+      }
+    }
+
+    watcher.stop(true);
+    t.join(5000);
+    assertFalse(t.isAlive());
+
+  }
+
+
+  @Test
+  public void testRegisterWhileRunning() throws Exception {
+
+    final Path root = folder.getRoot().toPath();
+    final Path busy = Files.createDirectories(root.resolve("busy"));
+    final List<Path> dirs = new ArrayList<Path>();
+    for (int i = 0; i < 8; i++) {
+      dirs.add(Files.createDirectories(root.resolve("d" + i + "/sub")));
+    }
+
+    final FileSystemWatcher watcher = new FileSystemWatcher();
+
+    final int files = 200;
+    final CountDownLatch latch = new CountDownLatch(files);
+    final AtomicInteger notifying = new AtomicInteger();
+    final AtomicInteger overlapping = new AtomicInteger();
+
+    watcher.addPathWatcherBatchListener(new PathWatcherBatchListener() {
+
+      @Override
+      public void pathsChanged(List<PathWatcherEvent> events) {
+        if (notifying.incrementAndGet() > 1) {
+          overlapping.incrementAndGet();
+        }
+
+        for (PathWatcherEvent event : events) {
+          if (event.getKind() == StandardWatchEventKinds.ENTRY_CREATE
+              && busy.equals(event.getPath())) {
+            latch.countDown();
+          }
+        }
+
+        notifying.decrementAndGet();
+      }
+    });
+
+    watcher.registerPath(busy, false, false);
+
+    Thread t = new Thread(watcher);
+    t.start();
+
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    final CountDownLatch done = new CountDownLatch(4);
+
+    // Registering, unregistering and adding listeners from several threads at a high rate
+    for (int i = 0; i < 4; i++) {
+      final int offset = i;
+
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 200; j++) {
+              Path dir = dirs.get((offset + j) % dirs.size()).getParent();
+
+              PathWatcherListener l = new PathWatcherListener() {
+
+                @Override
+                public void newPathWatched(Path path) {}
+
+                @Override
+                public void pathChanged(Path path, Path context, boolean overflow) {}
+
+                @Override
+                public void directoryCreated(Path path, Path created) {}
+
+                @Override
+                public void directoryDeleted(Path path, Path deleted) {}
+
+                @Override
+                public void directoryModified(Path path, Path modified) {}
+              };
+              watcher.addPathWatcherListener(l);
+              watcher.registerPath(dir, true, false);
+              watcher.unregisterPath(dir, true);
+              watcher.removePathWatcherListener(l);
+            }
+          } catch (Throwable e) {
+            failures.add(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+
+    for (int i = 0; i < files; i++) {
+      Files.createFile(busy.resolve("f" + i));
+    }
+
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertTrue(failures.toString(), failures.isEmpty());
+
+    // No event of the directory which stayed registered got lost
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertEquals(0, overlapping.get());
+    assertThat(watcher.getWatchedPaths(), hasItem(busy));
+
+    watcher.stop(true);
+    t.join(5000);
+    assertFalse(t.isAlive());
+
+  }
 
 }